@@ -20,11 +20,14 @@ limitations under the License.
  * (https://github.com/ivan-zapreev/Distributed-Translation-Infrastructure)
  */
 module uk.gov.nca.remedi4j {
+  exports uk.gov.nca.remedi4j.cache;
   exports uk.gov.nca.remedi4j.data;
   exports uk.gov.nca.remedi4j.exceptions;
   exports uk.gov.nca.remedi4j.utils;
   exports uk.gov.nca.remedi4j.client;
 
+  opens uk.gov.nca.remedi4j.data to com.fasterxml.jackson.databind;
+
   requires com.fasterxml.jackson.annotation;
   requires com.fasterxml.jackson.core;
   requires com.fasterxml.jackson.databind;
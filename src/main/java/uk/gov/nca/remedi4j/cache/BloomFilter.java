@@ -0,0 +1,68 @@
+/*
+National Crime Agency (c) Crown Copyright 2018
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+   http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package uk.gov.nca.remedi4j.cache;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Simple thread-safe Bloom filter over 128-bit hashes, using double hashing to derive
+ * the bit positions from the two halves of the hash
+ */
+class BloomFilter {
+  private final AtomicLongArray bits;
+  private final long numBits;
+  private final int numHashes;
+
+  /**
+   * Create a new Bloom filter
+   *
+   * @param expectedEntries   The number of entries expected to be added
+   * @param bitsPerEntry      The number of bits to use per entry (10 gives a false positive rate of around 1%)
+   */
+  BloomFilter(long expectedEntries, int bitsPerEntry){
+    long words = Math.max(1, (Math.max(1, expectedEntries) * bitsPerEntry + 63) / 64);
+
+    this.bits = new AtomicLongArray((int) Math.min(words, Integer.MAX_VALUE - 8));
+    this.numBits = bits.length() * 64L;
+    this.numHashes = Math.max(1, (int) Math.round(bitsPerEntry * Math.log(2)));
+  }
+
+  void add(long hi, long lo){
+    for(int i = 0; i < numHashes; i++){
+      long bit = Math.floorMod(hi + i * lo, numBits);
+      int word = (int) (bit >>> 6);
+      long mask = 1L << bit;
+
+      long current;
+      do {
+        current = bits.get(word);
+        if((current & mask) != 0)
+          break;
+      }while(!bits.compareAndSet(word, current, current | mask));
+    }
+  }
+
+  boolean mightContain(long hi, long lo){
+    for(int i = 0; i < numHashes; i++){
+      long bit = Math.floorMod(hi + i * lo, numBits);
+      if((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0)
+        return false;
+    }
+
+    return true;
+  }
+}
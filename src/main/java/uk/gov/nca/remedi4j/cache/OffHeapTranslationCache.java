@@ -0,0 +1,366 @@
+/*
+National Crime Agency (c) Crown Copyright 2018
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+   http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package uk.gov.nca.remedi4j.cache;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * {@link TranslationCache} which stores entries outside of the Java heap, so that millions of cached
+ * translations don't add to garbage collection overhead.
+ *
+ * Memory is allocated up front as direct buffers, up to a hard byte budget, and divided into fixed-size
+ * slots. Keys and translations are stored UTF-8 encoded, and a String is only created for the
+ * translation when there is a cache hit. Keys are encoded into a reusable per-thread buffer, so a
+ * lookup which misses doesn't allocate. Entries which don't fit into a single slot are not cached,
+ * so the slot size should be chosen to fit the majority of sentences.
+ *
+ * The slots are grouped into buckets, and the hash of the key determines which bucket an entry is
+ * stored in. When a bucket is full, an entry is evicted using the clock algorithm: a hand sweeps over
+ * the slots in the bucket, skipping (and clearing the reference bit of) any entry that has been read
+ * since the hand last passed it.
+ *
+ * The memory is released when the cache is garbage collected.
+ */
+public class OffHeapTranslationCache implements TranslationCache {
+  private static final int WAYS = 8;
+  private static final int LOCK_STRIPES = 1024;
+  private static final int MAX_ARENA_SIZE = 1 << 30;
+
+  private static final int HEADER_HASH = 0;
+  private static final int HEADER_KEY_LENGTH = 4;
+  private static final int HEADER_VALUE_LENGTH = 8;
+  private static final int HEADER_SIZE = 12;
+
+  /**
+   * Default size of each slot, in bytes
+   */
+  public static final int DEFAULT_SLOT_SIZE = 512;
+
+  private final int slotSize;
+  private final int slotsPerArena;
+  private final int buckets;
+  private final ByteBuffer[] arenas;
+  private final byte[] referenced;
+  private final byte[] hands;
+  private final Object[] locks;
+
+  private static final ThreadLocal<KeyBuffer> keyBuffers = ThreadLocal.withInitial(KeyBuffer::new);
+
+  private final AtomicInteger size = new AtomicInteger();
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+  private final LongAdder rejections = new LongAdder();
+
+  /**
+   * Create a new cache, using the default slot size
+   *
+   * @param maxBytes    The maximum number of bytes of off-heap memory to use
+   */
+  public OffHeapTranslationCache(long maxBytes){
+    this(maxBytes, DEFAULT_SLOT_SIZE);
+  }
+
+  /**
+   * Create a new cache
+   *
+   * @param maxBytes    The maximum number of bytes of off-heap memory to use
+   * @param slotSize    The size of each slot, which limits the size of entries that can be cached
+   */
+  public OffHeapTranslationCache(long maxBytes, int slotSize){
+    if(slotSize <= HEADER_SIZE)
+      throw new IllegalArgumentException("Slot size must be greater than "+HEADER_SIZE);
+
+    long totalBuckets = maxBytes / ((long) slotSize * WAYS);
+    if(totalBuckets < 1)
+      throw new IllegalArgumentException("Byte budget is too small to hold a single bucket");
+
+    this.slotSize = slotSize;
+    this.buckets = (int) Math.min(totalBuckets, Integer.MAX_VALUE / WAYS);
+    this.slotsPerArena = (MAX_ARENA_SIZE / (slotSize * WAYS)) * WAYS;
+
+    long totalSlots = (long) buckets * WAYS;
+    int arenaCount = (int) ((totalSlots + slotsPerArena - 1) / slotsPerArena);
+
+    this.arenas = new ByteBuffer[arenaCount];
+    for(int i = 0; i < arenaCount; i++){
+      long slots = Math.min(slotsPerArena, totalSlots - (long) i * slotsPerArena);
+      arenas[i] = ByteBuffer.allocateDirect((int) (slots * slotSize));
+    }
+
+    this.referenced = new byte[(int) totalSlots];
+    this.hands = new byte[buckets];
+
+    this.locks = new Object[Math.min(LOCK_STRIPES, buckets)];
+    for(int i = 0; i < locks.length; i++)
+      locks[i] = new Object();
+  }
+
+  @Override
+  public String get(String sourceLanguage, String targetLanguage, String sentence) {
+    //The UTF-8 encoding is at least one byte per character, so there's no need to encode keys which can't fit
+    if(HEADER_SIZE + sourceLanguage.length() + targetLanguage.length() + sentence.length() + 2 > slotSize){
+      misses.increment();
+      return null;
+    }
+
+    KeyBuffer key = keyBuffers.get();
+    key.encode(sourceLanguage, targetLanguage, sentence);
+    int hash = key.hash();
+    int bucket = Math.floorMod(hash, buckets);
+
+    synchronized (locks[bucket % locks.length]){
+      int slot = find(bucket, hash, key);
+      if(slot >= 0){
+        referenced[slot] = 1;
+
+        ByteBuffer arena = arena(slot);
+        int offset = offset(slot);
+        int valueLength = arena.getInt(offset + HEADER_VALUE_LENGTH);
+
+        byte[] value = new byte[valueLength];
+        arena.duplicate().position(offset + HEADER_SIZE + key.length()).get(value);
+
+        hits.increment();
+        return new String(value, StandardCharsets.UTF_8);
+      }
+    }
+
+    misses.increment();
+    return null;
+  }
+
+  @Override
+  public void put(String sourceLanguage, String targetLanguage, String sentence, String translation) {
+    byte[] value = translation.getBytes(StandardCharsets.UTF_8);
+    if(HEADER_SIZE + sourceLanguage.length() + targetLanguage.length() + sentence.length() + 2 + value.length > slotSize){
+      rejections.increment();
+      return;
+    }
+
+    KeyBuffer key = keyBuffers.get();
+    key.encode(sourceLanguage, targetLanguage, sentence);
+
+    if(HEADER_SIZE + key.length() + value.length > slotSize){
+      rejections.increment();
+      return;
+    }
+
+    int hash = key.hash();
+    int bucket = Math.floorMod(hash, buckets);
+
+    synchronized (locks[bucket % locks.length]){
+      int slot = find(bucket, hash, key);
+
+      if(slot < 0)
+        slot = findEmpty(bucket);
+
+      if(slot < 0){
+        slot = evict(bucket);
+        evictions.increment();
+      }else if(arena(slot).getInt(offset(slot) + HEADER_KEY_LENGTH) == 0){
+        size.incrementAndGet();
+      }
+
+      ByteBuffer arena = arena(slot);
+      int offset = offset(slot);
+
+      arena.putInt(offset + HEADER_HASH, hash);
+      arena.putInt(offset + HEADER_KEY_LENGTH, key.length());
+      arena.putInt(offset + HEADER_VALUE_LENGTH, value.length);
+      arena.duplicate().position(offset + HEADER_SIZE).put(key.asByteBuffer()).put(value);
+
+      referenced[slot] = 0;
+    }
+  }
+
+  /**
+   * Get the number of entries currently held in the cache
+   */
+  public int size(){
+    return size.get();
+  }
+
+  /**
+   * Get the number of bytes of off-heap memory allocated by the cache
+   */
+  public long getAllocatedBytes(){
+    long total = 0;
+    for(ByteBuffer arena : arenas)
+      total += arena.capacity();
+
+    return total;
+  }
+
+  /**
+   * Get the number of lookups which found a cached translation
+   */
+  public long getHits(){
+    return hits.sum();
+  }
+
+  /**
+   * Get the number of lookups which didn't find a cached translation
+   */
+  public long getMisses(){
+    return misses.sum();
+  }
+
+  /**
+   * Get the number of entries which have been evicted from the cache
+   */
+  public long getEvictions(){
+    return evictions.sum();
+  }
+
+  /**
+   * Get the number of entries which weren't cached because they were too large to fit in a slot
+   */
+  public long getRejections(){
+    return rejections.sum();
+  }
+
+  private int find(int bucket, int hash, KeyBuffer key){
+    for(int way = 0; way < WAYS; way++){
+      int slot = bucket * WAYS + way;
+      ByteBuffer arena = arena(slot);
+      int offset = offset(slot);
+
+      if(arena.getInt(offset + HEADER_HASH) == hash && arena.getInt(offset + HEADER_KEY_LENGTH) == key.length()){
+        ByteBuffer storedKey = arena.duplicate();
+        storedKey.position(offset + HEADER_SIZE).limit(offset + HEADER_SIZE + key.length());
+
+        if(storedKey.mismatch(key.asByteBuffer()) == -1)
+          return slot;
+      }
+    }
+
+    return -1;
+  }
+
+  private int findEmpty(int bucket){
+    //Keys always contain the language separators, so a key length of 0 can only be an empty slot
+    for(int way = 0; way < WAYS; way++){
+      int slot = bucket * WAYS + way;
+      if(arena(slot).getInt(offset(slot) + HEADER_KEY_LENGTH) == 0)
+        return slot;
+    }
+
+    return -1;
+  }
+
+  private int evict(int bucket){
+    while(true){
+      int way = hands[bucket];
+      hands[bucket] = (byte) ((way + 1) % WAYS);
+
+      int slot = bucket * WAYS + way;
+      if(referenced[slot] == 0)
+        return slot;
+
+      referenced[slot] = 0;
+    }
+  }
+
+  private ByteBuffer arena(int slot){
+    return arenas[slot / slotsPerArena];
+  }
+
+  private int offset(int slot){
+    return (slot % slotsPerArena) * slotSize;
+  }
+
+  /**
+   * Buffer which a key (the languages and sentence, separated by null characters) is UTF-8 encoded into.
+   * Each thread reuses its own buffer, which only grows as large as the largest key that can fit in a slot.
+   */
+  private static final class KeyBuffer {
+    private byte[] bytes = new byte[256];
+    private ByteBuffer wrapped = ByteBuffer.wrap(bytes);
+    private int length;
+
+    private void encode(String sourceLanguage, String targetLanguage, String sentence){
+      length = 0;
+      ensureCapacity(3 * (sourceLanguage.length() + targetLanguage.length() + sentence.length()) + 2);
+
+      append(sourceLanguage);
+      bytes[length++] = 0;
+      append(targetLanguage);
+      bytes[length++] = 0;
+      append(sentence);
+    }
+
+    private void append(String s){
+      for(int i = 0; i < s.length(); i++){
+        char c = s.charAt(i);
+
+        if(c < 0x80){
+          bytes[length++] = (byte) c;
+        }else if(c < 0x800){
+          bytes[length++] = (byte) (0xC0 | (c >> 6));
+          bytes[length++] = (byte) (0x80 | (c & 0x3F));
+        }else if(Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))){
+          int cp = Character.toCodePoint(c, s.charAt(++i));
+          bytes[length++] = (byte) (0xF0 | (cp >> 18));
+          bytes[length++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+          bytes[length++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+          bytes[length++] = (byte) (0x80 | (cp & 0x3F));
+        }else if(Character.isSurrogate(c)){
+          bytes[length++] = '?';    //Unpaired surrogate, replaced as String.getBytes() would
+        }else{
+          bytes[length++] = (byte) (0xE0 | (c >> 12));
+          bytes[length++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+          bytes[length++] = (byte) (0x80 | (c & 0x3F));
+        }
+      }
+    }
+
+    private void ensureCapacity(int capacity){
+      if(bytes.length < capacity){
+        bytes = new byte[Math.max(capacity, bytes.length * 2)];
+        wrapped = ByteBuffer.wrap(bytes);
+      }
+    }
+
+    private int length(){
+      return length;
+    }
+
+    private ByteBuffer asByteBuffer(){
+      wrapped.clear().limit(length);
+      return wrapped;
+    }
+
+    private int hash(){
+      int h = 1;
+      for(int i = 0; i < length; i++)
+        h = 31 * h + bytes[i];
+
+      //This has poor distribution in the low bits, so mix the result
+      h ^= h >>> 16;
+      h *= 0x85ebca6b;
+      h ^= h >>> 13;
+      h *= 0xc2b2ae35;
+      h ^= h >>> 16;
+
+      return h;
+    }
+  }
+}
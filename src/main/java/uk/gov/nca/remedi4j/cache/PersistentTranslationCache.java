@@ -0,0 +1,486 @@
+/*
+National Crime Agency (c) Crown Copyright 2018
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+   http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package uk.gov.nca.remedi4j.cache;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.LongSupplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.gov.nca.remedi4j.exceptions.RemediRuntimeException;
+
+/**
+ * Disk-backed {@link TranslationCache}, which persists translations across restarts.
+ *
+ * Entries are appended to a log file, and located using an open-addressing hash index (keyed on the
+ * 128-bit MD5 hash of the languages and sentence) which is memory-mapped from a second file. An
+ * in-memory Bloom filter is built from the index when the cache is opened, so that most misses can
+ * be answered without touching the disk. Building the filter scans every slot of the index, but not
+ * the log, so opening the cache takes time proportional to its capacity rather than to the size of
+ * the cached translations.
+ *
+ * Several processes on the same host may open the same cache directory concurrently. Writes are
+ * serialized using a file lock, and readers in other processes will see new entries once their Bloom
+ * filter is refreshed (which happens at most once per second, when the index has changed). Refreshing
+ * only reads the records appended to the log since the previous refresh, and is skipped by other
+ * threads whilst one thread is refreshing, so it doesn't stall lookups. Processes which only need to
+ * read the cache can open it in read-only mode.
+ *
+ * Only one instance per process should be opened on a given directory.
+ *
+ * The index has a fixed capacity, chosen when the cache is first created. Entries are never evicted:
+ * once the index is 75% full, further calls to {@link #put(String, String, String, String)} are
+ * ignored (a warning is logged the first time), and the cache must be deleted and recreated with a
+ * larger capacity to cache further translations.
+ */
+public class PersistentTranslationCache implements TranslationCache {
+  private static final int MAGIC = 0x52454D49;   //REMI
+  private static final int VERSION = 1;
+
+  private static final int HEADER_SIZE = 16;
+  private static final int HEADER_MAGIC = 0;
+  private static final int HEADER_VERSION = 4;
+  private static final int HEADER_CAPACITY = 8;
+  private static final int HEADER_COUNT = 12;
+
+  private static final int SLOT_SIZE = 24;
+  private static final int SLOT_HI = 0;
+  private static final int SLOT_LO = 8;
+  private static final int SLOT_OFFSET = 16;
+
+  private static final int LOG_HEADER_SIZE = 8;
+  private static final int RECORD_HEADER_SIZE = 8;
+  private static final double MAX_LOAD_FACTOR = 0.75;
+  private static final int MAX_CAPACITY = 1 << 26;   //Keeps the index within the 2GB limit of a single mapping
+  private static final int BLOOM_BITS_PER_ENTRY = 10;
+  private static final long BLOOM_REFRESH_INTERVAL = 1_000_000_000L;
+
+  /**
+   * Name of the log file within the cache directory
+   */
+  public static final String LOG_FILE = "translations.log";
+
+  /**
+   * Name of the index file within the cache directory
+   */
+  public static final String INDEX_FILE = "translations.idx";
+
+  //Slot offsets are 8-byte aligned, so can be accessed atomically with release/acquire semantics
+  private static final VarHandle LONG_VIEW = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+  private static final ThreadLocal<MessageDigest> md5 = ThreadLocal.withInitial(() -> {
+    try {
+      return MessageDigest.getInstance("MD5");
+    } catch (NoSuchAlgorithmException e) {
+      throw new RemediRuntimeException(e);
+    }
+  });
+
+  private final boolean readOnly;
+  private final LongSupplier ticker;
+  private final FileChannel logChannel;
+  private final FileChannel indexChannel;
+  private final MappedByteBuffer index;
+  private final int capacity;
+  private final int mask;
+
+  private volatile BloomFilter bloomFilter;
+  private volatile int bloomCount;
+  private volatile long bloomRefreshed;
+  private long bloomLogPosition;
+  private final AtomicBoolean bloomRefreshing = new AtomicBoolean(false);
+  private boolean fullWarned = false;
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(PersistentTranslationCache.class);
+
+  /**
+   * Open (or create) a writable cache in the given directory
+   *
+   * @param directory     The directory to store the cache in
+   * @param maxEntries    The maximum number of entries the cache can hold, if it is being created
+   * @throws IOException  If the cache can't be opened
+   */
+  public PersistentTranslationCache(Path directory, int maxEntries) throws IOException {
+    this(directory, maxEntries, false);
+  }
+
+  /**
+   * Open (or create) a cache in the given directory
+   *
+   * @param directory     The directory to store the cache in
+   * @param maxEntries    The maximum number of entries the cache can hold, if it is being created
+   * @param readOnly      Whether the cache should be opened in read-only mode, in which case it must already exist
+   * @throws IOException  If the cache can't be opened
+   */
+  public PersistentTranslationCache(Path directory, int maxEntries, boolean readOnly) throws IOException {
+    this(directory, maxEntries, readOnly, System::nanoTime);
+  }
+
+  /**
+   * Open (or create) a cache in the given directory, using the provided source of nanosecond
+   * time to decide when to refresh the Bloom filter
+   */
+  PersistentTranslationCache(Path directory, int maxEntries, boolean readOnly, LongSupplier ticker) throws IOException {
+    this.readOnly = readOnly;
+    this.ticker = ticker;
+
+    if(readOnly){
+      logChannel = FileChannel.open(directory.resolve(LOG_FILE), StandardOpenOption.READ);
+      indexChannel = FileChannel.open(directory.resolve(INDEX_FILE), StandardOpenOption.READ);
+    }else{
+      Files.createDirectories(directory);
+      logChannel = FileChannel.open(directory.resolve(LOG_FILE),
+          StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+      indexChannel = FileChannel.open(directory.resolve(INDEX_FILE),
+          StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+    }
+
+    try {
+      if(!readOnly) {
+        FileLock lock = indexChannel.lock();
+        try {
+          initialize(maxEntries);
+        }finally {
+          lock.release();
+        }
+      }
+
+      ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+      indexChannel.read(header, 0);
+      if(header.getInt(HEADER_MAGIC) != MAGIC || header.getInt(HEADER_VERSION) != VERSION)
+        throw new IOException("Not a translation cache, or unsupported version: " + directory);
+
+      capacity = header.getInt(HEADER_CAPACITY);
+      mask = capacity - 1;
+
+      index = indexChannel.map(readOnly ? FileChannel.MapMode.READ_ONLY : FileChannel.MapMode.READ_WRITE,
+          0, HEADER_SIZE + (long) capacity * SLOT_SIZE);
+
+      buildBloomFilter();
+    }catch (IOException e){
+      logChannel.close();
+      indexChannel.close();
+      throw e;
+    }
+  }
+
+  private void initialize(int maxEntries) throws IOException {
+    if(indexChannel.size() == 0){
+      long slots = Math.min(MAX_CAPACITY, (long) Math.ceil(Math.max(1, maxEntries) / MAX_LOAD_FACTOR));
+      int cap = Integer.highestOneBit((int) slots * 2 - 1);
+
+      ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+      header.putInt(HEADER_MAGIC, MAGIC);
+      header.putInt(HEADER_VERSION, VERSION);
+      header.putInt(HEADER_CAPACITY, cap);
+      header.putInt(HEADER_COUNT, 0);
+      indexChannel.write(header, 0);
+
+      //Extend the file to its full size, so that all slots are zero (i.e. empty)
+      indexChannel.write(ByteBuffer.allocate(1), HEADER_SIZE + (long) cap * SLOT_SIZE - 1);
+    }
+
+    if(logChannel.size() == 0){
+      //Write a header so that an offset of 0 is never a valid record, and can mark an empty slot
+      ByteBuffer header = ByteBuffer.allocate(LOG_HEADER_SIZE);
+      header.putInt(0, MAGIC);
+      header.putInt(4, VERSION);
+      logChannel.write(header, 0);
+    }
+  }
+
+  @Override
+  public String get(String sourceLanguage, String targetLanguage, String sentence) {
+    byte[] key = getKey(sourceLanguage, targetLanguage, sentence);
+    long[] hash = hash(key);
+
+    if(!bloomFilter.mightContain(hash[0], hash[1])){
+      refreshBloomFilter();
+      if(!bloomFilter.mightContain(hash[0], hash[1]))
+        return null;
+    }
+
+    int slot = (int) (hash[1] & mask);
+    for(int i = 0; i < capacity; i++){
+      int pos = HEADER_SIZE + slot * SLOT_SIZE;
+      long offset = (long) LONG_VIEW.getAcquire(index, pos + SLOT_OFFSET);
+
+      if(offset == 0)
+        return null;
+
+      if(index.getLong(pos + SLOT_HI) == hash[0] && index.getLong(pos + SLOT_LO) == hash[1]){
+        try {
+          String translation = readRecord(offset, key);
+          if(translation != null)
+            return translation;
+        }catch (IOException e){
+          LOGGER.warn("Unable to read translation from cache", e);
+          return null;
+        }
+      }
+
+      slot = (slot + 1) & mask;
+    }
+
+    return null;
+  }
+
+  @Override
+  public void put(String sourceLanguage, String targetLanguage, String sentence, String translation) {
+    if(readOnly)
+      return;
+
+    byte[] key = getKey(sourceLanguage, targetLanguage, sentence);
+    byte[] value = translation.getBytes(StandardCharsets.UTF_8);
+    long[] hash = hash(key);
+
+    synchronized (this) {
+      try {
+        FileLock lock = indexChannel.lock();
+        try {
+          putLocked(key, value, hash);
+        }finally {
+          lock.release();
+        }
+      } catch (IOException e) {
+        LOGGER.warn("Unable to write translation to cache", e);
+      }
+    }
+  }
+
+  private void putLocked(byte[] key, byte[] value, long[] hash) throws IOException {
+    int count = index.getInt(HEADER_COUNT);
+    if(count >= capacity * MAX_LOAD_FACTOR) {
+      if(!fullWarned) {
+        LOGGER.warn("Persistent translation cache is full, no further translations will be cached");
+        fullWarned = true;
+      }
+      return;
+    }
+
+    int slot = (int) (hash[1] & mask);
+    int pos = HEADER_SIZE + slot * SLOT_SIZE;
+    while(index.getLong(pos + SLOT_OFFSET) != 0) {
+      if(index.getLong(pos + SLOT_HI) == hash[0] && index.getLong(pos + SLOT_LO) == hash[1])
+        return;   //Already cached (possibly by another process)
+
+      slot = (slot + 1) & mask;
+      pos = HEADER_SIZE + slot * SLOT_SIZE;
+    }
+
+    long offset = appendRecord(key, value);
+
+    //Publish the offset last, as a non-zero offset marks the slot as being in use. The release write
+    //ensures that a reader which sees the offset also sees the hash written before it.
+    index.putLong(pos + SLOT_HI, hash[0]);
+    index.putLong(pos + SLOT_LO, hash[1]);
+    LONG_VIEW.setRelease(index, pos + SLOT_OFFSET, offset);
+    index.putInt(HEADER_COUNT, count + 1);
+
+    bloomFilter.add(hash[0], hash[1]);
+  }
+
+  /**
+   * Get the number of entries currently held in the cache
+   */
+  public int size(){
+    return index.getInt(HEADER_COUNT);
+  }
+
+  /**
+   * Get the maximum number of entries that can be held in the cache
+   */
+  public int getMaxEntries(){
+    return (int) (capacity * MAX_LOAD_FACTOR);
+  }
+
+  @Override
+  public synchronized void close() {
+    try {
+      if(!readOnly) {
+        index.force();
+        logChannel.force(false);
+      }
+      logChannel.close();
+      indexChannel.close();
+    }catch (IOException e){
+      LOGGER.warn("Unable to close translation cache", e);
+    }
+  }
+
+  private long appendRecord(byte[] key, byte[] value) throws IOException {
+    long offset = logChannel.size();
+
+    ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + key.length + value.length);
+    record.putInt(key.length);
+    record.putInt(value.length);
+    record.put(key);
+    record.put(value);
+    record.flip();
+
+    long pos = offset;
+    while(record.hasRemaining())
+      pos += logChannel.write(record, pos);
+
+    return offset;
+  }
+
+  /**
+   * Read the translation for a key from the record at the given offset, or return null if the record
+   * is for a different key or isn't a valid record (e.g. because the log is corrupt or truncated)
+   */
+  private String readRecord(long offset, byte[] key) throws IOException {
+    long end = logChannel.size();
+    if(offset < LOG_HEADER_SIZE || end - offset < RECORD_HEADER_SIZE)
+      return null;
+
+    ByteBuffer lengths = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+    readFully(lengths, offset);
+
+    int keyLength = lengths.getInt(0);
+    int valueLength = lengths.getInt(4);
+    if(keyLength != key.length || !isValidRecord(keyLength, valueLength, end - offset))
+      return null;
+
+    ByteBuffer record = ByteBuffer.allocate(keyLength + valueLength);
+    readFully(record, offset + RECORD_HEADER_SIZE);
+
+    byte[] recordKey = new byte[keyLength];
+    record.get(recordKey);
+    if(!Arrays.equals(recordKey, key))
+      return null;
+
+    return new String(record.array(), keyLength, valueLength, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Check whether a record with the given lengths fits within the remaining bytes of the log, and can be
+   * read into a single buffer
+   */
+  private static boolean isValidRecord(int keyLength, int valueLength, long remaining){
+    long length = (long) keyLength + valueLength;
+    return keyLength >= 0 && valueLength >= 0 && length <= Integer.MAX_VALUE
+        && RECORD_HEADER_SIZE + length <= remaining;
+  }
+
+  private void readFully(ByteBuffer buffer, long position) throws IOException {
+    long pos = position;
+    while(buffer.hasRemaining()){
+      int read = logChannel.read(buffer, pos);
+      if(read < 0)
+        throw new IOException("Unexpected end of translation cache log");
+
+      pos += read;
+    }
+    buffer.flip();
+  }
+
+  /**
+   * Build the Bloom filter from the index, holding a shared lock so that no entries are written
+   * between reading the size of the log and scanning the index
+   */
+  private void buildBloomFilter() throws IOException {
+    FileLock lock = indexChannel.lock(0, Long.MAX_VALUE, true);
+    try {
+      BloomFilter bf = new BloomFilter((long) (capacity * MAX_LOAD_FACTOR), BLOOM_BITS_PER_ENTRY);
+
+      for(int slot = 0; slot < capacity; slot++){
+        int pos = HEADER_SIZE + slot * SLOT_SIZE;
+        if(index.getLong(pos + SLOT_OFFSET) != 0)
+          bf.add(index.getLong(pos + SLOT_HI), index.getLong(pos + SLOT_LO));
+      }
+
+      bloomFilter = bf;
+      bloomCount = index.getInt(HEADER_COUNT);
+      bloomLogPosition = Math.max(LOG_HEADER_SIZE, logChannel.size());
+      bloomRefreshed = ticker.getAsLong();
+    }finally {
+      lock.release();
+    }
+  }
+
+  /**
+   * Add any entries written by other processes to the Bloom filter, by reading the records appended to
+   * the log since the last refresh. If another thread is already refreshing, this returns immediately.
+   */
+  private void refreshBloomFilter(){
+    int count = index.getInt(HEADER_COUNT);
+    if(count == bloomCount || ticker.getAsLong() - bloomRefreshed <= BLOOM_REFRESH_INTERVAL)
+      return;
+
+    if(!bloomRefreshing.compareAndSet(false, true))
+      return;
+
+    try {
+      //Records are appended before the count is incremented, so every counted entry is now in the log
+      long end = logChannel.size();
+      long pos = bloomLogPosition;
+      ByteBuffer lengths = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+
+      while(end - pos >= RECORD_HEADER_SIZE){
+        lengths.clear();
+        readFully(lengths, pos);
+
+        //A record that doesn't fit is either still being written, or corrupt. Either way, treat it as the
+        //end of the log, and try again from it next time.
+        int keyLength = lengths.getInt(0);
+        int valueLength = lengths.getInt(4);
+        if(!isValidRecord(keyLength, valueLength, end - pos))
+          break;
+
+        ByteBuffer key = ByteBuffer.allocate(keyLength);
+        readFully(key, pos + RECORD_HEADER_SIZE);
+
+        long[] hash = hash(key.array());
+        bloomFilter.add(hash[0], hash[1]);
+
+        pos += (long) RECORD_HEADER_SIZE + keyLength + valueLength;
+      }
+
+      bloomLogPosition = pos;
+      bloomCount = count;
+    }catch (IOException e){
+      LOGGER.warn("Unable to refresh translation cache Bloom filter", e);
+    }finally {
+      bloomRefreshed = ticker.getAsLong();
+      bloomRefreshing.set(false);
+    }
+  }
+
+  private static byte[] getKey(String sourceLanguage, String targetLanguage, String sentence){
+    return (sourceLanguage + '\u0000' + targetLanguage + '\u0000' + sentence).getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static long[] hash(byte[] key){
+    ByteBuffer digest = ByteBuffer.wrap(md5.get().digest(key));
+    return new long[]{digest.getLong(), digest.getLong()};
+  }
+}
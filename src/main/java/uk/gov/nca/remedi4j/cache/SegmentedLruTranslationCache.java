@@ -0,0 +1,231 @@
+/*
+National Crime Agency (c) Crown Copyright 2018
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+   http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package uk.gov.nca.remedi4j.cache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * In-memory {@link TranslationCache} with a bounded number of entries, using segmented LRU eviction.
+ *
+ * New entries are added to a probationary segment, and are promoted to a protected segment if they
+ * are accessed again. Entries are evicted from the probationary segment first, so sentences that are
+ * only seen once (which is most of them) can't push out frequently repeated sentences such as
+ * disclaimers and signatures.
+ *
+ * The cache is split into a number of independently locked stripes to reduce contention.
+ */
+public class SegmentedLruTranslationCache implements TranslationCache {
+  private final Stripe[] stripes;
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+
+  /**
+   * Default proportion of each stripe reserved for the protected segment
+   */
+  public static final double DEFAULT_PROTECTED_RATIO = 0.8;
+
+  /**
+   * Create a new cache holding up to the specified number of entries
+   *
+   * @param maxEntries    The maximum number of entries
+   */
+  public SegmentedLruTranslationCache(int maxEntries){
+    this(maxEntries, DEFAULT_PROTECTED_RATIO, Runtime.getRuntime().availableProcessors() * 4);
+  }
+
+  /**
+   * Create a new cache
+   *
+   * @param maxEntries        The maximum number of entries
+   * @param protectedRatio    The proportion of the cache reserved for the protected segment (between 0 and 1)
+   * @param stripes           The number of stripes to split the cache into
+   */
+  public SegmentedLruTranslationCache(int maxEntries, double protectedRatio, int stripes){
+    if(maxEntries < 1)
+      throw new IllegalArgumentException("Cache must be able to hold at least one entry");
+
+    int stripeCount = Math.max(1, Math.min(stripes, maxEntries));
+    this.stripes = new Stripe[stripeCount];
+
+    for(int i = 0; i < stripeCount; i++){
+      int capacity = maxEntries / stripeCount + (i < maxEntries % stripeCount ? 1 : 0);
+      this.stripes[i] = new Stripe(capacity, (int) (capacity * protectedRatio));
+    }
+  }
+
+  @Override
+  public String get(String sourceLanguage, String targetLanguage, String sentence) {
+    Key key = new Key(sourceLanguage, targetLanguage, sentence);
+    String translation = stripeFor(key).get(key);
+
+    if(translation == null){
+      misses.increment();
+    }else{
+      hits.increment();
+    }
+
+    return translation;
+  }
+
+  @Override
+  public void put(String sourceLanguage, String targetLanguage, String sentence, String translation) {
+    Key key = new Key(sourceLanguage, targetLanguage, sentence);
+    stripeFor(key).put(key, translation);
+  }
+
+  /**
+   * Get the number of entries currently held in the cache
+   */
+  public int size(){
+    int size = 0;
+    for(Stripe s : stripes)
+      size += s.size();
+
+    return size;
+  }
+
+  /**
+   * Get the number of lookups which found a cached translation
+   */
+  public long getHits(){
+    return hits.sum();
+  }
+
+  /**
+   * Get the number of lookups which didn't find a cached translation
+   */
+  public long getMisses(){
+    return misses.sum();
+  }
+
+  /**
+   * Get the number of entries which have been evicted from the cache
+   */
+  public long getEvictions(){
+    return evictions.sum();
+  }
+
+  private Stripe stripeFor(Key key){
+    int h = key.hashCode();
+    return stripes[Math.floorMod(h ^ (h >>> 16), stripes.length)];
+  }
+
+  private class Stripe {
+    private final int capacity;
+    private final int protectedCapacity;
+
+    private final Map<Key, String> probation = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<Key, String> protectedSegment = new LinkedHashMap<>(16, 0.75f, true);
+
+    private Stripe(int capacity, int protectedCapacity){
+      this.capacity = capacity;
+      this.protectedCapacity = protectedCapacity;
+    }
+
+    private synchronized String get(Key key){
+      String translation = protectedSegment.get(key);
+      if(translation != null)
+        return translation;
+
+      translation = probation.remove(key);
+      if(translation != null)
+        promote(key, translation);
+
+      return translation;
+    }
+
+    private synchronized void put(Key key, String translation){
+      if(protectedSegment.containsKey(key)){
+        protectedSegment.put(key, translation);
+        return;
+      }
+
+      probation.put(key, translation);
+
+      if(probation.size() + protectedSegment.size() > capacity) {
+        removeEldest(probation.isEmpty() ? protectedSegment : probation);
+        evictions.increment();
+      }
+    }
+
+    private synchronized int size(){
+      return probation.size() + protectedSegment.size();
+    }
+
+    private void promote(Key key, String translation){
+      if(protectedCapacity == 0){
+        probation.put(key, translation);
+        return;
+      }
+
+      protectedSegment.put(key, translation);
+
+      //Demote the least recently used protected entry back to probation
+      if(protectedSegment.size() > protectedCapacity){
+        Iterator<Map.Entry<Key, String>> iter = protectedSegment.entrySet().iterator();
+        Map.Entry<Key, String> eldest = iter.next();
+        iter.remove();
+
+        probation.put(eldest.getKey(), eldest.getValue());
+      }
+    }
+
+    private void removeEldest(Map<Key, String> segment){
+      Iterator<Key> iter = segment.keySet().iterator();
+      iter.next();
+      iter.remove();
+    }
+  }
+
+  private static final class Key {
+    private final String sourceLanguage;
+    private final String targetLanguage;
+    private final String sentence;
+    private final int hash;
+
+    private Key(String sourceLanguage, String targetLanguage, String sentence){
+      this.sourceLanguage = sourceLanguage;
+      this.targetLanguage = targetLanguage;
+      this.sentence = sentence;
+      this.hash = Objects.hash(sourceLanguage, targetLanguage, sentence);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if(!(obj instanceof Key))
+        return false;
+
+      Key k = (Key) obj;
+
+      return hash == k.hash &&
+          Objects.equals(sentence, k.sentence) &&
+          Objects.equals(sourceLanguage, k.sourceLanguage) &&
+          Objects.equals(targetLanguage, k.targetLanguage);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+  }
+}
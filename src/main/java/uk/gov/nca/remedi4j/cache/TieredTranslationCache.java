@@ -0,0 +1,68 @@
+/*
+National Crime Agency (c) Crown Copyright 2018
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+   http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package uk.gov.nca.remedi4j.cache;
+
+/**
+ * {@link TranslationCache} made up of two tiers, typically a small fast in-memory cache in front of
+ * a larger but slower cache (e.g. {@link PersistentTranslationCache}).
+ *
+ * Lookups check the first tier, then the second tier, and entries found in the second tier are
+ * copied into the first tier. New entries are added to both tiers.
+ */
+public class TieredTranslationCache implements TranslationCache {
+  private final TranslationCache first;
+  private final TranslationCache second;
+
+  /**
+   * Create a new tiered cache
+   *
+   * @param first     The first (fastest) tier
+   * @param second    The second tier
+   */
+  public TieredTranslationCache(TranslationCache first, TranslationCache second){
+    this.first = first;
+    this.second = second;
+  }
+
+  @Override
+  public String get(String sourceLanguage, String targetLanguage, String sentence) {
+    String translation = first.get(sourceLanguage, targetLanguage, sentence);
+    if(translation != null)
+      return translation;
+
+    translation = second.get(sourceLanguage, targetLanguage, sentence);
+    if(translation != null)
+      first.put(sourceLanguage, targetLanguage, sentence, translation);
+
+    return translation;
+  }
+
+  @Override
+  public void put(String sourceLanguage, String targetLanguage, String sentence, String translation) {
+    first.put(sourceLanguage, targetLanguage, sentence, translation);
+    second.put(sourceLanguage, targetLanguage, sentence, translation);
+  }
+
+  @Override
+  public void close() {
+    try {
+      first.close();
+    }finally {
+      second.close();
+    }
+  }
+}
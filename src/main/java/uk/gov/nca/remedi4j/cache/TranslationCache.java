@@ -0,0 +1,55 @@
+/*
+National Crime Agency (c) Crown Copyright 2018
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+   http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package uk.gov.nca.remedi4j.cache;
+
+/**
+ * Cache of sentence translations, which can be used by the client to avoid sending sentences
+ * that have already been translated to the server again.
+ *
+ * Implementations must be safe to use from multiple threads.
+ */
+public interface TranslationCache extends AutoCloseable {
+
+  /**
+   * Get the cached translation of a sentence
+   *
+   * @param sourceLanguage    The language of the sentence
+   * @param targetLanguage    The language the sentence was translated into
+   * @param sentence          The sentence
+   * @return
+   *    The cached translation, or null if the sentence isn't in the cache
+   */
+  String get(String sourceLanguage, String targetLanguage, String sentence);
+
+  /**
+   * Add the translation of a sentence to the cache
+   *
+   * @param sourceLanguage    The language of the sentence
+   * @param targetLanguage    The language the sentence was translated into
+   * @param sentence          The sentence
+   * @param translation       The translation of the sentence
+   */
+  void put(String sourceLanguage, String targetLanguage, String sentence, String translation);
+
+  /**
+   * Release any resources held by the cache. By default, this does nothing.
+   */
+  @Override
+  default void close() {
+    //Do nothing
+  }
+}
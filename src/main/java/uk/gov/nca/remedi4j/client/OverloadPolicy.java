@@ -0,0 +1,34 @@
+/*
+National Crime Agency (c) Crown Copyright 2018
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+   http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package uk.gov.nca.remedi4j.client;
+
+/**
+ * What a {@link RemediClient} should do with a request when the concurrency limit for a server has
+ * been reached
+ */
+public enum OverloadPolicy {
+  /**
+   * Queue the request until the server has capacity
+   */
+  QUEUE,
+
+  /**
+   * Reject the request immediately, by failing its future with a
+   * {@link uk.gov.nca.remedi4j.exceptions.RequestRejectedException}
+   */
+  REJECT
+}
@@ -17,43 +17,120 @@ limitations under the License.
 package uk.gov.nca.remedi4j.client;
 
 import java.net.http.HttpClient;
-import java.net.http.WebSocket;
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Optional;
+import java.util.Objects;
 import java.util.Set;
+import java.util.StringJoiner;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.time.Duration;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Function;
 import java.util.function.Supplier;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import uk.gov.nca.remedi4j.client.internal.CachingTranslator;
+import uk.gov.nca.remedi4j.client.internal.CoalescingTranslator;
+import uk.gov.nca.remedi4j.client.internal.ConcurrencyLimiter;
+import uk.gov.nca.remedi4j.client.internal.ConnectionPool;
+import uk.gov.nca.remedi4j.client.internal.Futures;
+import uk.gov.nca.remedi4j.client.internal.EndpointHealth;
+import uk.gov.nca.remedi4j.client.internal.HedgingTranslator;
+import uk.gov.nca.remedi4j.client.internal.LatencyTracker;
+import uk.gov.nca.remedi4j.client.internal.PendingRequests;
+import uk.gov.nca.remedi4j.client.internal.RemediConnection;
 import uk.gov.nca.remedi4j.client.internal.RemediListener;
+import uk.gov.nca.remedi4j.client.internal.SingleFlight;
+import uk.gov.nca.remedi4j.client.internal.ShardingTranslator;
+import uk.gov.nca.remedi4j.client.internal.SingleFlightTranslator;
+import uk.gov.nca.remedi4j.client.internal.StringBuilderPool;
+import uk.gov.nca.remedi4j.client.internal.SupportedLanguageCache;
+import uk.gov.nca.remedi4j.client.internal.TranslationRouter;
+import uk.gov.nca.remedi4j.client.internal.Translator;
 import uk.gov.nca.remedi4j.data.BaseMessage;
 import uk.gov.nca.remedi4j.data.PostProcessorRequest;
 import uk.gov.nca.remedi4j.data.PostProcessorResponse;
 import uk.gov.nca.remedi4j.data.PreProcessorRequest;
 import uk.gov.nca.remedi4j.data.PreProcessorResponse;
+import uk.gov.nca.remedi4j.data.ProcessorRequest;
 import uk.gov.nca.remedi4j.data.ProcessorResponse;
+import uk.gov.nca.remedi4j.data.StatusCode;
 import uk.gov.nca.remedi4j.data.SupportedLanguageRequest;
 import uk.gov.nca.remedi4j.data.SupportedLanguageResponse;
 import uk.gov.nca.remedi4j.data.TranslationRequest;
 import uk.gov.nca.remedi4j.data.TranslationResponse;
 import uk.gov.nca.remedi4j.exceptions.RemediRuntimeException;
-import uk.gov.nca.remedi4j.utils.MessageUtils;
+import uk.gov.nca.remedi4j.exceptions.RequestRejectedException;
+import uk.gov.nca.remedi4j.exceptions.RequestTimeoutException;
+import uk.gov.nca.remedi4j.exceptions.UnsupportedLanguagePairException;
+import uk.gov.nca.remedi4j.utils.LanguagePairTable;
+import uk.gov.nca.remedi4j.utils.ProcessorUtils;
+import uk.gov.nca.remedi4j.utils.SupportedLanguageUtils;
+import uk.gov.nca.remedi4j.utils.TextUtils;
 
 /**
  * Simple REMEDI client allowing for the translation of text.
+ *
+ * Requests are sent asynchronously, and the returned futures are completed by the
+ * listener as soon as the corresponding response is received from the server.
+ *
+ * Every request has a deadline (see {@link RemediClientConfig#getRequestTimeout()}), after which
+ * its future fails with a {@link RequestTimeoutException}. Cancelling a returned future abandons
+ * the request, removing it from the pending requests and freeing its place in the queue.
+ *
+ * If a connection is dropped (e.g. during a rolling restart of the servers), it is replaced in the
+ * background, and any requests awaiting a response over it are sent again over another connection.
  */
 public class RemediClient implements AutoCloseable{
 
-  private WebSocket wsPreProcessingServer = null;
-  private WebSocket wsTranslationServer;
-  private WebSocket wsPostProcessingServer = null;
-  private RemediListener listener = new RemediListener();
+  private ConnectionPool preProcessingServer = null;
+  private TranslationRouter translationServers;
+  private ConnectionPool postProcessingServer = null;
+
+  private final PendingRequests<String, PreProcessorResponse> preProcessorRequests = new PendingRequests<>();
+  private final PendingRequests<Integer, TranslationResponse> translationRequests = new PendingRequests<>();
+  private final PendingRequests<String, PostProcessorResponse> postProcessorRequests = new PendingRequests<>();
+  private final Map<Integer, ConnectionPool> translationRoutes = new ConcurrentHashMap<>();
+  private final StringBuilderPool bufferPool = new StringBuilderPool();
+  private final Translator translator;
+  private final SingleFlight<List<String>, PreProcessorResponse> preProcessorFlights;
+  private final SingleFlight<List<String>, PostProcessorResponse> postProcessorFlights;
+  private final SupportedLanguageCache supportedLanguages;
+  private final int processorChunkSize;
+  private final ScheduledExecutorService scheduler;
+  private final Executor executor;
+  private final long requestTimeoutNanos;
+  private final LatencyTracker latencyTracker;
+  private final double adaptiveTimeoutQuantile;
+  private final double adaptiveTimeoutMultiplier;
+  private final long supportedLanguagesTimeoutNanos;
+  private final long healthCheckTimeoutNanos;
+  private final double outlierLatencyFactor;
+  private final long outlierMinLatencyNanos;
+  private final Duration closeTimeout;
+
+  private final AtomicInteger outstanding = new AtomicInteger();
+  private final Set<CompletableFuture<?>> accepted = ConcurrentHashMap.newKeySet();
+  private final CompletableFuture<Void> drained = new CompletableFuture<>();
+  private volatile boolean closing = false;
+  private CompletableFuture<Void> closed = null;
+
+  private static final long MIN_ADAPTIVE_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(1);
+  private static final int MAX_RESENDS = 3;
+  private static final Function<RemediConnection, Runnable> NOT_REGISTERED = conn -> () -> {};
 
-  private static final long INITIAL_WAIT_TIME = 250;
-  private static final int BACKOFF_FACTOR = 2;
-  private static final long MAX_WAIT_TIME = 4000;
   private static final Logger LOGGER = LoggerFactory.getLogger(RemediClient.class);
 
   /**
@@ -77,63 +154,302 @@ public class RemediClient implements AutoCloseable{
    *    URI of the post-processing server (can be null)
    */
   public RemediClient(URI preProcessingServer, URI translationServer, URI postProcessingServer){
-    if(translationServer == null)
+    this(preProcessingServer, translationServer, postProcessingServer, new RemediClientConfig());
+  }
+
+  /**
+   * Initialize a new client with connections to the various REMEDI servers, using the provided
+   * configuration. All connections share a single HTTP client and executor.
+   *
+   * @param preProcessingServer
+   *    URI of the pre-processing server (can be null)
+   * @param translationServer
+   *    URI of the translation server or load balancer (must not be null)
+   * @param postProcessingServer
+   *    URI of the post-processing server (can be null)
+   * @param config
+   *    Configuration for the client
+   */
+  public RemediClient(URI preProcessingServer, URI translationServer, URI postProcessingServer, RemediClientConfig config){
+    this(preProcessingServer, translationServer == null ? null : List.of(translationServer), postProcessingServer, config);
+  }
+
+  /**
+   * Initialize a new client with connections to the various REMEDI servers, including multiple
+   * translation servers, using the provided configuration. All connections share a single HTTP client
+   * and executor.
+   *
+   * Each translation request is sent to the least loaded translation server. Load is estimated from
+   * the number of requests this client has outstanding to each server, and from the decoder load that
+   * each server reports in its translation responses.
+   *
+   * @param preProcessingServer
+   *    URI of the pre-processing server (can be null)
+   * @param translationServers
+   *    URIs of the translation servers (must not be null or empty)
+   * @param postProcessingServer
+   *    URI of the post-processing server (can be null)
+   * @param config
+   *    Configuration for the client
+   */
+  public RemediClient(URI preProcessingServer, List<URI> translationServers, URI postProcessingServer, RemediClientConfig config){
+    if(translationServers == null || translationServers.isEmpty()
+        || translationServers.stream().anyMatch(Objects::isNull))   //Immutable lists don't permit contains(null)
       throw new IllegalArgumentException("Translation server URI must be provided");
 
-    if(preProcessingServer != null) {
-      wsPreProcessingServer = HttpClient.newHttpClient()
-          .newWebSocketBuilder()
-          .buildAsync(preProcessingServer, listener)
-          .join();
-    }
+    HttpClient.Builder builder = HttpClient.newBuilder();
+    if(config.getExecutor() != null)
+      builder.executor(config.getExecutor());
 
-    wsTranslationServer = HttpClient.newHttpClient()
-        .newWebSocketBuilder()
-        .buildAsync(translationServer, listener)
-        .join();
+    HttpClient httpClient = builder.build();
 
-    if(postProcessingServer != null) {
-      wsPostProcessingServer = HttpClient.newHttpClient()
-          .newWebSocketBuilder()
-          .buildAsync(postProcessingServer, listener)
-          .join();
+    //Responses are handed off to this executor, so that callers' actions don't run on the WebSocket threads
+    this.executor = config.getExecutor() != null ? config.getExecutor() : ForkJoinPool.commonPool();
+
+    ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, r -> {
+      Thread thread = new Thread(r, "remedi4j-scheduler");
+      thread.setDaemon(true);
+      return thread;
+    });
+    executor.setRemoveOnCancelPolicy(true);   //Most timeouts are cancelled, so don't hold on to them
+    this.scheduler = executor;
+
+    this.requestTimeoutNanos = config.getRequestTimeout().toNanos();
+    this.latencyTracker = config.isAdaptiveTimeouts() ? new LatencyTracker(50, 1000) : null;
+    this.adaptiveTimeoutQuantile = config.getAdaptiveTimeoutQuantile();
+    this.adaptiveTimeoutMultiplier = config.getAdaptiveTimeoutMultiplier();
+
+    if(preProcessingServer != null)
+      this.preProcessingServer = newConnectionPool(preProcessingServer, httpClient, config, false);
+
+    List<ConnectionPool> translationPools = new ArrayList<>(translationServers.size());
+    for(URI uri : translationServers)
+      translationPools.add(newConnectionPool(uri, httpClient, config, translationServers.size() > 1));
+    this.translationServers = new TranslationRouter(translationPools);
+
+    if(postProcessingServer != null)
+      this.postProcessingServer = newConnectionPool(postProcessingServer, httpClient, config, false);
+
+    Translator t = new Translator() {
+      @Override
+      public CompletableFuture<TranslationResponse> translate(TranslationRequest request) {
+        return sendTranslationRequest(request, () -> {}, null);
+      }
+
+      @Override
+      public CompletableFuture<TranslationResponse> translate(TranslationRequest request, Runnable onSent) {
+        return sendTranslationRequest(request, onSent, null);
+      }
+
+      @Override
+      public CompletableFuture<TranslationResponse> translateDuplicate(TranslationRequest request, int originalJobId,
+          Runnable onSent) {
+        return sendTranslationRequest(request, onSent, translationRoutes.get(originalJobId));
+      }
+    };
+
+    //A hedged request sent to the same server would just queue behind the original, so only hedge across servers
+    if(config.getHedgingQuantile() > 0 && this.translationServers.isMultiServer())
+      t = new HedgingTranslator(t, scheduler, config.getHedgingQuantile(), config.getHedgingBudget());
+
+    if(config.getShardMinCharacters() > 0 && this.translationServers.isMultiServer())
+      t = new ShardingTranslator(t, r -> this.translationServers.countServers(r.getSourceLanguage(), r.getTargetLanguage()),
+          config.getShardMinCharacters());
+
+    if(!config.getCoalescingLinger().isZero())
+      t = new CoalescingTranslator(t, scheduler, config.getCoalescingLinger().toNanos(),
+          config.getCoalescingMaxBatchSize());
+
+    if(config.isDeduplicateRequests())
+      t = new SingleFlightTranslator(t);
+
+    if(config.getTranslationCache() != null)
+      t = new CachingTranslator(config.getTranslationCache(), t);
+
+    this.translator = t;
+
+    if(config.isDeduplicateRequests()){
+      preProcessorFlights = new SingleFlight<>();
+      postProcessorFlights = new SingleFlight<>();
+    }else{
+      preProcessorFlights = null;
+      postProcessorFlights = null;
     }
+
+    this.processorChunkSize = config.getProcessorChunkSize();
+    this.supportedLanguagesTimeoutNanos = config.getSupportedLanguagesTimeout().toNanos();
+    this.supportedLanguages = new SupportedLanguageCache(this::fetchSupportedLanguages,
+        config.getSupportedLanguagesTtl().toNanos());
+
+    this.healthCheckTimeoutNanos = config.getHealthCheckTimeout().toNanos();
+    this.outlierLatencyFactor = config.getOutlierLatencyFactor();
+    this.outlierMinLatencyNanos = config.getOutlierMinLatency().toNanos();
+    this.closeTimeout = config.getCloseTimeout();
+
+    long healthCheckInterval = config.getHealthCheckInterval().toNanos();
+    if(healthCheckInterval > 0)
+      scheduler.scheduleWithFixedDelay(this::checkHealth, healthCheckInterval, healthCheckInterval, TimeUnit.NANOSECONDS);
   }
 
   /**
-   * Query the available language pairs currently supported for translation by the servers
+   * Query the available language pairs currently supported for translation by the servers.
+   *
+   * The language pairs are cached, and refreshed in the background once they are older than
+   * {@link RemediClientConfig#getSupportedLanguagesTtl()}.
    *
    * @return
-   *    A map of source languages to target languages currently supported
+   *    An unmodifiable map of source languages to target languages currently supported
    */
   public CompletableFuture<Map<String, Set<String>>> getSupportedLanguages(){
-    LOGGER.info("Requesting supported languages from translation server");
+    return accept(() -> supportedLanguages.get().thenApply(LanguagePairTable::getLanguages));
+  }
 
-    return CompletableFuture.supplyAsync(() -> {
-      SupportedLanguageRequest req = new SupportedLanguageRequest();
+  /**
+   * Get a compiled table of the language pairs supported by any of the translation servers, which can be
+   * used to efficiently check whether a language pair is supported.
+   *
+   * The table is cached, and refreshed in the background once it is older than
+   * {@link RemediClientConfig#getSupportedLanguagesTtl()}.
+   */
+  public CompletableFuture<LanguagePairTable> getLanguagePairTable(){
+    return accept(supportedLanguages::get);
+  }
+
+  /**
+   * Send a supported languages request to every translation server, and update the routing table with
+   * the results. Servers which can't be queried keep the language pairs they previously supported, so
+   * the fetch only fails if none of the servers could be queried.
+   */
+  private CompletableFuture<LanguagePairTable> fetchSupportedLanguages(){
+    LOGGER.info("Requesting supported languages from translation servers");
+
+    List<ConnectionPool> pools = translationServers.getPools();
+    List<CompletableFuture<LanguagePairTable>> futures = new ArrayList<>(pools.size());
+    for(ConnectionPool pool : pools)
+      futures.add(fetchSupportedLanguages(pool));
+
+    return CompletableFuture.allOf(futures.stream()
+        .map(f -> f.handle((t, e) -> null))
+        .toArray(CompletableFuture[]::new)).thenApply(v -> {
+          List<LanguagePairTable> tables = new ArrayList<>(futures.size());
+          Throwable error = null;
+          for(CompletableFuture<LanguagePairTable> f : futures){
+            try{
+              tables.add(f.join());
+            }catch (CompletionException e){
+              tables.add(null);
+              error = e.getCause();
+            }
+          }
+
+          if(tables.stream().allMatch(Objects::isNull))
+            throw new CompletionException(error);
+
+          LOGGER.info("Finished supported languages requests");
+          return translationServers.setLanguagePairTables(tables);
+        });
+  }
+
+  /**
+   * Send a supported languages request to a single translation server
+   */
+  private CompletableFuture<LanguagePairTable> fetchSupportedLanguages(ConnectionPool pool){
+    return sendSupportedLanguageRequest(pool, supportedLanguagesTimeoutNanos).whenComplete((r, e) -> {
+      if(e != null)
+        LOGGER.warn("Unable to fetch supported languages from {}", pool.getUri(), e);
+    }).thenApply(SupportedLanguageUtils::compile);
+  }
 
-      LOGGER.debug("Sending supported languages request to server");
-      try {
-        wsTranslationServer.sendText(MessageUtils.getJson(req), true);
-      }catch (Exception e){
-        throw new RuntimeException("Could not send supported languages request", e);
+  private CompletableFuture<SupportedLanguageResponse> sendSupportedLanguageRequest(ConnectionPool pool, long timeoutNanos){
+    CompletableFuture<SupportedLanguageResponse> resp = new CompletableFuture<>();
+    scheduleTimeout(resp, timeoutNanos);
+
+    LOGGER.debug("Sending supported languages request to {}", pool.getUri());
+
+    //Supported language responses are matched to requests by the listener of the connection they're sent over
+    send(pool, new SupportedLanguageRequest(), resp, "Could not send supported languages request", conn -> {
+      RemediListener listener = conn.getListener();
+      CompletableFuture<SupportedLanguageResponse> registered = listener.registerSupportedLanguageRequest();
+      registered.thenAccept(resp::complete);
+      resp.whenComplete((r, e) -> registered.cancel(false));
+
+      return () -> listener.deregisterSupportedLanguageRequest(registered);
+    }, 0);
+
+    return resp;
+  }
+
+  /**
+   * Actively check the health of every server. Every connection is pinged, and a supported languages
+   * request is sent to each translation server as a lightweight probe that the server is still processing
+   * requests. Failures count towards each server's circuit breaker, and the ping latencies are used to eject
+   * translation servers which are much slower than the others. The latency of the probe isn't used, as it
+   * depends on how busy the server is rather than just the network, so isn't comparable with a ping.
+   */
+  private void checkHealth(){
+    TranslationRouter router = translationServers;
+    if(router == null)
+      return;
+
+    //Latencies are from the previous round of health checks, as this round hasn't completed yet
+    router.ejectOutliers(outlierLatencyFactor, outlierMinLatencyNanos);
+
+    List<ConnectionPool> pools = new ArrayList<>(router.getPools());
+    ConnectionPool pre = preProcessingServer;
+    if(pre != null)
+      pools.add(pre);
+    ConnectionPool post = postProcessingServer;
+    if(post != null)
+      pools.add(post);
+
+    for(ConnectionPool pool : pools){
+      EndpointHealth health = pool.getHealth();
+      for(RemediConnection conn : pool.getConnections()){
+        CompletableFuture<Long> rtt = conn.ping();
+        scheduleTimeout(rtt, healthCheckTimeoutNanos);
+        rtt.whenComplete((r, e) -> {
+          if(e == null){
+            health.recordLatency(r);
+          }else{
+            LOGGER.debug("Ping to {} failed", pool.getUri(), e);
+            health.record(false);
+          }
+        });
       }
+    }
 
-      LOGGER.debug("Getting supported languages response from server");
-      Optional<SupportedLanguageResponse> resp = getOptionalWithBackoff(
-          listener::getSupportedLanguageResponse
-      );
+    for(ConnectionPool pool : router.getPools()){
+      EndpointHealth health = pool.getHealth();
+      sendSupportedLanguageRequest(pool, healthCheckTimeoutNanos).whenComplete((r, e) -> {
+        if(e == null){
+          health.record(true);
+        }else{
+          LOGGER.debug("Health check of {} failed", pool.getUri(), e);
+          health.record(false);
+        }
+      });
+    }
+  }
 
-      LOGGER.info("Finished supported languages request");
-      return resp.get().getLanguages();
-    });
+
+  /**
+   * Translate text between two languages, performing pre- and post- processing as necessary,
+   * with the default priority
+   *
+   * @see #translateText(String, String, String, int)
+   */
+  public CompletableFuture<String> translateText(String sourceLanguage, String targetLanguage, String text) {
+    return translateText(sourceLanguage, targetLanguage, text, 0);
   }
 
   /**
    * Translate text between two languages, performing pre- and post- processing as necessary.
    *
-   * For simplicity, pre- and post- processing of text is done as a single chunk, which might impact
-   * performance.
+   * If {@link RemediClientConfig#getProcessorChunkSize()} is set, then large text is split into chunks
+   * at sentence boundaries, and the chunks are pipelined through the servers independently. Each chunk
+   * moves on to translation as soon as it has been pre-processed, and on to post-processing as soon as
+   * it has been translated, whilst other chunks are still at earlier stages. Otherwise, the text is
+   * processed as a single chunk, which might impact performance.
    *
    * @param sourceLanguage
    *    The source language to translate from (use {@link PreProcessorRequest#LANGUAGE_AUTO} to perform
@@ -142,36 +458,78 @@ public class RemediClient implements AutoCloseable{
    *    The target language to translate into
    * @param text
    *    The text to translate
+   * @param priority
+   *    The priority of the request, where a greater number is more important. Higher priority requests
+   *    are sent ahead of queued lower priority requests, and the priority is passed on to the server
    * @return
    *    The translated text
    */
-  public CompletableFuture<String> translateText(String sourceLanguage, String targetLanguage, String text) {
+  public CompletableFuture<String> translateText(String sourceLanguage, String targetLanguage, String text, int priority) {
+    return accept(() -> startTranslateText(sourceLanguage, targetLanguage, text, priority));
+  }
+
+  private CompletableFuture<String> startTranslateText(String sourceLanguage, String targetLanguage, String text, int priority) {
 
     LOGGER.info("Translating text ({} characters) from {} to {}", text.length(), sourceLanguage, targetLanguage);
 
-    if(wsPreProcessingServer == null && wsPostProcessingServer == null){
+    if(processorChunkSize > 0 && text.length() > processorChunkSize){
+      List<String> chunks = TextUtils.getChunks(text, processorChunkSize);
+      LOGGER.debug("Pipelining {} chunks", chunks.size());
+
+      List<CompletableFuture<String>> futures = new ArrayList<>(chunks.size());
+      for(String chunk : chunks)
+        futures.add(translateChunk(sourceLanguage, targetLanguage, chunk, priority));
+
+      CompletableFuture<String> result = CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).thenApply(v -> {
+        StringJoiner sj = new StringJoiner(" ");
+        futures.forEach(f -> sj.add(f.join()));
+        return sj.toString();
+      });
+      futures.forEach(f -> Futures.propagateCancellation(result, f));
+
+      return result;
+    }
+
+    return translateChunk(sourceLanguage, targetLanguage, text, priority);
+  }
+
+  /**
+   * Pass a single chunk of text through each of the configured servers in turn
+   */
+  private CompletableFuture<String> translateChunk(String sourceLanguage, String targetLanguage, String text, int priority){
+    if(preProcessingServer == null && postProcessingServer == null){
       //Just translation
-      return translate(sourceLanguage, targetLanguage, text)
-          .thenApply(r -> r.assembleTargetData(" ", true));
-    }else if(wsPreProcessingServer == null){
+      return Futures.thenApply(startTranslate(sourceLanguage, targetLanguage, text, priority),
+          r -> r.assembleTargetData(" ", true));
+    }else if(preProcessingServer == null){
       //Translation and post-processing
-      return translate(sourceLanguage, targetLanguage, text)
-          .thenCompose(r -> postProcess(targetLanguage, r.assembleTargetData(" ", true)))
-          .thenApply(ProcessorResponse::getText);
-    }else if(wsPostProcessingServer == null){
+      CompletableFuture<PostProcessorResponse> post = Futures.thenCompose(startTranslate(sourceLanguage, targetLanguage, text, priority),
+          r -> startPostProcess(targetLanguage, r.assembleTargetData(" ", true), priority));
+      return Futures.thenApply(post, ProcessorResponse::getText);
+    }else if(postProcessingServer == null){
       //Pre-processing and translation
-      return preProcess(sourceLanguage, text)
-          .thenCompose(r -> translate(r.getLanguage(), targetLanguage, r.getText()))
-          .thenApply(r -> r.assembleTargetData(" ", true));
+      CompletableFuture<TranslationResponse> trans = Futures.thenCompose(startPreProcess(sourceLanguage, text, priority),
+          r -> startTranslate(r.getLanguage(), targetLanguage, r.getText(), priority));
+      return Futures.thenApply(trans, r -> r.assembleTargetData(" ", true));
     }else {
       //Pre-processing, translation and post-processing
-      return preProcess(sourceLanguage, text)
-          .thenCompose(r -> translate(r.getLanguage(), targetLanguage, r.getText()))
-          .thenCompose(r -> postProcess(targetLanguage, r.assembleTargetData(" ", true)))
-          .thenApply(ProcessorResponse::getText);
+      CompletableFuture<TranslationResponse> trans = Futures.thenCompose(startPreProcess(sourceLanguage, text, priority),
+          r -> startTranslate(r.getLanguage(), targetLanguage, r.getText(), priority));
+      CompletableFuture<PostProcessorResponse> post = Futures.thenCompose(trans,
+          r -> startPostProcess(targetLanguage, r.assembleTargetData(" ", true), priority));
+      return Futures.thenApply(post, ProcessorResponse::getText);
     }
   }
 
+  /**
+   * Send a request to the pre-processor server, with the default priority
+   *
+   * @see #preProcess(String, String, int)
+   */
+  public CompletableFuture<PreProcessorResponse> preProcess(String language, String text) {
+    return preProcess(language, text, 0);
+  }
+
   /**
    * Send a request to the pre-processor server
    *
@@ -180,40 +538,53 @@ public class RemediClient implements AutoCloseable{
    *    language detection if supported
    * @param text
    *    The text to process
+   * @param priority
+   *    The priority of the request, where a greater number is more important. Higher priority requests
+   *    are sent ahead of queued lower priority requests, and the priority is passed on to the server
    * @return
    *    The response from the pre-processor
    */
-  public CompletableFuture<PreProcessorResponse> preProcess(String language, String text) {
-    if(wsPreProcessingServer == null) {
+  public CompletableFuture<PreProcessorResponse> preProcess(String language, String text, int priority) {
+    return accept(() -> startPreProcess(language, text, priority));
+  }
+
+  private CompletableFuture<PreProcessorResponse> startPreProcess(String language, String text, int priority) {
+    if(preProcessingServer == null) {
       throw new RemediRuntimeException(
           "Pre-processing server has not been configured for this client");
     }
 
-    return CompletableFuture.supplyAsync(() -> {
-      //Pre-processing
-      LOGGER.info("Beginning pre-processing of request");
+    //Pre-processing
+    LOGGER.info("Beginning pre-processing of request");
 
-      PreProcessorRequest preReq = new PreProcessorRequest(language, text);
-
-      LOGGER.debug("Sending pre-processing request {} to server", preReq.getJobToken());
-      try {
-        wsPreProcessingServer.sendText(MessageUtils.getJson(preReq), true);
-      }catch (Exception e){
-        throw new RuntimeException("Could not send pre-processing request", e);
-      }
+    PreProcessorRequest preReq = new PreProcessorRequest(language, text);
+    preReq.setPriority(priority);
 
-      LOGGER.debug("Getting pre-processing response {} from server", preReq.getJobToken());
-      Optional<PreProcessorResponse> preResp = getOptionalWithBackoff(
-          listener::getPreProcessorResponse,
-          preReq.getJobToken());
+    CompletableFuture<PreProcessorResponse> response = deduplicate(preProcessorFlights, preReq.getLanguage(), preReq.getJobToken(),
+        () -> sendProcessorRequests(preProcessingServer, preProcessorRequests, preReq,
+            chunks -> ProcessorUtils.createPreProcessorRequests(language, chunks), PreProcessorResponse::new,
+            "Could not send pre-processing request"));
 
+    return Futures.thenApply(response, r -> {
       LOGGER.info("Finished pre-processing of request {}", preReq.getJobToken());
-      return preResp.get();
+      return r;
     });
   }
 
   /**
-   * Send a request to the translation server
+   * Send a request to the translation server, with the default priority
+   *
+   * @see #translate(String, String, String, int)
+   */
+  public CompletableFuture<TranslationResponse> translate(String sourceLanguage, String targetLanguage, String text) {
+    return translate(sourceLanguage, targetLanguage, text, 0);
+  }
+
+  /**
+   * Send a request to a translation server that supports the language pair.
+   *
+   * If {@link RemediClientConfig#getCoalescingLinger()} is set, then small requests may be coalesced
+   * with concurrent requests for the same language pair into a single request to the server.
    *
    * @param sourceLanguage
    *    The language of the source text
@@ -221,33 +592,44 @@ public class RemediClient implements AutoCloseable{
    *    The target language for translation
    * @param text
    *    The text to process
+   * @param priority
+   *    The priority of the request, where a greater number is more important. Higher priority requests
+   *    are sent ahead of queued lower priority requests, and the priority is passed on to the server
    * @return
-   *    The response from the translation server
+   *    The response from the translation server, or a future that fails with an
+   *    {@link UnsupportedLanguagePairException} if no translation server supports the language pair
    */
-  public CompletableFuture<TranslationResponse> translate(String sourceLanguage, String targetLanguage, String text) {
-    return CompletableFuture.supplyAsync(() -> {
-      //Translation
-      LOGGER.info("Beginning translation of request");
+  public CompletableFuture<TranslationResponse> translate(String sourceLanguage, String targetLanguage, String text, int priority) {
+    return accept(() -> startTranslate(sourceLanguage, targetLanguage, text, priority));
+  }
 
-      TranslationRequest transReq = new TranslationRequest(sourceLanguage, targetLanguage, text);
+  private CompletableFuture<TranslationResponse> startTranslate(String sourceLanguage, String targetLanguage, String text, int priority) {
+    //Translation
+    LOGGER.info("Beginning translation of request");
 
-      LOGGER.debug("Sending translation request {} to server", transReq.getJobId());
-      try {
-        wsTranslationServer.sendText(MessageUtils.getJson(transReq), true);
-      }catch (Exception e){
-        throw new RuntimeException("Could not send translation request", e);
-      }
+    //If the supported language pairs are already known, then reject unsupported pairs without queueing the request
+    LanguagePairTable languagePairs = supportedLanguages.getIfPresent();
+    if(languagePairs != null && !languagePairs.supports(sourceLanguage, targetLanguage))
+      return CompletableFuture.failedFuture(unsupportedLanguagePair(sourceLanguage, targetLanguage));
 
-      LOGGER.debug("Getting translation response {} from server", transReq.getJobId());
-      Optional<TranslationResponse> transResp = getOptionalWithBackoff(
-          listener::getTranslationResponse,
-          transReq.getJobId());
+    TranslationRequest transReq = new TranslationRequest(sourceLanguage, targetLanguage, text);
+    transReq.setPriority(priority);
 
+    return Futures.thenApply(translator.translate(transReq), r -> {
       LOGGER.info("Finished translation of request {}", transReq.getJobId());
-      return transResp.get();
+      return r;
     });
   }
 
+  /**
+   * Send a request to the post-processor server, with the default priority
+   *
+   * @see #postProcess(String, String, int)
+   */
+  public CompletableFuture<PostProcessorResponse> postProcess(String language, String text) {
+    return postProcess(language, text, 0);
+  }
+
   /**
    * Send a request to the post-processor server
    *
@@ -255,76 +637,477 @@ public class RemediClient implements AutoCloseable{
    *    The language of the text
    * @param text
    *    The text to process
+   * @param priority
+   *    The priority of the request, where a greater number is more important. Higher priority requests
+   *    are sent ahead of queued lower priority requests, and the priority is passed on to the server
    * @return
    *    The response from the post-processor
    */
-  public CompletableFuture<PostProcessorResponse> postProcess(String language, String text) {
-    if(wsPostProcessingServer == null) {
+  public CompletableFuture<PostProcessorResponse> postProcess(String language, String text, int priority) {
+    return accept(() -> startPostProcess(language, text, priority));
+  }
+
+  private CompletableFuture<PostProcessorResponse> startPostProcess(String language, String text, int priority) {
+    if(postProcessingServer == null) {
       throw new RemediRuntimeException(
           "Post-processing server has not been configured for this client");
     }
 
-    return CompletableFuture.supplyAsync(() -> {
-      //Post-processing
-      LOGGER.info("Beginning post-processing of request");
+    //Post-processing
+    LOGGER.info("Beginning post-processing of request");
+
+    PostProcessorRequest postReq = new PostProcessorRequest(language, text);
+    postReq.setPriority(priority);
+
+    CompletableFuture<PostProcessorResponse> response = deduplicate(postProcessorFlights, postReq.getLanguage(), postReq.getJobToken(),
+        () -> sendProcessorRequests(postProcessingServer, postProcessorRequests, postReq,
+            chunks -> ProcessorUtils.createPostProcessorRequests(language, chunks), PostProcessorResponse::new,
+            "Could not send post-processing request"));
+
+    return Futures.thenApply(response, r -> {
+      LOGGER.info("Finished post-processing of request {}", postReq.getJobToken());
+      return r;
+    });
+  }
+
+  /**
+   * Register and send a translation request to a translation server, running the callback once it has been sent.
+   * The excluded server (if not null) is only used if no other server supports the language pair.
+   */
+  private CompletableFuture<TranslationResponse> sendTranslationRequest(TranslationRequest transReq, Runnable onSent,
+      ConnectionPool exclude){
+    //Requests can only be routed by language pair once the supported language pairs are known. Trigger a
+    //fetch if they're missing or stale, but don't wait for it - until they're known, any server may be selected
+    supportedLanguages.get();
+
+    ConnectionPool pool = translationServers.select(transReq.getSourceLanguage(), transReq.getTargetLanguage(), exclude);
+    if(pool == null)
+      return CompletableFuture.failedFuture(unsupportedLanguagePair(transReq.getSourceLanguage(), transReq.getTargetLanguage()));
+
+    CompletableFuture<TranslationResponse> transResp = translationRequests.register(transReq.getJobId());
+    if(transResp == null)
+      return CompletableFuture.failedFuture(new RemediRuntimeException("Translation job "+transReq.getJobId()+" is already pending"));
+
+    long characters = 0;
+    for(String sentence : transReq.getSourceSentences())
+      characters += sentence.length();
+
+    LOGGER.debug("Sending translation request {} to server", transReq.getJobId());
+    //Ask for decoder load information, so that we can balance requests between servers
+    if(translationServers.isMultiServer())
+      transReq.setTranslationInfo(true);
+
+    transResp.thenAccept(r -> translationServers.onResponse(pool, r));
+
+    //Remember which server the request was sent to, so that duplicates of it can be sent elsewhere
+    translationRoutes.put(transReq.getJobId(), pool);
+    transResp.whenComplete((r, e) -> translationRoutes.remove(transReq.getJobId(), pool));
+
+    dispatch(pool, characters, transReq.getPriority(),
+        Arrays.asList(transReq.getSourceLanguage(), transReq.getTargetLanguage(), LatencyTracker.sizeClass(characters)),
+        transReq, transResp, "Could not send translation request", onSent);
+
+    return transResp;
+  }
+
+  /**
+   * If deduplication is enabled, share the response of an identical in-flight pre/post processor request
+   * rather than sending a new request. The job token is a hash of the text, so identical requests have
+   * the same language and job token.
+   */
+  private static <T extends ProcessorResponse> CompletableFuture<T> deduplicate(SingleFlight<List<String>, T> flights,
+      String language, String jobToken, Supplier<CompletableFuture<T>> operation){
+    if(flights == null)
+      return operation.get();
+
+    return flights.execute(Arrays.asList(language, jobToken), operation);
+  }
+
+  /**
+   * Send a pre/post processor request, splitting it into chunks which are processed in parallel
+   * if it is longer than the configured chunk size. The chunk responses are reassembled into a single
+   * response, which will have the status of the first chunk that failed (if any) and the language of
+   * the longest chunk.
+   */
+  private <Q extends ProcessorRequest, T extends ProcessorResponse> CompletableFuture<T> sendProcessorRequests(
+      ConnectionPool pool, PendingRequests<String, T> registry, Q request, Function<List<String>, List<Q>> chunker,
+      Supplier<T> responseFactory, String errorMessage){
+
+    if(processorChunkSize <= 0 || request.getText() == null || request.getText().length() <= processorChunkSize)
+      return sendProcessorRequest(pool, registry, RemediListener.getProcessorKey(request.getJobToken(), request.getChunkIndex()),
+          request, errorMessage);
+
+    List<Q> chunks = chunker.apply(TextUtils.getChunks(request.getText(), processorChunkSize));
+    if(chunks.size() <= 1)
+      return sendProcessorRequest(pool, registry, RemediListener.getProcessorKey(request.getJobToken(), request.getChunkIndex()),
+          request, errorMessage);
+
+    LOGGER.debug("Splitting request {} into {} chunks", request.getJobToken(), chunks.size());
+
+    List<CompletableFuture<T>> futures = new ArrayList<>(chunks.size());
+    for(Q chunk : chunks) {
+      chunk.setPriority(request.getPriority());
+      futures.add(sendProcessorRequest(pool, registry, RemediListener.getProcessorKey(chunk.getJobToken(), chunk.getChunkIndex()),
+          chunk, errorMessage));
+    }
+
+    CompletableFuture<T> combined = CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).thenApply(v -> {
+      List<ProcessorResponse> responses = new ArrayList<>(futures.size());
+      futures.forEach(f -> responses.add(f.join()));
 
-      PostProcessorRequest postReq = new PostProcessorRequest(language, text);
+      T response = responseFactory.get();
+      response.setJobToken(request.getJobToken());
+      response.setText(ProcessorUtils.assembleProcessorResponses(responses, " ", true));
+      response.setStatusCode(StatusCode.RESULT_OK);
 
-      LOGGER.debug("Sending post-processing request {} to server", postReq.getJobToken());
-      try {
-        wsPostProcessingServer.sendText(MessageUtils.getJson(postReq), true);
-      }catch (Exception e){
-        throw new RuntimeException("Could not send post-processing", e);
+      Map<String, Integer> languages = new HashMap<>();
+      for(ProcessorResponse r : responses){
+        if(r.getStatusCode() != StatusCode.RESULT_OK){
+          if(response.getStatusCode() == StatusCode.RESULT_OK) {
+            response.setStatusCode(r.getStatusCode());
+            response.setStatusMessage(r.getStatusMessage());
+          }
+        }else if(r.getLanguage() != null && r.getText() != null){
+          languages.merge(r.getLanguage(), r.getText().length(), Integer::sum);
+        }
       }
 
-      LOGGER.debug("Getting post-processing response {} from server", postReq.getJobToken());
-      Optional<PostProcessorResponse> postResp = getOptionalWithBackoff(
-          listener::getPostProcessorResponse,
-          postReq.getJobToken());
+      response.setLanguage(languages.entrySet().stream()
+          .max(Map.Entry.comparingByValue())
+          .map(Map.Entry::getKey)
+          .orElse(request.getLanguage()));
 
-      LOGGER.info("Finished post-processing of request {}", postReq.getJobToken());
-      return postResp.get();
+      return response;
     });
+    futures.forEach(f -> Futures.propagateCancellation(combined, f));
+
+    return combined;
   }
 
-  private static <T extends BaseMessage> Optional<T> getOptionalWithBackoff(Supplier<Optional<T>> fn){
-    Optional<T> resp = fn.get();
-    long waitTime = INITIAL_WAIT_TIME;
-    while(!resp.isPresent()){
-      LOGGER.debug("Still waiting...");
-      try {
-        Thread.sleep(waitTime);
-      }catch (InterruptedException e){
-        LOGGER.debug("Interrupted exception caught and passed on");
-        Thread.currentThread().interrupt();
+  /**
+   * Register and send a pre/post processor request. Job tokens are derived from the text,
+   * so if a request with the same token is already pending then we wait for that request to
+   * finish before sending this one, otherwise we wouldn't be able to tell the responses apart.
+   */
+  private <T extends ProcessorResponse> CompletableFuture<T> sendProcessorRequest(ConnectionPool pool,
+      PendingRequests<String, T> registry, String jobToken, ProcessorRequest request, String errorMessage){
+    CompletableFuture<T> future = registry.register(jobToken);
+
+    if(future == null){
+      CompletableFuture<T> existing = registry.get(jobToken);
+      if(existing == null)
+        return sendProcessorRequest(pool, registry, jobToken, request, errorMessage);
+
+      LOGGER.debug("Request {} is already pending, waiting for it to finish", jobToken);
+      return Futures.thenCompose(existing.handle((r, e) -> null),
+          x -> sendProcessorRequest(pool, registry, jobToken, request, errorMessage));
+    }
+
+    LOGGER.debug("Sending request {} to server", jobToken);
+    long characters = request.getText() == null ? 0 : request.getText().length();
+    dispatch(pool, characters, request.getPriority(),
+        Arrays.asList(request.getMessageType(), request.getLanguage(), LatencyTracker.sizeClass(characters)),
+        request, future, errorMessage, () -> {});
+
+    return future;
+  }
+
+  /**
+   * Wait (in order of priority) until the concurrency limit of an endpoint allows a message to be sent, and then
+   * send it over the least loaded connection to that endpoint. The capacity and connection are released once the
+   * provided future is complete, and the future is failed if the message is rejected, can't be sent, or isn't
+   * completed before its deadline. The callback is run once the message has stopped waiting and is being sent.
+   *
+   * The outcome of every request that is sent counts towards the circuit breaker of the endpoint. Requests
+   * aren't rejected if the endpoint has been taken out of rotation, as the router only selects such an endpoint
+   * when there is no healthy alternative, and sending the request there is better than failing it outright.
+   *
+   * If adaptive timeouts are enabled, then the latency of the request is recorded against the latency key, and
+   * the request also times out if it takes much longer than previous requests with the same key.
+   */
+  private void dispatch(ConnectionPool pool, long characters, int priority, Object latencyKey, BaseMessage message,
+      CompletableFuture<?> future, String errorMessage, Runnable onSent){
+    EndpointHealth health = pool.getHealth();
+    scheduleTimeout(future, requestTimeoutNanos);
+
+    CompletableFuture<ConcurrencyLimiter.Permit> permitFuture = pool.getLimiter().acquire(characters, priority);
+    future.whenComplete((r, e) -> permitFuture.cancel(false));   //Stop queueing if the request is cancelled or times out
+
+    permitFuture.whenComplete((permit, e) -> {
+      if(e != null){
+        future.completeExceptionally(e);
+        return;
+      }
+
+      future.whenComplete((r, ex) -> {
+        if(future.isCancelled()) {
+          permit.abandon();
+        }else{
+          permit.release(ex == null);
+          health.record(ex == null);
+        }
+      });
+      if(future.isDone())
+        return;
+
+      if(latencyTracker != null){
+        long quantile = latencyTracker.getQuantile(latencyKey, adaptiveTimeoutQuantile);
+        if(quantile > 0)
+          scheduleTimeout(future, Math.max(MIN_ADAPTIVE_TIMEOUT_NANOS, (long) (quantile * adaptiveTimeoutMultiplier)));
+
+        long start = System.nanoTime();
+        future.whenComplete((r, ex) -> {
+          if(ex == null)
+            latencyTracker.record(latencyKey, System.nanoTime() - start);
+        });
+      }
+
+      onSent.run();
+      send(pool, message, future, errorMessage, NOT_REGISTERED, 0);
+    });
+  }
+
+  /**
+   * Send a message over the least loaded connection in a pool, waiting for a connection if there are none.
+   * The connection is released once the provided future is complete.
+   *
+   * If the connection is closed before the future is complete (e.g. because the server was restarted), then
+   * no response can be received over it, so the message is sent again over another connection. Responses
+   * are correlated by job ID or token across every connection, so the message can be sent again unchanged.
+   *
+   * @param register
+   *    Called with the selected connection before the message is sent over it, returning the action
+   *    to run if the message then can't be sent
+   * @param attempt
+   *    The number of times the message has already been sent
+   */
+  private void send(ConnectionPool pool, BaseMessage message, CompletableFuture<?> future, String errorMessage,
+      Function<RemediConnection, Runnable> register, int attempt){
+    CompletableFuture<RemediConnection> connFuture = pool.acquireAsync();
+    future.whenComplete((r, e) -> connFuture.cancel(false));   //Stop waiting for a connection if the request is cancelled or times out
+
+    connFuture.whenComplete((conn, e) -> {
+      if(e != null){
+        future.completeExceptionally(e);
+        return;
       }
-      resp = fn.get();
 
-      if(waitTime < MAX_WAIT_TIME)
-        waitTime *= BACKOFF_FACTOR;
+      Runnable deregister = conn.whenClosed(() -> {
+        if(future.isDone())
+          return;
+
+        if(attempt >= MAX_RESENDS){
+          future.completeExceptionally(new RemediRuntimeException(errorMessage + " - connection to " + pool.getUri()
+              + " was closed " + (attempt + 1) + " times before a response was received"));
+          return;
+        }
+
+        LOGGER.info("Connection to {} was closed before a response was received, so sending message again", pool.getUri());
+        send(pool, message, future, errorMessage, register, attempt + 1);
+      });
+
+      future.whenComplete((r, ex) -> {
+        deregister.run();
+        pool.release(conn);
+      });
+
+      send(conn, message, future, errorMessage, register.apply(conn));
+    });
+  }
+
+  /**
+   * Fail a future with a {@link RequestTimeoutException} if it hasn't completed within the timeout.
+   * Failing the future removes it from the pending requests, and releases any resources held for it.
+   */
+  private void scheduleTimeout(CompletableFuture<?> future, long timeoutNanos){
+    if(timeoutNanos <= 0 || future.isDone())
+      return;
+
+    ScheduledFuture<?> task = scheduler.schedule(() -> future.completeExceptionally(
+        new RequestTimeoutException("Request did not complete within " + Duration.ofNanos(timeoutNanos))),
+        timeoutNanos, TimeUnit.NANOSECONDS);
+    future.whenComplete((r, e) -> task.cancel(false));
+  }
+
+  /**
+   * Serialize and send a message, failing the provided future if the message can't be sent. If the message
+   * couldn't be sent because the connection has closed, then the connection is aborted instead so that its
+   * close actions are run. In either case, the unsent action is run first.
+   */
+  private static void send(RemediConnection conn, BaseMessage message, CompletableFuture<?> future, String errorMessage,
+      Runnable unsent){
+    conn.send(message).whenComplete((ws, e) -> {
+      if(e == null)
+        return;
+
+      unsent.run();
+
+      if(!conn.isOpen() || conn.getWebSocket().isOutputClosed())
+        conn.abort();
+      else
+        future.completeExceptionally(new RemediRuntimeException(errorMessage, e));
+    });
+  }
+
+  private static UnsupportedLanguagePairException unsupportedLanguagePair(String sourceLanguage, String targetLanguage){
+    return new UnsupportedLanguagePairException("No translation server supports translation from "
+        + sourceLanguage + " to " + targetLanguage);
+  }
+
+  /**
+   * Create a new listener for a WebSocket, which will complete requests held by this client
+   */
+  private RemediListener newListener(){
+    return new RemediListener(preProcessorRequests, translationRequests, postProcessorRequests, bufferPool, executor);
+  }
+
+  /**
+   * Create a connection pool for an endpoint. The circuit breaker is only enabled if there are other endpoints
+   * that requests can be routed to instead, as otherwise ejecting the endpoint achieves nothing.
+   */
+  private ConnectionPool newConnectionPool(URI uri, HttpClient httpClient, RemediClientConfig config,
+      boolean circuitBreaker){
+    Supplier<CompletableFuture<RemediConnection>> connector = () -> {
+      RemediListener listener = newListener();
+      return httpClient.newWebSocketBuilder()
+          .buildAsync(uri, listener)
+          .thenApply(ws -> new RemediConnection(ws, listener, config.getSendFragmentSize()));
+    };
+
+    ConcurrencyLimiter limiter = new ConcurrencyLimiter(config.getInitialConcurrencyLimit(),
+        config.getMinConcurrencyLimit(), config.getMaxConcurrencyLimit(), config.getMaxInFlightCharacters(),
+        config.getOverloadPolicy(), config.getMaxQueuedRequests(), config.getPriorityAgingInterval().toNanos());
+
+    EndpointHealth health = new EndpointHealth(uri, config.getCircuitBreakerMinRequests(),
+        circuitBreaker ? config.getCircuitBreakerErrorRate() : 0, config.getEjectionDuration().toNanos(),
+        config.getRecoveryDuration().toNanos());
+
+    return new ConnectionPool(uri, connector, config.getMinConnections(),
+        config.getMaxConnections(), config.getConnectionGrowthThreshold(),
+        config.getConnectionIdleTimeout().toNanos(), limiter, health);
+  }
+
+  /**
+   * Accept a new request from a caller, unless the client is closing, and track it until it is complete
+   * so that closing the client can wait for it
+   */
+  private <T> CompletableFuture<T> accept(Supplier<CompletableFuture<T>> request){
+    outstanding.incrementAndGet();
+    if(closing){
+      release();
+      return CompletableFuture.failedFuture(new RequestRejectedException("Client has been closed"));
     }
 
-    return resp;
+    CompletableFuture<T> future;
+    try {
+      future = request.get();
+    }catch (RuntimeException e){
+      release();
+      throw e;
+    }
+
+    accepted.add(future);
+    future.whenComplete((r, e) -> {
+      accepted.remove(future);
+      release();
+    });
+
+    return future;
   }
 
-  private static <T extends BaseMessage, P extends Object> Optional<T> getOptionalWithBackoff(Function<P, Optional<T>> fn, P p){
-    Supplier<Optional<T>> s = () -> fn.apply(p);
-    return getOptionalWithBackoff(s);
+  private void release(){
+    if(outstanding.decrementAndGet() == 0 && closing)
+      drained.complete(null);
   }
 
+  /**
+   * Close the client gracefully, waiting for requests in progress to complete, and blocking until the
+   * client has closed or {@link RemediClientConfig#getCloseTimeout()} has elapsed.
+   *
+   * @see #closeGracefully(Duration)
+   */
   @Override
   public void close() {
-    if(wsPreProcessingServer != null){
-      wsPreProcessingServer.sendClose(WebSocket.NORMAL_CLOSURE, "Client closed");
-      wsPreProcessingServer = null;
+    closeGracefully(closeTimeout).join();
+  }
+
+  /**
+   * Close the client gracefully. New requests are rejected with a {@link RequestRejectedException}
+   * straight away, but requests that are already in progress are allowed to complete (including any
+   * remaining stages, such as post-processing). Once they have all completed, or the timeout has elapsed,
+   * any messages still waiting to be sent are flushed and the connections are closed.
+   *
+   * Any requests still in progress when the timeout elapses are failed with a {@link RequestTimeoutException}.
+   *
+   * @param timeout
+   *    The maximum time to wait for requests in progress to complete
+   * @return
+   *    A future which completes once the client has closed
+   */
+  public CompletableFuture<Void> closeGracefully(Duration timeout){
+    synchronized (this) {
+      if(closed != null)
+        return closed;
+
+      closed = new CompletableFuture<>();
+      closing = true;
+    }
+
+    if(outstanding.get() == 0)
+      drained.complete(null);
+
+    LOGGER.info("Closing client, waiting for {} requests to complete", outstanding.get());
+
+    CompletableFuture<Void> deadline = new CompletableFuture<>();
+    ScheduledFuture<?> task = scheduler.schedule(() -> deadline.complete(null), timeout.toNanos(), TimeUnit.NANOSECONDS);
+
+    drained.applyToEither(deadline, v -> v).thenCompose(v -> {
+      if(!drained.isDone()){
+        LOGGER.warn("{} requests did not complete before the client was closed", accepted.size());
+        accepted.forEach(f -> f.completeExceptionally(
+            new RequestTimeoutException("Request did not complete before the client was closed")));
+      }
+
+      List<CompletableFuture<Void>> flushes = new ArrayList<>();
+      for(ConnectionPool pool : getPools())
+        pool.getConnections().forEach(c -> flushes.add(c.flush()));
+
+      return CompletableFuture.allOf(flushes.toArray(new CompletableFuture<?>[0])).applyToEither(deadline, x -> x);
+    }).whenComplete((v, e) -> {
+      task.cancel(false);
+      closeNow();
+
+      LOGGER.info("Client closed");
+      closed.complete(null);
+    });
+
+    return closed;
+  }
+
+  private List<ConnectionPool> getPools(){
+    List<ConnectionPool> pools = new ArrayList<>(translationServers.getPools());
+    if(preProcessingServer != null)
+      pools.add(preProcessingServer);
+    if(postProcessingServer != null)
+      pools.add(postProcessingServer);
+
+    return pools;
+  }
+
+  private void closeNow() {
+    if(preProcessingServer != null){
+      preProcessingServer.close();
+      preProcessingServer = null;
     }
 
-    wsTranslationServer.sendClose(WebSocket.NORMAL_CLOSURE, "Client closed");
-    wsTranslationServer = null;
+    translationServers.getPools().forEach(ConnectionPool::close);
+    translationServers = null;
 
-    if(wsPostProcessingServer != null){
-      wsPostProcessingServer.sendClose(WebSocket.NORMAL_CLOSURE, "Client closed");
-      wsPostProcessingServer = null;
+    if(postProcessingServer != null){
+      postProcessingServer.close();
+      postProcessingServer = null;
     }
+
+    scheduler.shutdownNow();
   }
 }
@@ -0,0 +1,615 @@
+/*
+National Crime Agency (c) Crown Copyright 2018
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+   http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package uk.gov.nca.remedi4j.client;
+
+import java.time.Duration;
+import java.util.concurrent.Executor;
+import uk.gov.nca.remedi4j.cache.TranslationCache;
+
+/**
+ * Configuration for a {@link RemediClient}. The default values are suitable for most uses.
+ */
+public class RemediClientConfig {
+  private int minConnections = 1;
+  private int maxConnections = 4;
+  private int connectionGrowthThreshold = 8;
+  private Duration connectionIdleTimeout = Duration.ofMinutes(1);
+  private Executor executor = null;
+  private TranslationCache translationCache = null;
+  private boolean deduplicateRequests = true;
+  private Duration supportedLanguagesTtl = Duration.ofMinutes(5);
+  private Duration supportedLanguagesTimeout = Duration.ofSeconds(30);
+  private int processorChunkSize = 0;
+  private Duration coalescingLinger = Duration.ZERO;
+  private int coalescingMaxBatchSize = 64;
+  private int initialConcurrencyLimit = 32;
+  private int minConcurrencyLimit = 1;
+  private int maxConcurrencyLimit = 512;
+  private long maxInFlightCharacters = 0;
+  private OverloadPolicy overloadPolicy = OverloadPolicy.QUEUE;
+  private int maxQueuedRequests = Integer.MAX_VALUE;
+  private Duration priorityAgingInterval = Duration.ofSeconds(1);
+  private Duration requestTimeout = Duration.ofMinutes(10);
+  private boolean adaptiveTimeouts = false;
+  private double adaptiveTimeoutQuantile = 0.99;
+  private double adaptiveTimeoutMultiplier = 3.0;
+  private double hedgingQuantile = 0.0;
+  private double hedgingBudget = 0.05;
+  private long shardMinCharacters = 0;
+  private Duration healthCheckInterval = Duration.ZERO;
+  private Duration healthCheckTimeout = Duration.ofSeconds(5);
+  private int circuitBreakerMinRequests = 10;
+  private double circuitBreakerErrorRate = 0.5;
+  private Duration ejectionDuration = Duration.ofSeconds(30);
+  private Duration recoveryDuration = Duration.ofSeconds(30);
+  private double outlierLatencyFactor = 3.0;
+  private Duration outlierMinLatency = Duration.ofMillis(50);
+  private Duration closeTimeout = Duration.ofSeconds(30);
+  private int sendFragmentSize = 0;
+
+  /**
+   * Get the minimum number of WebSocket connections held open to each server
+   */
+  public int getMinConnections() {
+    return minConnections;
+  }
+
+  /**
+   * Set the minimum number of WebSocket connections held open to each server
+   */
+  public void setMinConnections(int minConnections) {
+    this.minConnections = minConnections;
+  }
+
+  /**
+   * Get the maximum number of WebSocket connections that will be opened to each server
+   */
+  public int getMaxConnections() {
+    return maxConnections;
+  }
+
+  /**
+   * Set the maximum number of WebSocket connections that will be opened to each server
+   */
+  public void setMaxConnections(int maxConnections) {
+    this.maxConnections = maxConnections;
+  }
+
+  /**
+   * Get the number of outstanding requests that every connection to a server must have
+   * before an additional connection is opened
+   */
+  public int getConnectionGrowthThreshold() {
+    return connectionGrowthThreshold;
+  }
+
+  /**
+   * Set the number of outstanding requests that every connection to a server must have
+   * before an additional connection is opened
+   */
+  public void setConnectionGrowthThreshold(int connectionGrowthThreshold) {
+    this.connectionGrowthThreshold = connectionGrowthThreshold;
+  }
+
+  /**
+   * Get how long a connection can be idle for before it is closed
+   * (connections will not be closed if it would take the pool below the minimum size)
+   */
+  public Duration getConnectionIdleTimeout() {
+    return connectionIdleTimeout;
+  }
+
+  /**
+   * Set how long a connection can be idle for before it is closed
+   * (connections will not be closed if it would take the pool below the minimum size)
+   */
+  public void setConnectionIdleTimeout(Duration connectionIdleTimeout) {
+    this.connectionIdleTimeout = connectionIdleTimeout;
+  }
+
+  /**
+   * Get the executor used by the client, or null if the default executor should be used
+   */
+  public Executor getExecutor() {
+    return executor;
+  }
+
+  /**
+   * Set the executor used by the client, or null if the default executor should be used.
+   * Requests are completed on this executor once their responses are received, so any
+   * dependent actions run on it as well (by default, on the common fork-join pool).
+   */
+  public void setExecutor(Executor executor) {
+    this.executor = executor;
+  }
+
+  /**
+   * Get the cache used to avoid re-translating sentences, or null if caching is disabled
+   */
+  public TranslationCache getTranslationCache() {
+    return translationCache;
+  }
+
+  /**
+   * Set the cache used to avoid re-translating sentences, or null to disable caching
+   */
+  public void setTranslationCache(TranslationCache translationCache) {
+    this.translationCache = translationCache;
+  }
+
+  /**
+   * Get whether identical concurrent requests should share a single request to the server
+   */
+  public boolean isDeduplicateRequests() {
+    return deduplicateRequests;
+  }
+
+  /**
+   * Set whether identical concurrent requests should share a single request to the server
+   */
+  public void setDeduplicateRequests(boolean deduplicateRequests) {
+    this.deduplicateRequests = deduplicateRequests;
+  }
+
+  /**
+   * Get how long the supported languages are cached for before being refreshed from the server
+   */
+  public Duration getSupportedLanguagesTtl() {
+    return supportedLanguagesTtl;
+  }
+
+  /**
+   * Set how long the supported languages are cached for before being refreshed from the server.
+   * Stale languages continue to be served whilst the refresh happens in the background.
+   */
+  public void setSupportedLanguagesTtl(Duration supportedLanguagesTtl) {
+    this.supportedLanguagesTtl = supportedLanguagesTtl;
+  }
+
+  /**
+   * Get how long to wait for the supported languages from a translation server before giving up
+   */
+  public Duration getSupportedLanguagesTimeout() {
+    return supportedLanguagesTimeout;
+  }
+
+  /**
+   * Set how long to wait for the supported languages from a translation server before giving up.
+   * Until the supported languages are known, translation requests are routed to any server.
+   */
+  public void setSupportedLanguagesTimeout(Duration supportedLanguagesTimeout) {
+    this.supportedLanguagesTimeout = supportedLanguagesTimeout;
+  }
+
+  /**
+   * Get the maximum size, in characters, of each chunk of text sent to the pre/post processors.
+   * A value of 0 means that text is not chunked.
+   */
+  public int getProcessorChunkSize() {
+    return processorChunkSize;
+  }
+
+  /**
+   * Set the maximum size, in characters, of each chunk of text sent to the pre/post processors.
+   * Text longer than this is split at sentence boundaries, and the chunks are processed in parallel.
+   * When translating text, the chunks are also pipelined through the pre-processor, translation and
+   * post-processor servers independently. A value of 0 means that text is not chunked.
+   */
+  public void setProcessorChunkSize(int processorChunkSize) {
+    this.processorChunkSize = processorChunkSize;
+  }
+
+  /**
+   * Get how long small translation requests are held for, so that they can be coalesced with other
+   * requests for the same language pair. A value of zero means that requests are not coalesced.
+   */
+  public Duration getCoalescingLinger() {
+    return coalescingLinger;
+  }
+
+  /**
+   * Set how long small translation requests are held for, so that they can be coalesced with other
+   * requests for the same language pair. A value of zero means that requests are not coalesced.
+   */
+  public void setCoalescingLinger(Duration coalescingLinger) {
+    this.coalescingLinger = coalescingLinger;
+  }
+
+  /**
+   * Get the maximum number of sentences in a coalesced translation request
+   */
+  public int getCoalescingMaxBatchSize() {
+    return coalescingMaxBatchSize;
+  }
+
+  /**
+   * Set the maximum number of sentences in a coalesced translation request. Requests with at least
+   * this many sentences are never coalesced.
+   */
+  public void setCoalescingMaxBatchSize(int coalescingMaxBatchSize) {
+    this.coalescingMaxBatchSize = coalescingMaxBatchSize;
+  }
+
+  /**
+   * Get the initial limit on the number of concurrent requests to each server
+   */
+  public int getInitialConcurrencyLimit() {
+    return initialConcurrencyLimit;
+  }
+
+  /**
+   * Set the initial limit on the number of concurrent requests to each server. The limit is adjusted automatically
+   * based on the observed round trip time, between the minimum and maximum limits
+   */
+  public void setInitialConcurrencyLimit(int initialConcurrencyLimit) {
+    this.initialConcurrencyLimit = initialConcurrencyLimit;
+  }
+
+  /**
+   * Get the minimum limit on the number of concurrent requests to each server
+   */
+  public int getMinConcurrencyLimit() {
+    return minConcurrencyLimit;
+  }
+
+  /**
+   * Set the minimum limit on the number of concurrent requests to each server
+   */
+  public void setMinConcurrencyLimit(int minConcurrencyLimit) {
+    this.minConcurrencyLimit = minConcurrencyLimit;
+  }
+
+  /**
+   * Get the maximum limit on the number of concurrent requests to each server
+   */
+  public int getMaxConcurrencyLimit() {
+    return maxConcurrencyLimit;
+  }
+
+  /**
+   * Set the maximum limit on the number of concurrent requests to each server
+   */
+  public void setMaxConcurrencyLimit(int maxConcurrencyLimit) {
+    this.maxConcurrencyLimit = maxConcurrencyLimit;
+  }
+
+  /**
+   * Get the maximum number of characters of text in flight to each server, or 0 for no limit
+   */
+  public long getMaxInFlightCharacters() {
+    return maxInFlightCharacters;
+  }
+
+  /**
+   * Set the maximum number of characters of text in flight to each server, or 0 for no limit
+   */
+  public void setMaxInFlightCharacters(long maxInFlightCharacters) {
+    this.maxInFlightCharacters = maxInFlightCharacters;
+  }
+
+  /**
+   * Get what happens to requests when the concurrency limit for a server has been reached
+   */
+  public OverloadPolicy getOverloadPolicy() {
+    return overloadPolicy;
+  }
+
+  /**
+   * Set what happens to requests when the concurrency limit for a server has been reached
+   */
+  public void setOverloadPolicy(OverloadPolicy overloadPolicy) {
+    this.overloadPolicy = overloadPolicy;
+  }
+
+  /**
+   * Get the maximum number of requests queued for each server when using {@link OverloadPolicy#QUEUE},
+   * after which requests are rejected
+   */
+  public int getMaxQueuedRequests() {
+    return maxQueuedRequests;
+  }
+
+  /**
+   * Set the maximum number of requests queued for each server when using {@link OverloadPolicy#QUEUE},
+   * after which requests are rejected
+   */
+  public void setMaxQueuedRequests(int maxQueuedRequests) {
+    this.maxQueuedRequests = maxQueuedRequests;
+  }
+
+  /**
+   * Get how long a queued request must wait to gain the equivalent of one point of priority
+   */
+  public Duration getPriorityAgingInterval() {
+    return priorityAgingInterval;
+  }
+
+  /**
+   * Set how long a queued request must wait to gain the equivalent of one point of priority.
+   * Queued requests are sent in order of priority, but aging ensures that low priority requests
+   * are not starved by a constant stream of higher priority requests.
+   */
+  public void setPriorityAgingInterval(Duration priorityAgingInterval) {
+    this.priorityAgingInterval = priorityAgingInterval;
+  }
+
+  /**
+   * Get the deadline for each request to a server, including any time spent queued.
+   * A value of zero means that requests never time out.
+   */
+  public Duration getRequestTimeout() {
+    return requestTimeout;
+  }
+
+  /**
+   * Set the deadline for each request to a server, including any time spent queued.
+   * A value of zero means that requests never time out.
+   */
+  public void setRequestTimeout(Duration requestTimeout) {
+    this.requestTimeout = requestTimeout;
+  }
+
+  /**
+   * Get whether requests should also time out based on the observed latency of similar requests
+   */
+  public boolean isAdaptiveTimeouts() {
+    return adaptiveTimeouts;
+  }
+
+  /**
+   * Set whether requests should also time out based on the observed latency of similar requests
+   * (i.e. those with the same languages and of a similar size). Once enough similar requests have
+   * been observed, a request times out if it takes longer than the
+   * {@link #getAdaptiveTimeoutQuantile() quantile} of their latency multiplied by the
+   * {@link #getAdaptiveTimeoutMultiplier() multiplier}.
+   */
+  public void setAdaptiveTimeouts(boolean adaptiveTimeouts) {
+    this.adaptiveTimeouts = adaptiveTimeouts;
+  }
+
+  /**
+   * Get the latency quantile used to calculate adaptive timeouts
+   */
+  public double getAdaptiveTimeoutQuantile() {
+    return adaptiveTimeoutQuantile;
+  }
+
+  /**
+   * Set the latency quantile used to calculate adaptive timeouts
+   */
+  public void setAdaptiveTimeoutQuantile(double adaptiveTimeoutQuantile) {
+    this.adaptiveTimeoutQuantile = adaptiveTimeoutQuantile;
+  }
+
+  /**
+   * Get the multiplier applied to the latency quantile to calculate adaptive timeouts
+   */
+  public double getAdaptiveTimeoutMultiplier() {
+    return adaptiveTimeoutMultiplier;
+  }
+
+  /**
+   * Set the multiplier applied to the latency quantile to calculate adaptive timeouts
+   */
+  public void setAdaptiveTimeoutMultiplier(double adaptiveTimeoutMultiplier) {
+    this.adaptiveTimeoutMultiplier = adaptiveTimeoutMultiplier;
+  }
+
+  /**
+   * Get the latency quantile after which translation requests are hedged, or 0 if requests
+   * are not hedged
+   */
+  public double getHedgingQuantile() {
+    return hedgingQuantile;
+  }
+
+  /**
+   * Set the latency quantile after which translation requests are hedged, or 0 if requests
+   * are not hedged. When there are multiple translation servers, if a translation request has taken
+   * longer than this quantile of the latency of recent similar requests, then a duplicate request is
+   * sent to a different server and whichever completes first is used.
+   */
+  public void setHedgingQuantile(double hedgingQuantile) {
+    this.hedgingQuantile = hedgingQuantile;
+  }
+
+  /**
+   * Get the maximum fraction of translation requests that may be hedged
+   */
+  public double getHedgingBudget() {
+    return hedgingBudget;
+  }
+
+  /**
+   * Set the maximum fraction of translation requests that may be hedged
+   */
+  public void setHedgingBudget(double hedgingBudget) {
+    this.hedgingBudget = hedgingBudget;
+  }
+
+  /**
+   * Get the minimum number of characters in each shard of a sharded translation request, or 0 if
+   * requests are not sharded
+   */
+  public long getShardMinCharacters() {
+    return shardMinCharacters;
+  }
+
+  /**
+   * Set the minimum number of characters in each shard of a sharded translation request. When there
+   * are multiple translation servers, requests with at least twice this many characters are split into
+   * shards balanced by character count, which are translated concurrently by the servers that support
+   * the language pair. Set to 0 to disable sharding.
+   */
+  public void setShardMinCharacters(long shardMinCharacters) {
+    this.shardMinCharacters = shardMinCharacters;
+  }
+
+  /**
+   * Get the interval between active health checks of each server, or {@link Duration#ZERO} if
+   * active health checks are disabled
+   */
+  public Duration getHealthCheckInterval() {
+    return healthCheckInterval;
+  }
+
+  /**
+   * Set the interval between active health checks of each server. Each health check pings every
+   * connection to the server, and sends a supported languages request to each translation server.
+   * Translation servers whose ping latency is an outlier are only ejected if health checks are enabled.
+   * Active health checks are disabled by default, or if this is set to {@link Duration#ZERO}.
+   */
+  public void setHealthCheckInterval(Duration healthCheckInterval) {
+    this.healthCheckInterval = healthCheckInterval;
+  }
+
+  /**
+   * Get how long to wait for a response to a health check before it is considered to have failed
+   */
+  public Duration getHealthCheckTimeout() {
+    return healthCheckTimeout;
+  }
+
+  /**
+   * Set how long to wait for a response to a health check before it is considered to have failed
+   */
+  public void setHealthCheckTimeout(Duration healthCheckTimeout) {
+    this.healthCheckTimeout = healthCheckTimeout;
+  }
+
+  /**
+   * Get the number of most recent requests and health checks over which the error rate of a server is measured
+   */
+  public int getCircuitBreakerMinRequests() {
+    return circuitBreakerMinRequests;
+  }
+
+  /**
+   * Set the number of most recent requests and health checks over which the error rate of a server is
+   * measured. The circuit breaker can't open until at least this many have completed.
+   */
+  public void setCircuitBreakerMinRequests(int circuitBreakerMinRequests) {
+    this.circuitBreakerMinRequests = circuitBreakerMinRequests;
+  }
+
+  /**
+   * Get the error rate at which a server is taken out of rotation
+   */
+  public double getCircuitBreakerErrorRate() {
+    return circuitBreakerErrorRate;
+  }
+
+  /**
+   * Set the error rate, between 0 and 1, at which a translation server is taken out of rotation. Set to 0 to
+   * disable the circuit breaker. The circuit breaker only applies when there is more than one translation
+   * server, as otherwise there is nowhere else to send requests.
+   */
+  public void setCircuitBreakerErrorRate(double circuitBreakerErrorRate) {
+    this.circuitBreakerErrorRate = circuitBreakerErrorRate;
+  }
+
+  /**
+   * Get how long a server is taken out of rotation for the first time it is ejected
+   */
+  public Duration getEjectionDuration() {
+    return ejectionDuration;
+  }
+
+  /**
+   * Set how long a server is taken out of rotation for the first time it is ejected. Each consecutive
+   * ejection lasts longer. Whilst a server is out of rotation, requests are sent to other servers where
+   * possible, and are only sent to it if no other server that supports the language pair is in rotation.
+   */
+  public void setEjectionDuration(Duration ejectionDuration) {
+    this.ejectionDuration = ejectionDuration;
+  }
+
+  /**
+   * Get how long it takes for a server to be put fully back into rotation after an ejection
+   */
+  public Duration getRecoveryDuration() {
+    return recoveryDuration;
+  }
+
+  /**
+   * Set how long it takes for a server to be put fully back into rotation after an ejection, during
+   * which time it is offered an increasing fraction of requests
+   */
+  public void setRecoveryDuration(Duration recoveryDuration) {
+    this.recoveryDuration = recoveryDuration;
+  }
+
+  /**
+   * Get how many times slower than the median a translation server's health checks must be for it to be ejected
+   */
+  public double getOutlierLatencyFactor() {
+    return outlierLatencyFactor;
+  }
+
+  /**
+   * Set how many times slower than the median a translation server's health checks must be for it to be
+   * ejected. Set to 0 to disable latency based ejection.
+   */
+  public void setOutlierLatencyFactor(double outlierLatencyFactor) {
+    this.outlierLatencyFactor = outlierLatencyFactor;
+  }
+
+  /**
+   * Get the health check latency below which a translation server is never ejected as an outlier
+   */
+  public Duration getOutlierMinLatency() {
+    return outlierMinLatency;
+  }
+
+  /**
+   * Set the health check latency below which a translation server is never ejected as an outlier
+   */
+  public void setOutlierMinLatency(Duration outlierMinLatency) {
+    this.outlierMinLatency = outlierMinLatency;
+  }
+
+  /**
+   * Get the maximum time that {@link RemediClient#close()} waits for requests in progress to complete
+   */
+  public Duration getCloseTimeout() {
+    return closeTimeout;
+  }
+
+  /**
+   * Set the maximum time that {@link RemediClient#close()} waits for requests in progress to complete
+   */
+  public void setCloseTimeout(Duration closeTimeout) {
+    this.closeTimeout = closeTimeout;
+  }
+
+  /**
+   * Get the maximum number of characters sent in a single WebSocket frame, or 0 if every message is sent
+   * in a single frame
+   */
+  public int getSendFragmentSize() {
+    return sendFragmentSize;
+  }
+
+  /**
+   * Set the maximum number of characters sent in a single WebSocket frame. Larger messages are sent as a
+   * series of frames, which the server must support reassembling. Defaults to 0, which sends every
+   * message in a single frame.
+   */
+  public void setSendFragmentSize(int sendFragmentSize) {
+    this.sendFragmentSize = sendFragmentSize;
+  }
+}
@@ -0,0 +1,110 @@
+/*
+National Crime Agency (c) Crown Copyright 2018
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+   http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package uk.gov.nca.remedi4j.client.internal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import uk.gov.nca.remedi4j.cache.TranslationCache;
+import uk.gov.nca.remedi4j.data.StatusCode;
+import uk.gov.nca.remedi4j.data.TargetData;
+import uk.gov.nca.remedi4j.data.TranslationRequest;
+import uk.gov.nca.remedi4j.data.TranslationResponse;
+
+/**
+ * Translation stage which looks up each sentence in a {@link TranslationCache}, and only passes
+ * the sentences which weren't found on to the next stage. The translated sentences are merged back
+ * in with the cached sentences (in the original order), and successful translations are added to
+ * the cache.
+ */
+public class CachingTranslator implements Translator {
+  private final TranslationCache cache;
+  private final Translator next;
+
+  /**
+   * Create a new caching stage
+   *
+   * @param cache   The cache to use
+   * @param next    The next stage, which misses are passed on to
+   */
+  public CachingTranslator(TranslationCache cache, Translator next){
+    this.cache = cache;
+    this.next = next;
+  }
+
+  @Override
+  public CompletableFuture<TranslationResponse> translate(TranslationRequest request) {
+    String sourceLanguage = request.getSourceLanguage();
+    String targetLanguage = request.getTargetLanguage();
+    List<String> sentences = request.getSourceSentences();
+
+    TargetData[] results = new TargetData[sentences.size()];
+    List<String> misses = new ArrayList<>();
+    List<Integer> missIndices = new ArrayList<>();
+
+    for(int i = 0; i < sentences.size(); i++){
+      String translation = cache.get(sourceLanguage, targetLanguage, sentences.get(i));
+
+      if(translation == null){
+        misses.add(sentences.get(i));
+        missIndices.add(i);
+      }else{
+        TargetData td = new TargetData();
+        td.setStatusCode(StatusCode.RESULT_OK);
+        td.setTranslatedText(translation);
+
+        results[i] = td;
+      }
+    }
+
+    if(misses.isEmpty()){
+      TranslationResponse response = new TranslationResponse();
+      response.setJobId(request.getJobId());
+      response.setStatusCode(StatusCode.RESULT_OK);
+      response.setTargetData(new ArrayList<>(Arrays.asList(results)));
+
+      return CompletableFuture.completedFuture(response);
+    }
+
+    if(misses.size() < sentences.size())
+      request.setSourceSentences(misses);
+
+    return Futures.thenApply(next.translate(request), response -> {
+      List<TargetData> translated = response.getTargetData();
+
+      for(int j = 0; j < missIndices.size(); j++){
+        TargetData td;
+        if(j < translated.size()){
+          td = translated.get(j);
+        }else{
+          td = new TargetData();
+          td.setStatusCode(StatusCode.RESULT_ERROR);
+          td.setStatusMessage("Sentence missing from translation response");
+        }
+
+        results[missIndices.get(j)] = td;
+
+        if(td.getStatusCode() == StatusCode.RESULT_OK && td.getTranslatedText() != null)
+          cache.put(sourceLanguage, targetLanguage, misses.get(j), td.getTranslatedText());
+      }
+
+      response.setTargetData(new ArrayList<>(Arrays.asList(results)));
+      return response;
+    });
+  }
+}
@@ -0,0 +1,257 @@
+/*
+National Crime Agency (c) Crown Copyright 2018
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+   http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package uk.gov.nca.remedi4j.client.internal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.gov.nca.remedi4j.data.StatusCode;
+import uk.gov.nca.remedi4j.data.TargetData;
+import uk.gov.nca.remedi4j.data.TranslationRequest;
+import uk.gov.nca.remedi4j.data.TranslationResponse;
+
+/**
+ * Translation stage which coalesces concurrent small requests for the same language pair into a
+ * single request to the next stage.
+ *
+ * The first request for a language pair opens a batch, which is held open for the linger time, or
+ * until it reaches the maximum batch size (in sentences), whichever happens first. The sentences of
+ * every request in the batch are then sent as a single request, and the response is split back up
+ * so that each caller receives a response containing only their own sentences.
+ *
+ * Requests that are already at least as large as the maximum batch size are passed straight through.
+ *
+ * Callers that cancel before their batch is sent are left out of it, and once every caller in a batch
+ * has cancelled, the coalesced request is cancelled too.
+ */
+public class CoalescingTranslator implements Translator {
+  private final Translator next;
+  private final ScheduledExecutorService scheduler;
+  private final long lingerNanos;
+  private final int maxBatchSize;
+
+  private final Map<List<Object>, Batch> batches = new ConcurrentHashMap<>();
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(CoalescingTranslator.class);
+
+  /**
+   * Create a new coalescing stage
+   *
+   * @param next          The next stage, which coalesced requests are passed on to
+   * @param scheduler     The scheduler used to send batches once the linger time has elapsed
+   * @param lingerNanos   How long a batch is held open for other requests to join
+   * @param maxBatchSize  The maximum number of sentences in a batch
+   */
+  public CoalescingTranslator(Translator next, ScheduledExecutorService scheduler, long lingerNanos, int maxBatchSize){
+    this.next = next;
+    this.scheduler = scheduler;
+    this.lingerNanos = lingerNanos;
+    this.maxBatchSize = maxBatchSize;
+  }
+
+  @Override
+  public CompletableFuture<TranslationResponse> translate(TranslationRequest request) {
+    int size = request.getSourceSentences().size();
+    if(size >= maxBatchSize)
+      return next.translate(request);
+
+    List<Object> key = Arrays.asList(request.getSourceLanguage(), request.getTargetLanguage(),
+        request.getPriority(), request.getTranslationInfo());
+    Entry entry = new Entry(request);
+
+    while(true){
+      Batch batch = batches.computeIfAbsent(key, k -> new Batch(request));
+
+      boolean full;
+      synchronized (batch){
+        if(batch.closed)
+          continue;
+
+        if(!batch.entries.isEmpty() && batch.size + size > maxBatchSize){
+          //No room in this batch, so send it and start a new one
+          close(key, batch);
+          send(batch);
+          continue;
+        }
+
+        batch.entries.add(entry);
+        batch.size += size;
+
+        full = batch.size >= maxBatchSize;
+        if(full)
+          close(key, batch);
+        else if(batch.entries.size() == 1)
+          scheduler.schedule(() -> flush(key, batch), lingerNanos, TimeUnit.NANOSECONDS);
+      }
+
+      if(full)
+        send(batch);
+
+      return entry.future;
+    }
+  }
+
+  /**
+   * Get the number of batches currently open
+   */
+  public int getOpenBatches(){
+    return batches.size();
+  }
+
+  private void flush(List<Object> key, Batch batch){
+    synchronized (batch){
+      if(batch.closed)
+        return;
+
+      close(key, batch);
+    }
+
+    send(batch);
+  }
+
+  private void close(List<Object> key, Batch batch){
+    batch.closed = true;
+    batches.remove(key, batch);
+  }
+
+  private void send(Batch batch){
+    //Nothing more is added to a batch once it is closed, so its entries can be read without locking
+    List<Entry> entries = new ArrayList<>(batch.entries.size());
+    for(Entry entry : batch.entries){
+      if(!entry.future.isCancelled())
+        entries.add(entry);
+    }
+
+    if(entries.isEmpty())
+      return;
+
+    if(entries.size() == 1){
+      Entry entry = entries.get(0);
+      CompletableFuture<TranslationResponse> response = sendNext(entry.request);
+      Futures.propagateCancellation(entry.future, response);
+      forward(response, entry.future);
+      return;
+    }
+
+    List<String> sentences = new ArrayList<>(batch.size);
+    for(Entry entry : entries)
+      sentences.addAll(entry.request.getSourceSentences());
+
+    TranslationRequest request = new TranslationRequest(batch.sourceLanguage, batch.targetLanguage, sentences);
+    request.setPriority(batch.priority);
+    request.setTranslationInfo(batch.translationInfo);
+
+    LOGGER.debug("Coalesced {} requests into translation request {}", entries.size(), request.getJobId());
+
+    CompletableFuture<TranslationResponse> coalesced = sendNext(request);
+
+    //Cancel the coalesced request once every caller has cancelled
+    AtomicInteger remaining = new AtomicInteger(entries.size());
+    for(Entry entry : entries){
+      entry.future.whenComplete((r, e) -> {
+        if(entry.future.isCancelled() && remaining.decrementAndGet() == 0)
+          coalesced.cancel(false);
+      });
+    }
+
+    coalesced.whenComplete((response, e) -> {
+      if(e != null){
+        entries.forEach(entry -> entry.future.completeExceptionally(e));
+        return;
+      }
+
+      List<TargetData> translated = response.getTargetData();
+      int offset = 0;
+      for(Entry entry : entries){
+        int n = entry.request.getSourceSentences().size();
+
+        List<TargetData> targetData = new ArrayList<>(n);
+        for(int i = offset; i < offset + n; i++){
+          if(i < translated.size()){
+            targetData.add(translated.get(i));
+          }else{
+            TargetData td = new TargetData();
+            td.setStatusCode(StatusCode.RESULT_ERROR);
+            td.setStatusMessage("Sentence missing from translation response");
+            targetData.add(td);
+          }
+        }
+        offset += n;
+
+        TranslationResponse split = new TranslationResponse();
+        split.setJobId(entry.request.getJobId());
+        split.setStatusCode(response.getStatusCode());
+        split.setStatusMessage(response.getStatusMessage());
+        split.setTargetData(targetData);
+
+        entry.future.complete(split);
+      }
+    });
+  }
+
+  private CompletableFuture<TranslationResponse> sendNext(TranslationRequest request){
+    try {
+      return next.translate(request);
+    }catch (RuntimeException e){
+      return CompletableFuture.failedFuture(e);
+    }
+  }
+
+  private static void forward(CompletableFuture<TranslationResponse> from, CompletableFuture<TranslationResponse> to){
+    from.whenComplete((r, e) -> {
+      if(e != null)
+        to.completeExceptionally(e);
+      else
+        to.complete(r);
+    });
+  }
+
+  private static class Entry {
+    private final TranslationRequest request;
+    private final CompletableFuture<TranslationResponse> future = new CompletableFuture<>();
+
+    private Entry(TranslationRequest request){
+      this.request = request;
+    }
+  }
+
+  private static class Batch {
+    private final String sourceLanguage;
+    private final String targetLanguage;
+    private final int priority;
+    private final boolean translationInfo;
+
+    private final List<Entry> entries = new ArrayList<>();
+    private int size = 0;
+    private boolean closed = false;
+
+    private Batch(TranslationRequest request){
+      this.sourceLanguage = request.getSourceLanguage();
+      this.targetLanguage = request.getTargetLanguage();
+      this.priority = request.getPriority();
+      this.translationInfo = request.getTranslationInfo();
+    }
+  }
+}
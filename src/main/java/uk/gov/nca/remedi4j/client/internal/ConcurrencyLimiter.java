@@ -0,0 +1,349 @@
+/*
+National Crime Agency (c) Crown Copyright 2018
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+   http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package uk.gov.nca.remedi4j.client.internal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.LongSupplier;
+import uk.gov.nca.remedi4j.client.OverloadPolicy;
+import uk.gov.nca.remedi4j.exceptions.RequestRejectedException;
+
+/**
+ * Adaptive limit on the number of requests (and characters of text) in flight to a single endpoint.
+ *
+ * The limit is adjusted using AIMD (additive increase, multiplicative decrease) on the observed
+ * round trip time. Whilst the round trip time stays within a tolerance (plus a small allowance for
+ * jitter) of the minimum observed round trip time, the limit increases by roughly one per round
+ * trip. When the round trip time rises above that tolerance (i.e. requests are queueing at the
+ * server), or a request fails, the limit is reduced by a fixed ratio.
+ *
+ * Larger requests naturally take longer, so requests are grouped into size classes (by the number of
+ * characters they contain, in powers of four), and each request's round trip time is only compared
+ * with the minimum for its own class. The minimum round trip time of each class is re-estimated
+ * periodically, so that the limit can follow changes in the server's capacity.
+ *
+ * The limit is reduced at most once per round trip of each size class: only requests sent after the
+ * last reduction caused by their class can reduce it again, so a burst of slow responses to requests
+ * that were already in flight only counts once per class.
+ *
+ * When the limit has been reached, requests are either queued until capacity is available or
+ * rejected, depending on the {@link OverloadPolicy}. Queued requests are admitted in order of
+ * priority, with aging to prevent starvation: each point of priority is worth one aging interval
+ * of time spent waiting in the queue, so a low priority request will eventually be admitted ahead
+ * of newly arrived higher priority requests. Requests with equal priority are admitted in the order
+ * they arrived. A request is always admitted if nothing else is in flight, so that a single request
+ * larger than the character limit can still be sent.
+ */
+public class ConcurrencyLimiter {
+  private static final double RTT_TOLERANCE = 2.0;
+  private static final long RTT_SLACK_NANOS = 1_000_000L;
+  private static final double BACKOFF_RATIO = 0.9;
+  private static final int RTT_WINDOW = 250;
+  private static final int SIZE_CLASSES = 32;
+
+  private final int minLimit;
+  private final int maxLimit;
+  private final long maxCharacters;
+  private final OverloadPolicy policy;
+  private final int maxQueueLength;
+  private final long agingIntervalNanos;
+  private final LongSupplier ticker;
+
+  private final Queue<Waiter> queue = new PriorityQueue<>(
+      Comparator.comparingLong((Waiter w) -> w.virtualTime).thenComparingLong(w -> w.sequence));
+  private long sequence = 0;
+  private double limit;
+  private int inFlight = 0;
+  private long inFlightCharacters = 0;
+
+  private final long[] minRtt = new long[SIZE_CLASSES];
+  private final long[] windowMinRtt = new long[SIZE_CLASSES];
+  private final int[] windowSamples = new int[SIZE_CLASSES];
+  private final long[] lastDecrease = new long[SIZE_CLASSES];
+
+  /**
+   * Create a new limiter
+   *
+   * @param initialLimit      The initial concurrency limit
+   * @param minLimit          The minimum concurrency limit
+   * @param maxLimit          The maximum concurrency limit
+   * @param maxCharacters     The maximum number of characters of text in flight, or 0 for no limit
+   * @param policy            What to do with requests when the limit has been reached
+   * @param maxQueueLength    The maximum number of queued requests, after which requests are rejected
+   * @param agingIntervalNanos  The time a queued request must wait to gain the equivalent of one point of priority
+   */
+  public ConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit, long maxCharacters,
+      OverloadPolicy policy, int maxQueueLength, long agingIntervalNanos){
+    this(initialLimit, minLimit, maxLimit, maxCharacters, policy, maxQueueLength, agingIntervalNanos, System::nanoTime);
+  }
+
+  /**
+   * Create a new limiter
+   *
+   * @param initialLimit      The initial concurrency limit
+   * @param minLimit          The minimum concurrency limit
+   * @param maxLimit          The maximum concurrency limit
+   * @param maxCharacters     The maximum number of characters of text in flight, or 0 for no limit
+   * @param policy            What to do with requests when the limit has been reached
+   * @param maxQueueLength    The maximum number of queued requests, after which requests are rejected
+   * @param agingIntervalNanos  The time a queued request must wait to gain the equivalent of one point of priority
+   * @param ticker            Source of the current time in nanoseconds
+   */
+  public ConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit, long maxCharacters,
+      OverloadPolicy policy, int maxQueueLength, long agingIntervalNanos, LongSupplier ticker){
+    this.minLimit = Math.max(1, minLimit);
+    this.maxLimit = Math.max(this.minLimit, maxLimit);
+    this.limit = Math.min(this.maxLimit, Math.max(this.minLimit, initialLimit));
+    this.maxCharacters = maxCharacters;
+    this.policy = policy;
+    this.maxQueueLength = maxQueueLength;
+    this.agingIntervalNanos = agingIntervalNanos;
+    this.ticker = ticker;
+
+    Arrays.fill(minRtt, Long.MAX_VALUE);
+    Arrays.fill(windowMinRtt, Long.MAX_VALUE);
+    Arrays.fill(lastDecrease, ticker.getAsLong() - 1);
+  }
+
+  /**
+   * Create a limiter which never limits requests
+   */
+  public static ConcurrencyLimiter unlimited(){
+    return new ConcurrencyLimiter(Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE, 0,
+        OverloadPolicy.QUEUE, Integer.MAX_VALUE, 0L);
+  }
+
+  /**
+   * Request permission to send a request. The returned future is completed with a {@link Permit}
+   * once the request may be sent, or fails with a {@link RequestRejectedException} if the request
+   * is rejected. The permit must be released once the request is complete.
+   *
+   * @param characters    The number of characters of text in the request
+   */
+  public CompletableFuture<Permit> acquire(long characters){
+    return acquire(characters, 0);
+  }
+
+  /**
+   * Request permission to send a request with the given priority. The returned future is completed
+   * with a {@link Permit} once the request may be sent, or fails with a {@link RequestRejectedException}
+   * if the request is rejected. The permit must be released once the request is complete.
+   *
+   * If the returned future is cancelled whilst the request is queued, then it is removed from the queue.
+   *
+   * @param characters    The number of characters of text in the request
+   * @param priority      The priority of the request, where a greater number is more important
+   */
+  public CompletableFuture<Permit> acquire(long characters, int priority){
+    Waiter waiter;
+    synchronized (this){
+      if(queue.isEmpty() && canAdmit(characters)){
+        admit(characters);
+        return CompletableFuture.completedFuture(new Permit(characters));
+      }
+
+      if(policy == OverloadPolicy.REJECT || queue.size() >= maxQueueLength)
+        return CompletableFuture.failedFuture(new RequestRejectedException(
+            "Concurrency limit of " + (int) limit + " requests reached"));
+
+      waiter = new Waiter(characters, virtualTime(priority), sequence++);
+      queue.add(waiter);
+    }
+
+    waiter.future.whenComplete((p, e) -> {
+      if(waiter.future.isCancelled())
+        remove(waiter);
+    });
+
+    return waiter.future;
+  }
+
+  /**
+   * Get the current concurrency limit
+   */
+  public synchronized int getLimit(){
+    return (int) limit;
+  }
+
+  /**
+   * Get the number of requests currently in flight
+   */
+  public synchronized int getInFlight(){
+    return inFlight;
+  }
+
+  /**
+   * Get the number of characters of text currently in flight
+   */
+  public synchronized long getInFlightCharacters(){
+    return inFlightCharacters;
+  }
+
+  /**
+   * Get the number of requests waiting for capacity
+   */
+  public synchronized int getQueueLength(){
+    return queue.size();
+  }
+
+  private long virtualTime(int priority){
+    //Clamp the boost so that extreme priorities can't overflow
+    double boost = Math.max(-1e18, Math.min(1e18, (double) priority * agingIntervalNanos));
+    return ticker.getAsLong() - (long) boost;
+  }
+
+  private boolean canAdmit(long characters){
+    if(inFlight == 0)
+      return true;
+
+    return inFlight < (int) limit && (maxCharacters <= 0 || inFlightCharacters + characters <= maxCharacters);
+  }
+
+  private void admit(long characters){
+    inFlight++;
+    inFlightCharacters += characters;
+  }
+
+  private synchronized void remove(Waiter waiter){
+    queue.remove(waiter);
+  }
+
+  /**
+   * Release a permit, and admit as many queued requests as there is now capacity for
+   *
+   * @param permit    The permit to release
+   * @param success   Whether the request succeeded, or null if the permit was never used
+   */
+  private void release(Permit permit, Boolean success){
+    List<Waiter> admitted = new ArrayList<>();
+
+    synchronized (this){
+      //A permit that was never used tells us nothing about the server
+      if(Boolean.TRUE.equals(success))
+        onSample(permit, ticker.getAsLong());
+      else if(Boolean.FALSE.equals(success))
+        decrease(permit);
+
+      inFlight--;
+      inFlightCharacters -= permit.characters;
+
+      while(!queue.isEmpty() && canAdmit(queue.peek().characters)){
+        Waiter w = queue.poll();
+        admit(w.characters);
+        admitted.add(w);
+      }
+    }
+
+    //Complete the waiters outside of the lock, as they will go on to send their requests
+    for(Waiter w : admitted){
+      Permit p = new Permit(w.characters);
+      if(!w.future.complete(p))
+        p.release(null);
+    }
+  }
+
+  private void onSample(Permit permit, long now){
+    long rtt = now - permit.start;
+    int c = sizeClass(permit.characters);
+
+    windowMinRtt[c] = Math.min(windowMinRtt[c], rtt);
+    if(++windowSamples[c] >= RTT_WINDOW){
+      minRtt[c] = windowMinRtt[c];
+      windowMinRtt[c] = Long.MAX_VALUE;
+      windowSamples[c] = 0;
+    }else{
+      minRtt[c] = Math.min(minRtt[c], rtt);
+    }
+
+    if(rtt > minRtt[c] * RTT_TOLERANCE + RTT_SLACK_NANOS){
+      decrease(permit);
+    }else if(inFlight >= limit / 2){
+      //Only grow the limit if we are actually making use of it
+      limit = Math.min(maxLimit, limit + 1.0 / limit);
+    }
+  }
+
+  private void decrease(Permit permit){
+    //Requests sent before the last decrease were sent under the old limit, so say nothing about the new one
+    int c = sizeClass(permit.characters);
+    if(permit.start - lastDecrease[c] <= 0)
+      return;
+
+    limit = Math.max(minLimit, limit * BACKOFF_RATIO);
+    lastDecrease[c] = ticker.getAsLong();
+  }
+
+  private static int sizeClass(long characters){
+    int log2 = 63 - Long.numberOfLeadingZeros(Math.max(1, characters));
+    return Math.min(SIZE_CLASSES - 1, log2 / 2);
+  }
+
+  /**
+   * Permission to send a single request, which must be released once the request is complete
+   */
+  public class Permit {
+    private final long characters;
+    private final long start = ticker.getAsLong();
+    private final AtomicBoolean released = new AtomicBoolean(false);
+
+    private Permit(long characters){
+      this.characters = characters;
+    }
+
+    /**
+     * Release this permit, recording the outcome of the request. Releasing a permit more than
+     * once has no effect.
+     *
+     * @param success   Whether a response was received for the request
+     */
+    public void release(boolean success){
+      release((Boolean) success);
+    }
+
+    /**
+     * Release this permit without recording an outcome, for example because the request was
+     * cancelled by the caller. Releasing a permit more than once has no effect.
+     */
+    public void abandon(){
+      release(null);
+    }
+
+    private void release(Boolean success){
+      if(released.compareAndSet(false, true))
+        ConcurrencyLimiter.this.release(this, success);
+    }
+  }
+
+  private static class Waiter {
+    private final long characters;
+    private final long virtualTime;
+    private final long sequence;
+    private final CompletableFuture<Permit> future = new CompletableFuture<>();
+
+    private Waiter(long characters, long virtualTime, long sequence){
+      this.characters = characters;
+      this.virtualTime = virtualTime;
+      this.sequence = sequence;
+    }
+  }
+}
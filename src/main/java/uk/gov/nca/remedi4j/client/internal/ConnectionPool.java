@@ -0,0 +1,356 @@
+/*
+National Crime Agency (c) Crown Copyright 2018
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+   http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package uk.gov.nca.remedi4j.client.internal;
+
+import java.net.URI;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.gov.nca.remedi4j.exceptions.RemediRuntimeException;
+
+/**
+ * Pool of WebSocket connections to a single REMEDI endpoint.
+ *
+ * Requests are sent over the connection with the fewest outstanding requests. When every
+ * connection has at least the growth threshold of outstanding requests, an additional connection
+ * is opened (up to the maximum), and connections which have been idle for longer than the
+ * idle timeout are closed (down to the minimum).
+ *
+ * If a connection is closed by the server or fails, it is removed from the pool, and if the pool has
+ * dropped below the minimum number of connections then a replacement is opened. Failed attempts to
+ * reconnect are retried with exponential backoff and full jitter, so that clients don't all reconnect
+ * at the same moment after a server restarts. Whilst there are no connections, requests wait for one
+ * to be opened (see {@link #acquireAsync()}).
+ */
+public class ConnectionPool {
+  private final URI uri;
+  private final Supplier<CompletableFuture<RemediConnection>> connector;
+  private final int minConnections;
+  private final int maxConnections;
+  private final int growthThreshold;
+  private final long idleTimeoutNanos;
+  private final ConcurrencyLimiter limiter;
+  private final EndpointHealth health;
+
+  private final List<RemediConnection> connections = new CopyOnWriteArrayList<>();
+  private final AtomicInteger opening = new AtomicInteger();
+  private final Queue<CompletableFuture<RemediConnection>> waiters = new ConcurrentLinkedQueue<>();
+  private volatile boolean closed = false;
+
+  private static final long RECONNECT_BASE_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+  private static final long RECONNECT_MAX_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ConnectionPool.class);
+
+  /**
+   * Create a new pool without a concurrency limit, and open the minimum number of connections to the endpoint.
+   *
+   * @param uri               The URI of the endpoint
+   * @param connector         Function which opens a new connection to the endpoint
+   * @param minConnections    The minimum number of connections to hold open (at least 1)
+   * @param maxConnections    The maximum number of connections to open
+   * @param growthThreshold   The number of outstanding requests on every connection before a new one is opened
+   * @param idleTimeoutNanos  How long a connection may be idle before it is closed
+   */
+  public ConnectionPool(URI uri, Supplier<CompletableFuture<RemediConnection>> connector,
+      int minConnections, int maxConnections, int growthThreshold, long idleTimeoutNanos){
+    this(uri, connector, minConnections, maxConnections, growthThreshold, idleTimeoutNanos,
+        ConcurrencyLimiter.unlimited());
+  }
+
+  /**
+   * Create a new pool with a concurrency limit, and open the minimum number of connections to the endpoint.
+   *
+   * @param uri               The URI of the endpoint
+   * @param connector         Function which opens a new connection to the endpoint
+   * @param minConnections    The minimum number of connections to hold open (at least 1)
+   * @param maxConnections    The maximum number of connections to open
+   * @param growthThreshold   The number of outstanding requests on every connection before a new one is opened
+   * @param idleTimeoutNanos  How long a connection may be idle before it is closed
+   * @param limiter           The limit on concurrent requests to the endpoint
+   */
+  public ConnectionPool(URI uri, Supplier<CompletableFuture<RemediConnection>> connector,
+      int minConnections, int maxConnections, int growthThreshold, long idleTimeoutNanos,
+      ConcurrencyLimiter limiter){
+    this(uri, connector, minConnections, maxConnections, growthThreshold, idleTimeoutNanos,
+        limiter, new EndpointHealth(uri));
+  }
+
+  /**
+   * Create a new pool with a concurrency limit and health tracker, and open the minimum number of
+   * connections to the endpoint.
+   *
+   * @param uri               The URI of the endpoint
+   * @param connector         Function which opens a new connection to the endpoint
+   * @param minConnections    The minimum number of connections to hold open (at least 1)
+   * @param maxConnections    The maximum number of connections to open
+   * @param growthThreshold   The number of outstanding requests on every connection before a new one is opened
+   * @param idleTimeoutNanos  How long a connection may be idle before it is closed
+   * @param limiter           The limit on concurrent requests to the endpoint
+   * @param health            The health tracker for the endpoint
+   */
+  public ConnectionPool(URI uri, Supplier<CompletableFuture<RemediConnection>> connector,
+      int minConnections, int maxConnections, int growthThreshold, long idleTimeoutNanos,
+      ConcurrencyLimiter limiter, EndpointHealth health){
+    this.uri = uri;
+    this.limiter = limiter;
+    this.health = health;
+    this.connector = connector;
+    this.minConnections = Math.max(1, minConnections);
+    this.maxConnections = Math.max(this.minConnections, maxConnections);
+    this.growthThreshold = Math.max(1, growthThreshold);
+    this.idleTimeoutNanos = idleTimeoutNanos;
+
+    for(int i = 0; i < this.minConnections; i++)
+      add(connector.get().join());
+  }
+
+  /**
+   * Get the URI of the endpoint this pool connects to
+   */
+  public URI getUri() {
+    return uri;
+  }
+
+  /**
+   * Get the limit on concurrent requests to the endpoint this pool connects to
+   */
+  public ConcurrencyLimiter getLimiter() {
+    return limiter;
+  }
+
+  /**
+   * Get the health tracker of the endpoint this pool connects to
+   */
+  public EndpointHealth getHealth() {
+    return health;
+  }
+
+  /**
+   * Get the open connections in this pool
+   */
+  public List<RemediConnection> getConnections(){
+    return List.copyOf(connections);
+  }
+
+  /**
+   * Select the connection with the fewest outstanding requests, and mark a request as outstanding on it.
+   * The caller must call {@link #release(RemediConnection)} once the request is complete.
+   */
+  public RemediConnection acquire(){
+    while(true){
+      RemediConnection selected = null;
+      for(RemediConnection c : connections){
+        if(selected == null || c.getOutstanding() < selected.getOutstanding())
+          selected = c;
+      }
+
+      if(selected == null)
+        throw new RemediRuntimeException("No connections available to " + uri);
+
+      if(!selected.tryAcquire())
+        continue;   //Connection was retired whilst we were selecting it, so try again
+
+      if(selected.getOutstanding() > growthThreshold)
+        grow();
+
+      return selected;
+    }
+  }
+
+  /**
+   * Select the connection with the fewest outstanding requests, and mark a request as outstanding on it,
+   * waiting for a connection to be opened if there are currently none. The caller must call
+   * {@link #release(RemediConnection)} once the request is complete. Cancelling the returned future
+   * stops waiting.
+   */
+  public CompletableFuture<RemediConnection> acquireAsync(){
+    if(closed)
+      return CompletableFuture.failedFuture(new RemediRuntimeException("Connection pool to " + uri + " has been closed"));
+
+    if(!connections.isEmpty()) {
+      try {
+        return CompletableFuture.completedFuture(acquire());
+      }catch (RemediRuntimeException e){
+        //The last connection was closed whilst we were selecting it, so wait for another
+      }
+    }
+
+    CompletableFuture<RemediConnection> waiter = new CompletableFuture<>();
+    waiters.add(waiter);
+    waiter.whenComplete((c, e) -> waiters.remove(waiter));
+
+    //In case a connection was added, or the pool was closed, whilst we were queueing
+    serveWaiters();
+
+    return waiter;
+  }
+
+  /**
+   * Mark a request as no longer outstanding on a connection
+   */
+  public void release(RemediConnection connection){
+    connection.release();
+    shrink();
+  }
+
+  /**
+   * Get the number of open connections in this pool
+   */
+  public int size(){
+    return connections.size();
+  }
+
+  /**
+   * Get the total number of requests outstanding across all connections in this pool
+   */
+  public int getOutstanding(){
+    int total = 0;
+    for(RemediConnection c : connections)
+      total += c.getOutstanding();
+
+    return total;
+  }
+
+  /**
+   * Close all connections in this pool
+   */
+  public void close(){
+    closed = true;
+    serveWaiters();
+
+    for(RemediConnection c : connections)
+      c.close();
+
+    connections.clear();
+  }
+
+  private void add(RemediConnection connection){
+    connection.whenClosed(() -> onClosed(connection));
+    connections.add(connection);
+
+    if(closed) {
+      connections.remove(connection);
+      connection.close();
+    }
+
+    serveWaiters();
+  }
+
+  private void serveWaiters(){
+    CompletableFuture<RemediConnection> waiter;
+    while((waiter = waiters.peek()) != null){
+      if(closed){
+        waiters.remove(waiter);
+        waiter.completeExceptionally(new RemediRuntimeException("Connection pool to " + uri + " has been closed"));
+        continue;
+      }
+
+      if(connections.isEmpty())
+        return;
+
+      if(!waiters.remove(waiter))
+        continue;
+
+      RemediConnection c;
+      try {
+        c = acquire();
+      }catch (RemediRuntimeException e){
+        waiters.add(waiter);
+        return;
+      }
+
+      if(!waiter.complete(c))
+        release(c);   //Waiter was cancelled
+    }
+  }
+
+  private void onClosed(RemediConnection connection){
+    if(!connections.remove(connection) || closed)
+      return;
+
+    LOGGER.warn("Connection to {} was closed", uri);
+    if(connections.size() + opening.get() < minConnections){
+      opening.incrementAndGet();
+      reconnect(0);
+    }
+  }
+
+  private void reconnect(int attempt){
+    long maxDelay = Math.min(RECONNECT_MAX_NANOS, RECONNECT_BASE_NANOS << Math.min(attempt, 20));
+    long delay = ThreadLocalRandom.current().nextLong(maxDelay + 1);
+
+    LOGGER.debug("Reconnecting to {} in {} ms", uri, TimeUnit.NANOSECONDS.toMillis(delay));
+    CompletableFuture.runAsync(() -> {}, CompletableFuture.delayedExecutor(delay, TimeUnit.NANOSECONDS))
+        .thenCompose(v -> connector.get())
+        .whenComplete((c, e) -> {
+          if(e != null){
+            if(closed){
+              opening.decrementAndGet();
+              return;
+            }
+
+            LOGGER.warn("Unable to reconnect to {} (attempt {})", uri, attempt + 1, e);
+            reconnect(attempt + 1);
+          }else{
+            LOGGER.info("Reconnected to {}", uri);
+            opening.decrementAndGet();
+            add(c);
+          }
+        });
+  }
+
+  private void grow(){
+    int o = opening.get();
+    if(connections.size() + o >= maxConnections || !opening.compareAndSet(o, o + 1))
+      return;
+
+    LOGGER.debug("Opening additional connection to {}", uri);
+    connector.get().whenComplete((c, e) -> {
+      opening.decrementAndGet();
+
+      if(e != null){
+        LOGGER.warn("Unable to open additional connection to {}", uri, e);
+      }else{
+        add(c);
+      }
+    });
+  }
+
+  private void shrink(){
+    if(connections.size() <= minConnections)
+      return;
+
+    long now = System.nanoTime();
+    for(RemediConnection c : connections){
+      if(now - c.getLastUsed() > idleTimeoutNanos && connections.size() > minConnections && c.retire()){
+        connections.remove(c);
+
+        LOGGER.debug("Closing idle connection to {}", uri);
+        c.close();
+      }
+    }
+  }
+}
@@ -0,0 +1,255 @@
+/*
+National Crime Agency (c) Crown Copyright 2018
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+   http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package uk.gov.nca.remedi4j.client.internal;
+
+import java.net.URI;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.LongSupplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tracks the health of a single REMEDI endpoint, and acts as a circuit breaker for it.
+ *
+ * The outcome of each request (and each active health check) is recorded, and if the error rate over
+ * the most recent outcomes reaches the threshold, the endpoint is ejected. An endpoint may also be
+ * ejected because its latency is an outlier compared to its peers. Whilst ejected, requests should
+ * only be sent to the endpoint if there is no healthy alternative. Each consecutive ejection lasts longer than the last.
+ *
+ * Once the ejection has expired, the endpoint is put back into rotation gradually: the fraction of
+ * requests it is offered ramps up over the recovery period, and if any request fails during this period
+ * then it is ejected again. Once the recovery period has passed without failures, the endpoint is
+ * considered fully healthy again.
+ */
+public class EndpointHealth {
+  private static final double SMOOTHING = 0.3;
+  private static final double MIN_RECOVERY_FRACTION = 0.1;
+  private static final int MAX_EJECTION_MULTIPLIER = 10;
+
+  /**
+   * The state of the endpoint
+   */
+  public enum State {
+    /**
+     * The endpoint is healthy, and all requests may be sent to it
+     */
+    HEALTHY,
+
+    /**
+     * The endpoint has been ejected, and requests should only be sent to it if there is no alternative
+     */
+    EJECTED,
+
+    /**
+     * The endpoint is being put back into rotation, and an increasing fraction of requests may be sent to it
+     */
+    RECOVERING
+  }
+
+  private final URI uri;
+  private final int minRequests;
+  private final double errorRateThreshold;
+  private final long ejectionNanos;
+  private final long recoveryNanos;
+  private final LongSupplier ticker;
+
+  private final boolean[] outcomes;
+  private int outcomeCount = 0;
+  private int outcomeIdx = 0;
+  private int failures = 0;
+
+  private State state = State.HEALTHY;
+  private long stateChanged;
+  private long ejectedUntil = 0;
+  private int ejections = 0;
+
+  private volatile double latency = -1;
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(EndpointHealth.class);
+
+  /**
+   * Create a new health tracker with default thresholds
+   *
+   * @param uri   The URI of the endpoint
+   */
+  public EndpointHealth(URI uri){
+    this(uri, 10, 0.5, 30_000_000_000L, 30_000_000_000L);
+  }
+
+  /**
+   * Create a new health tracker
+   *
+   * @param uri                   The URI of the endpoint
+   * @param minRequests           The number of most recent outcomes over which the error rate is measured
+   * @param errorRateThreshold    The error rate at which the endpoint is ejected, between 0 and 1
+   * @param ejectionNanos         How long the first ejection lasts
+   * @param recoveryNanos         How long it takes for the endpoint to be put fully back into rotation
+   */
+  public EndpointHealth(URI uri, int minRequests, double errorRateThreshold, long ejectionNanos, long recoveryNanos){
+    this(uri, minRequests, errorRateThreshold, ejectionNanos, recoveryNanos, System::nanoTime);
+  }
+
+  /**
+   * Create a new health tracker
+   *
+   * @param uri                   The URI of the endpoint
+   * @param minRequests           The number of most recent outcomes over which the error rate is measured
+   * @param errorRateThreshold    The error rate at which the endpoint is ejected, between 0 and 1
+   * @param ejectionNanos         How long the first ejection lasts
+   * @param recoveryNanos         How long it takes for the endpoint to be put fully back into rotation
+   * @param ticker                Source of the current time in nanoseconds
+   */
+  public EndpointHealth(URI uri, int minRequests, double errorRateThreshold, long ejectionNanos, long recoveryNanos,
+      LongSupplier ticker){
+    this.uri = uri;
+    this.minRequests = Math.max(1, minRequests);
+    this.errorRateThreshold = errorRateThreshold;
+    this.ejectionNanos = ejectionNanos;
+    this.recoveryNanos = recoveryNanos;
+    this.ticker = ticker;
+
+    this.outcomes = new boolean[this.minRequests];
+    this.stateChanged = ticker.getAsLong();
+  }
+
+  /**
+   * Record the outcome of a request or health check
+   *
+   * @param success   True if the request succeeded, false if it failed
+   */
+  public synchronized void record(boolean success){
+    long now = ticker.getAsLong();
+    updateState(now);
+
+    if(!success && state == State.RECOVERING){
+      eject(now, "failed whilst recovering");
+      return;
+    }
+
+    if(state == State.EJECTED)
+      return;
+
+    if(outcomeCount == outcomes.length){
+      if(!outcomes[outcomeIdx])
+        failures--;
+    }else{
+      outcomeCount++;
+    }
+
+    outcomes[outcomeIdx] = success;
+    if(!success)
+      failures++;
+    outcomeIdx = (outcomeIdx + 1) % outcomes.length;
+
+    if(outcomeCount >= minRequests && errorRateThreshold > 0 && failures >= errorRateThreshold * outcomeCount)
+      eject(now, "error rate exceeded");
+  }
+
+  /**
+   * Record the round trip time of a ping. Only pings should be recorded, so that the latencies of
+   * different endpoints reflect the network and are comparable.
+   */
+  public void recordLatency(long nanos){
+    synchronized (this) {
+      latency = latency < 0 ? nanos : (1 - SMOOTHING) * latency + SMOOTHING * nanos;
+    }
+  }
+
+  /**
+   * Get the smoothed ping latency in nanoseconds, or -1 if no latency has been recorded
+   */
+  public double getLatency(){
+    return latency;
+  }
+
+  /**
+   * Eject the endpoint, for example because its latency is an outlier
+   *
+   * @param reason    The reason for the ejection, for logging
+   */
+  public synchronized void eject(String reason){
+    long now = ticker.getAsLong();
+    updateState(now);
+
+    if(state != State.EJECTED)
+      eject(now, reason);
+  }
+
+  /**
+   * Get the current state of the endpoint
+   */
+  public synchronized State getState(){
+    updateState(ticker.getAsLong());
+    return state;
+  }
+
+  /**
+   * Get whether the endpoint is in rotation (i.e. it hasn't been ejected)
+   */
+  public boolean isAvailable(){
+    return getState() != State.EJECTED;
+  }
+
+  /**
+   * Decide whether a request should be offered to the endpoint. This is always true for a healthy
+   * endpoint, never true for an ejected endpoint, and true for a random fraction of requests to
+   * a recovering endpoint, where the fraction increases over the recovery period.
+   */
+  public boolean allowRequest(){
+    double fraction;
+    synchronized (this) {
+      long now = ticker.getAsLong();
+      updateState(now);
+
+      if(state == State.HEALTHY)
+        return true;
+      else if(state == State.EJECTED)
+        return false;
+
+      fraction = Math.max(MIN_RECOVERY_FRACTION, (double) (now - stateChanged) / recoveryNanos);
+    }
+
+    return ThreadLocalRandom.current().nextDouble() < fraction;
+  }
+
+  private void eject(long now, String reason){
+    ejections = Math.min(ejections + 1, MAX_EJECTION_MULTIPLIER);
+    ejectedUntil = now + ejectionNanos * ejections;
+
+    state = State.EJECTED;
+    stateChanged = now;
+
+    outcomeCount = 0;
+    outcomeIdx = 0;
+    failures = 0;
+
+    LOGGER.warn("Ejecting {} ({}) for {} ms", uri, reason, ejectionNanos * ejections / 1_000_000);
+  }
+
+  private void updateState(long now){
+    if(state == State.EJECTED && now - ejectedUntil >= 0){
+      LOGGER.info("Ejection of {} has expired, recovering", uri);
+      state = State.RECOVERING;
+      stateChanged = now;
+    }else if(state == State.RECOVERING && now - stateChanged >= recoveryNanos){
+      LOGGER.info("{} has recovered", uri);
+      state = State.HEALTHY;
+      stateChanged = now;
+      ejections = 0;
+    }
+  }
+}
@@ -0,0 +1,99 @@
+/*
+National Crime Agency (c) Crown Copyright 2018
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+   http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package uk.gov.nca.remedi4j.client.internal;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+/**
+ * Utility class for chaining {@link CompletableFuture}s such that cancelling the final future
+ * also cancels whichever future it is currently waiting on, so that the underlying request can
+ * be abandoned.
+ */
+public class Futures {
+  private Futures(){
+    // Private constructor for utility class
+  }
+
+  /**
+   * Cancel one future if another is cancelled
+   *
+   * @param from    The future whose cancellation should be propagated
+   * @param to      The future to cancel
+   */
+  public static void propagateCancellation(CompletableFuture<?> from, CompletableFuture<?> to){
+    from.whenComplete((r, e) -> {
+      if(from.isCancelled())
+        to.cancel(false);
+    });
+  }
+
+  /**
+   * Equivalent to {@link CompletableFuture#thenApply(Function)}, but cancelling the returned
+   * future also cancels the source future
+   */
+  public static <T, U> CompletableFuture<U> thenApply(CompletableFuture<T> source, Function<? super T, ? extends U> fn){
+    CompletableFuture<U> result = source.thenApply(fn);
+    propagateCancellation(result, source);
+
+    return result;
+  }
+
+  /**
+   * Equivalent to {@link CompletableFuture#thenCompose(Function)}, but cancelling the returned
+   * future also cancels whichever of the source future or the composed future is in progress
+   */
+  public static <T, U> CompletableFuture<U> thenCompose(CompletableFuture<T> source,
+      Function<? super T, ? extends CompletableFuture<U>> fn){
+    CompletableFuture<U> result = new CompletableFuture<>();
+    AtomicReference<CompletableFuture<?>> current = new AtomicReference<>(source);
+
+    result.whenComplete((r, e) -> {
+      if(result.isCancelled())
+        current.get().cancel(false);
+    });
+
+    source.whenComplete((t, e) -> {
+      if(e != null){
+        result.completeExceptionally(e);
+        return;
+      }
+
+      CompletableFuture<U> next;
+      try {
+        next = fn.apply(t);
+      }catch (RuntimeException ex){
+        result.completeExceptionally(ex);
+        return;
+      }
+
+      current.set(next);
+      if(result.isCancelled())
+        next.cancel(false);
+
+      next.whenComplete((u, ex) -> {
+        if(ex != null)
+          result.completeExceptionally(ex);
+        else
+          result.complete(u);
+      });
+    });
+
+    return result;
+  }
+}
@@ -0,0 +1,197 @@
+/*
+National Crime Agency (c) Crown Copyright 2018
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+   http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package uk.gov.nca.remedi4j.client.internal;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.gov.nca.remedi4j.data.TranslationRequest;
+import uk.gov.nca.remedi4j.data.TranslationResponse;
+
+/**
+ * Translation stage which hedges slow requests to reduce tail latency.
+ *
+ * If a request hasn't completed once it has taken longer than a given quantile of the latency of
+ * recent similar requests (i.e. those with the same languages and of a similar size), then a duplicate
+ * request with a fresh job ID is sent, to a different server from the original where possible. Whichever
+ * request succeeds first is used, and the other is cancelled so that its response is discarded when it arrives.
+ *
+ * Latency is measured from when the original request is sent, so time spent queued in the client
+ * doesn't count towards the hedging delay. Only the latency of the original request is recorded,
+ * including when a hedged request wins (in which case the time until the hedge completed is recorded),
+ * as recording the shorter latency of a winning hedge would lower the quantile and cause ever more hedging.
+ *
+ * Hedged requests are limited by a budget, expressed as a fraction of the total number of requests,
+ * so that hedging can't overload the servers when they are all slow.
+ */
+public class HedgingTranslator implements Translator {
+  private static final double MAX_BUDGET_TOKENS = 10.0;
+
+  private final Translator next;
+  private final ScheduledExecutorService scheduler;
+  private final double quantile;
+  private final double budget;
+  private final LongSupplier ticker;
+  private final LatencyTracker latencies = new LatencyTracker(50, 1000);
+
+  private double tokens = 0.0;
+  private long hedged = 0;
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(HedgingTranslator.class);
+
+  /**
+   * Create a new hedging stage
+   *
+   * @param next        The next stage, which requests and hedged requests are passed on to
+   * @param scheduler   The scheduler used to send hedged requests
+   * @param quantile    The latency quantile after which a request is hedged (e.g. 0.95)
+   * @param budget      The maximum fraction of requests that may be hedged (e.g. 0.05)
+   */
+  public HedgingTranslator(Translator next, ScheduledExecutorService scheduler, double quantile, double budget){
+    this(next, scheduler, quantile, budget, System::nanoTime);
+  }
+
+  /**
+   * Create a new hedging stage
+   *
+   * @param next        The next stage, which requests and hedged requests are passed on to
+   * @param scheduler   The scheduler used to send hedged requests
+   * @param quantile    The latency quantile after which a request is hedged (e.g. 0.95)
+   * @param budget      The maximum fraction of requests that may be hedged (e.g. 0.05)
+   * @param ticker      Source of the current time in nanoseconds, used to measure latency
+   */
+  public HedgingTranslator(Translator next, ScheduledExecutorService scheduler, double quantile, double budget,
+      LongSupplier ticker){
+    this.next = next;
+    this.scheduler = scheduler;
+    this.quantile = quantile;
+    this.budget = budget;
+    this.ticker = ticker;
+  }
+
+  @Override
+  public CompletableFuture<TranslationResponse> translate(TranslationRequest request) {
+    deposit();
+
+    long characters = 0;
+    for(String sentence : request.getSourceSentences())
+      characters += sentence.length();
+    List<Object> key = Arrays.asList(request.getSourceLanguage(), request.getTargetLanguage(),
+        LatencyTracker.sizeClass(characters));
+
+    CompletableFuture<TranslationResponse> result = new CompletableFuture<>();
+    List<CompletableFuture<TranslationResponse>> attempts = new CopyOnWriteArrayList<>();
+    AtomicInteger pending = new AtomicInteger();
+    AtomicReference<Throwable> firstError = new AtomicReference<>();
+
+    //Once we have a result (or the caller has given up), cancel any outstanding attempts
+    result.whenComplete((r, e) -> attempts.forEach(a -> a.cancel(false)));
+
+    attempt(() -> next.translate(request, () -> {
+      long start = ticker.getAsLong();
+      result.whenComplete((r, e) -> {
+        if(e == null)
+          latencies.record(key, ticker.getAsLong() - start);
+      });
+
+      long delay = latencies.getQuantile(key, quantile);
+      if(delay > 0 && !result.isDone())
+        scheduleHedge(request, delay, result, attempts, pending, firstError);
+    }), request.getJobId(), result, attempts, pending, firstError);
+
+    return result;
+  }
+
+  /**
+   * Get the number of requests that have been hedged
+   */
+  public synchronized long getHedged(){
+    return hedged;
+  }
+
+  private void scheduleHedge(TranslationRequest request, long delay, CompletableFuture<TranslationResponse> result,
+      List<CompletableFuture<TranslationResponse>> attempts, AtomicInteger pending, AtomicReference<Throwable> firstError){
+    ScheduledFuture<?> task = scheduler.schedule(() -> {
+      if(result.isDone() || !withdraw())
+        return;
+
+      TranslationRequest hedge = new TranslationRequest(request.getSourceLanguage(), request.getTargetLanguage(),
+          request.getSourceSentences());
+      hedge.setPriority(request.getPriority());
+      hedge.setTranslationInfo(request.getTranslationInfo());
+
+      LOGGER.debug("Hedging translation request {} with request {}", request.getJobId(), hedge.getJobId());
+      attempt(() -> next.translateDuplicate(hedge, request.getJobId(), () -> {}), request.getJobId(),
+          result, attempts, pending, firstError);
+    }, delay, TimeUnit.NANOSECONDS);
+
+    result.whenComplete((r, e) -> task.cancel(false));
+  }
+
+  private void attempt(Supplier<CompletableFuture<TranslationResponse>> send, int originalJobId,
+      CompletableFuture<TranslationResponse> result, List<CompletableFuture<TranslationResponse>> attempts,
+      AtomicInteger pending, AtomicReference<Throwable> firstError){
+    pending.incrementAndGet();
+
+    CompletableFuture<TranslationResponse> attempt;
+    try {
+      attempt = send.get();
+    }catch (RuntimeException e){
+      attempt = CompletableFuture.failedFuture(e);
+    }
+    attempts.add(attempt);
+
+    if(result.isDone())
+      attempt.cancel(false);
+
+    CompletableFuture<TranslationResponse> a = attempt;
+    attempt.whenComplete((r, e) -> {
+      if(e == null){
+        r.setJobId(originalJobId);
+        result.complete(r);
+        return;
+      }
+
+      firstError.compareAndSet(null, e);
+      if(pending.decrementAndGet() == 0 && !a.isCancelled())
+        result.completeExceptionally(firstError.get());
+    });
+  }
+
+  private synchronized void deposit(){
+    tokens = Math.min(MAX_BUDGET_TOKENS, tokens + budget);
+  }
+
+  private synchronized boolean withdraw(){
+    if(tokens < 1.0)
+      return false;
+
+    tokens -= 1.0;
+    hedged++;
+    return true;
+  }
+}
@@ -0,0 +1,136 @@
+/*
+National Crime Agency (c) Crown Copyright 2018
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+   http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package uk.gov.nca.remedi4j.client.internal;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Tracks the distribution of request latencies, grouped by an arbitrary key (e.g. language pair and
+ * request size), so that quantiles can be estimated cheaply.
+ *
+ * Latencies are recorded in a histogram with logarithmically sized buckets (four per power of two),
+ * so estimates are accurate to within roughly 20%. Counts are halved periodically, so that the
+ * estimates follow changes in latency over time.
+ */
+public class LatencyTracker {
+  private static final int BUCKETS_PER_OCTAVE = 4;
+  private static final int BUCKETS = 48 * BUCKETS_PER_OCTAVE;
+
+  private final int minSamples;
+  private final int decayInterval;
+  private final Map<Object, Histogram> histograms = new ConcurrentHashMap<>();
+
+  /**
+   * Create a new tracker
+   *
+   * @param minSamples      The minimum number of samples for a key before quantiles are estimated
+   * @param decayInterval   The number of samples for a key after which its counts are halved
+   */
+  public LatencyTracker(int minSamples, int decayInterval){
+    this.minSamples = Math.max(1, minSamples);
+    this.decayInterval = Math.max(this.minSamples * 2, decayInterval);
+  }
+
+  /**
+   * Record the latency of a request
+   *
+   * @param key     The key to record the latency against
+   * @param nanos   The latency, in nanoseconds
+   */
+  public void record(Object key, long nanos){
+    histograms.computeIfAbsent(key, k -> new Histogram()).record(bucket(nanos), decayInterval);
+  }
+
+  /**
+   * Estimate a quantile of the latency for a key, or return -1 if there are not yet enough
+   * samples to do so
+   *
+   * @param key   The key to estimate the quantile for
+   * @param q     The quantile, between 0 and 1
+   * @return
+   *    An upper bound for the quantile, in nanoseconds
+   */
+  public long getQuantile(Object key, double q){
+    Histogram h = histograms.get(key);
+    if(h == null)
+      return -1;
+
+    int b = h.quantile(q, minSamples);
+    return b < 0 ? -1 : upperBound(b);
+  }
+
+  /**
+   * Get the number of keys being tracked
+   */
+  public int size(){
+    return histograms.size();
+  }
+
+  /**
+   * Group a request size into a power-of-two size class, for use as part of a key
+   *
+   * @param size    The size of the request (e.g. in characters)
+   */
+  public static int sizeClass(long size){
+    return 64 - Long.numberOfLeadingZeros(size);
+  }
+
+  private static int bucket(long nanos){
+    if(nanos <= 1)
+      return 0;
+
+    return Math.min(BUCKETS - 1, (int) (Math.log(nanos) / Math.log(2) * BUCKETS_PER_OCTAVE));
+  }
+
+  private static long upperBound(int bucket){
+    return (long) Math.ceil(Math.pow(2, (bucket + 1) / (double) BUCKETS_PER_OCTAVE));
+  }
+
+  private static class Histogram {
+    private final long[] counts = new long[BUCKETS];
+    private long total = 0;
+
+    private synchronized void record(int bucket, int decayInterval){
+      counts[bucket]++;
+      total++;
+
+      if(total >= decayInterval){
+        total = 0;
+        for(int i = 0; i < counts.length; i++){
+          counts[i] >>= 1;
+          total += counts[i];
+        }
+      }
+    }
+
+    private synchronized int quantile(double q, int minSamples){
+      if(total < minSamples)
+        return -1;
+
+      long rank = (long) Math.ceil(q * total);
+      long seen = 0;
+      for(int i = 0; i < counts.length; i++){
+        seen += counts[i];
+        if(seen >= rank && seen > 0)
+          return i;
+      }
+
+      return counts.length - 1;
+    }
+  }
+}
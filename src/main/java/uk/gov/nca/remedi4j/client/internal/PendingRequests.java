@@ -0,0 +1,139 @@
+/*
+National Crime Agency (c) Crown Copyright 2018
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+   http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package uk.gov.nca.remedi4j.client.internal;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import uk.gov.nca.remedi4j.data.BaseMessage;
+
+/**
+ * Registry of requests that have been sent to a server and are awaiting a response,
+ * keyed by the identifier that the server will echo back in its response (e.g. job ID
+ * or job token).
+ *
+ * The keys of a bounded number of recently abandoned requests (i.e. those completed by any means
+ * other than a response, such as being cancelled or timing out) are remembered, so that a late
+ * response to one of them can be told apart from a response to a request that was never made.
+ *
+ * @param <K>   The type of the key used to correlate requests and responses
+ * @param <T>   The type of the response
+ */
+public class PendingRequests<K, T extends BaseMessage> {
+  private static final int MAX_ABANDONED = 1024;
+
+  private final Map<K, CompletableFuture<T>> pending = new ConcurrentHashMap<>();
+  @SuppressWarnings("serial")   //The map is never serialized
+  private final Map<K, Boolean> abandoned = Collections.synchronizedMap(new LinkedHashMap<>(){
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<K, Boolean> eldest) {
+      return size() > MAX_ABANDONED;
+    }
+  });
+
+  /**
+   * Register a new pending request, returning the future that will be completed
+   * when the response arrives, or null if a request with the same key is already pending.
+   *
+   * If the returned future is completed by any other means (e.g. because the request couldn't
+   * be sent), then the request is no longer considered pending.
+   *
+   * @param key   The key of the request
+   */
+  public CompletableFuture<T> register(K key){
+    CompletableFuture<T> future = new CompletableFuture<>();
+    if(pending.putIfAbsent(key, future) != null)
+      return null;
+
+    future.whenComplete((r, e) -> {
+      //Completing via complete() or fail() has already removed the request, so this only succeeds if it was abandoned
+      if(pending.remove(key, future))
+        abandoned.put(key, Boolean.TRUE);
+    });
+
+    return future;
+  }
+
+  /**
+   * Get the future for a pending request, or null if no request with this key is pending
+   *
+   * @param key   The key of the request
+   */
+  public CompletableFuture<T> get(K key){
+    return pending.get(key);
+  }
+
+  /**
+   * Complete a pending request with the response received from the server
+   *
+   * @param key       The key of the request
+   * @param response  The response received
+   * @return
+   *    True if a pending request was found and completed, false otherwise
+   */
+  public boolean complete(K key, T response){
+    CompletableFuture<T> future = pending.remove(key);
+    if(future == null)
+      return false;
+
+    return future.complete(response);
+  }
+
+  /**
+   * Complete a pending request exceptionally
+   *
+   * @param key   The key of the request
+   * @param t     The cause of the failure
+   * @return
+   *    True if a pending request was found and completed, false otherwise
+   */
+  public boolean fail(K key, Throwable t){
+    CompletableFuture<T> future = pending.remove(key);
+    if(future == null)
+      return false;
+
+    return future.completeExceptionally(t);
+  }
+
+  /**
+   * Remove a pending request without completing it
+   *
+   * @param key   The key of the request
+   */
+  public void remove(K key){
+    pending.remove(key);
+  }
+
+  /**
+   * Check whether a request with this key was recently abandoned, and forget it if so. This is used to
+   * tell whether a response that no longer has a pending request is expected.
+   *
+   * @param key   The key of the request
+   */
+  public boolean removeAbandoned(K key){
+    return abandoned.remove(key) != null;
+  }
+
+  /**
+   * Get the number of requests currently pending
+   */
+  public int size(){
+    return pending.size();
+  }
+}
@@ -0,0 +1,233 @@
+/*
+National Crime Agency (c) Crown Copyright 2018
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+   http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package uk.gov.nca.remedi4j.client.internal;
+
+import java.net.http.WebSocket;
+import java.nio.ByteBuffer;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import uk.gov.nca.remedi4j.data.BaseMessage;
+
+/**
+ * A single WebSocket connection to a REMEDI server, along with its listener and
+ * the number of requests currently outstanding on it.
+ *
+ * Once the WebSocket has been closed by the server or has failed, the connection is
+ * considered closed and any actions registered with {@link #whenClosed(Runnable)} are run.
+ */
+public class RemediConnection {
+  private final WebSocket webSocket;
+  private final RemediListener listener;
+  private final SendQueue sendQueue;
+  private final AtomicInteger outstanding = new AtomicInteger();
+  private volatile long lastUsed = System.nanoTime();
+  private final AtomicBoolean open = new AtomicBoolean(true);
+  private final Set<Runnable> closeActions = ConcurrentHashMap.newKeySet();
+
+  private static final int RETIRED = Integer.MIN_VALUE;
+  private static final AtomicLong PING_IDS = new AtomicLong();
+
+  /**
+   * Create a new connection, which sends every message in a single frame
+   *
+   * @param webSocket   The open WebSocket
+   * @param listener    The listener attached to the WebSocket
+   */
+  public RemediConnection(WebSocket webSocket, RemediListener listener){
+    this(webSocket, listener, SendQueue.DEFAULT_FRAGMENT_SIZE);
+  }
+
+  /**
+   * Create a new connection
+   *
+   * @param webSocket     The open WebSocket
+   * @param listener      The listener attached to the WebSocket
+   * @param fragmentSize  The maximum number of characters to send in each frame, or 0 to send every message in a single frame
+   */
+  public RemediConnection(WebSocket webSocket, RemediListener listener, int fragmentSize){
+    this.webSocket = webSocket;
+    this.listener = listener;
+    this.sendQueue = new SendQueue(webSocket, fragmentSize);
+
+    if(listener != null)
+      listener.setCloseHandler(this::closed);
+  }
+
+  /**
+   * Get the WebSocket for this connection
+   */
+  public WebSocket getWebSocket() {
+    return webSocket;
+  }
+
+  /**
+   * Get the listener attached to this connection
+   */
+  public RemediListener getListener() {
+    return listener;
+  }
+
+  /**
+   * Get the number of requests currently outstanding on this connection
+   */
+  public int getOutstanding() {
+    return Math.max(0, outstanding.get());
+  }
+
+  /**
+   * Get the value of {@link System#nanoTime()} when this connection was last released
+   */
+  public long getLastUsed() {
+    return lastUsed;
+  }
+
+  /**
+   * Queue a text message to be sent over this connection. The returned future completes
+   * once the message has been sent, or exceptionally if it could not be sent.
+   */
+  public CompletableFuture<WebSocket> sendText(CharSequence text){
+    return sendQueue.send(text);
+  }
+
+  /**
+   * Queue a message to be serialized and sent over this connection. The message is serialized into a
+   * buffer which is reused for every message sent over this connection. The returned future completes
+   * once the message has been sent, or exceptionally if it could not be serialized or sent.
+   */
+  public CompletableFuture<WebSocket> send(BaseMessage message){
+    return sendQueue.send(message);
+  }
+
+  /**
+   * Send a ping over this connection. The returned future completes with the round trip time in
+   * nanoseconds once the pong is received, or exceptionally if the ping could not be sent. Completing
+   * the returned future by any other means (e.g. because it timed out) abandons the ping.
+   */
+  public CompletableFuture<Long> ping(){
+    long pingId = PING_IDS.incrementAndGet();
+    long start = System.nanoTime();
+
+    CompletableFuture<Long> pong = listener.registerPing(pingId);
+    CompletableFuture<Long> rtt = pong.thenApply(received -> received - start);
+    rtt.whenComplete((r, e) -> pong.cancel(false));
+
+    try {
+      webSocket.sendPing(ByteBuffer.allocate(Long.BYTES).putLong(0, pingId)).whenComplete((ws, e) -> {
+        if(e != null)
+          pong.completeExceptionally(e);
+      });
+    }catch (Exception e){
+      pong.completeExceptionally(e);
+    }
+
+    return rtt;
+  }
+
+  /**
+   * Get a future which completes once every message queued on this connection so far has been sent
+   */
+  public CompletableFuture<Void> flush(){
+    return sendQueue.flush();
+  }
+
+  /**
+   * Close this connection
+   */
+  public void close(){
+    webSocket.sendClose(WebSocket.NORMAL_CLOSURE, "Client closed");
+  }
+
+  /**
+   * Abort this connection, for example because a message couldn't be sent over it, and run the
+   * actions registered with {@link #whenClosed(Runnable)}
+   */
+  public void abort(){
+    webSocket.abort();
+    closed();
+  }
+
+  /**
+   * Get whether this connection is still open
+   */
+  public boolean isOpen(){
+    return open.get();
+  }
+
+  /**
+   * Register an action to run if this connection is closed by the server or fails. If the connection
+   * is already closed, then the action is run immediately.
+   *
+   * @return
+   *    A handle which deregisters the action, which should be run once the action is no longer needed
+   */
+  public Runnable whenClosed(Runnable action){
+    Runnable registered = action::run;   //Wrap the action, so that registering the same action twice is safe
+    closeActions.add(registered);
+
+    if(!open.get() && closeActions.remove(registered))
+      registered.run();
+
+    return () -> closeActions.remove(registered);
+  }
+
+  private void closed(){
+    if(!open.compareAndSet(true, false))
+      return;
+
+    for(Runnable action : closeActions){
+      if(closeActions.remove(action))
+        action.run();
+    }
+  }
+
+  /**
+   * Mark a request as outstanding on this connection, unless the connection has been retired
+   *
+   * @return
+   *    True if the connection can be used, false if it has been retired
+   */
+  boolean tryAcquire(){
+    int o;
+    do {
+      o = outstanding.get();
+      if(o < 0)
+        return false;
+    }while(!outstanding.compareAndSet(o, o + 1));
+
+    return true;
+  }
+
+  /**
+   * Retire this connection so that no further requests can be sent over it,
+   * which is only possible if there are no requests outstanding
+   *
+   * @return
+   *    True if the connection was retired, false if it is still in use
+   */
+  boolean retire(){
+    return outstanding.compareAndSet(0, RETIRED);
+  }
+
+  void release(){
+    outstanding.decrementAndGet();
+    lastUsed = System.nanoTime();
+  }
+}
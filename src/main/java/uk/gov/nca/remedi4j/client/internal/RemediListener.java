@@ -17,11 +17,15 @@ limitations under the License.
 package uk.gov.nca.remedi4j.client.internal;
 
 import java.net.http.WebSocket;
-import java.util.HashMap;
+import java.nio.ByteBuffer;
 import java.util.Map;
-import java.util.Optional;
+import java.util.Queue;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import uk.gov.nca.remedi4j.data.BaseMessage;
@@ -31,70 +35,261 @@ import uk.gov.nca.remedi4j.data.PreProcessorResponse;
 import uk.gov.nca.remedi4j.data.SupportedLanguageResponse;
 import uk.gov.nca.remedi4j.data.TranslationResponse;
 import uk.gov.nca.remedi4j.exceptions.RemediException;
+import uk.gov.nca.remedi4j.exceptions.RemediRuntimeException;
 import uk.gov.nca.remedi4j.utils.MessageUtils;
 
+/**
+ * Listener which completes the pending requests held by the client as soon as the
+ * corresponding responses are received from the server.
+ *
+ * Requests are completed on the provided executor rather than on the thread that received
+ * the response, so that callers' dependent actions don't hold up the WebSocket.
+ *
+ * Each WebSocket should have its own listener, as fragmented messages are reassembled
+ * into a buffer held by the listener until the last fragment is received.
+ */
 public class RemediListener implements WebSocket.Listener {
 
-  private Map<String, PreProcessorResponse> preProcessorResponses = new HashMap<>();
-  private Map<Integer, TranslationResponse> translationResponses = new HashMap<>();
-  private Map<String, PostProcessorResponse> postProcessorResponses = new HashMap<>();
+  private final PendingRequests<String, PreProcessorResponse> preProcessorRequests;
+  private final PendingRequests<Integer, TranslationResponse> translationRequests;
+  private final PendingRequests<String, PostProcessorResponse> postProcessorRequests;
 
-  private SupportedLanguageResponse supportedLanguageResponse;
+  private final Queue<CompletableFuture<SupportedLanguageResponse>> supportedLanguageRequests = new ConcurrentLinkedQueue<>();
+  private final Map<Long, CompletableFuture<Long>> pings = new ConcurrentHashMap<>();
+  private volatile Runnable closeHandler = null;
+
+  private final StringBuilderPool bufferPool;
+  private final Executor executor;
+  private StringBuilder buffer = null;
 
   private static final Logger LOGGER = LoggerFactory.getLogger(RemediListener.class);
 
-  public Optional<PreProcessorResponse> getPreProcessorResponse(String jobToken){
-    return Optional.ofNullable(preProcessorResponses.remove(jobToken));
+  /**
+   * Create a new listener which will complete requests held in the provided registries
+   *
+   * @param preProcessorRequests    Pending pre-processor requests, keyed by job token
+   * @param translationRequests     Pending translation requests, keyed by job ID
+   * @param postProcessorRequests   Pending post-processor requests, keyed by job token
+   * @param bufferPool              Pool of buffers to use when reassembling fragmented messages
+   * @param executor                Executor on which to complete requests
+   */
+  public RemediListener(PendingRequests<String, PreProcessorResponse> preProcessorRequests,
+      PendingRequests<Integer, TranslationResponse> translationRequests,
+      PendingRequests<String, PostProcessorResponse> postProcessorRequests,
+      StringBuilderPool bufferPool, Executor executor){
+    this.preProcessorRequests = preProcessorRequests;
+    this.translationRequests = translationRequests;
+    this.postProcessorRequests = postProcessorRequests;
+    this.bufferPool = bufferPool;
+    this.executor = executor;
   }
 
-  public Optional<TranslationResponse> getTranslationResponse(int jobId){
-    return Optional.ofNullable(translationResponses.remove(jobId));
+  /**
+   * Register a supported language request. As these requests have no identifier,
+   * responses are matched to requests in the order that they were sent.
+   *
+   * This must be called before the request is sent. If the returned future is completed by
+   * any other means (e.g. because the request timed out), then the response to the request
+   * is discarded when it arrives. If the request couldn't be sent, then it must be removed
+   * with {@link #deregisterSupportedLanguageRequest(CompletableFuture)}, as no response will arrive.
+   */
+  public CompletableFuture<SupportedLanguageResponse> registerSupportedLanguageRequest(){
+    CompletableFuture<SupportedLanguageResponse> future = new CompletableFuture<>();
+    supportedLanguageRequests.add(future);
+
+    return future;
   }
 
-  public Optional<PostProcessorResponse> getPostProcessorResponse(String jobToken){
-    return Optional.ofNullable(postProcessorResponses.remove(jobToken));
+  /**
+   * Remove a supported language request which couldn't be sent, so that later responses
+   * are still matched to the right requests
+   *
+   * @param future    The future returned when the request was registered
+   */
+  public void deregisterSupportedLanguageRequest(CompletableFuture<SupportedLanguageResponse> future){
+    supportedLanguageRequests.remove(future);
   }
 
-  public Optional getSupportedLanguageResponse(){
-    return Optional.ofNullable(supportedLanguageResponse);
+  /**
+   * Register a ping, identified by the 8 byte payload that will be sent in the ping and echoed back
+   * in the pong. The returned future completes with the value of {@link System#nanoTime()} when the
+   * pong is received. If the future is completed by any other means (e.g. because the ping timed out),
+   * then the ping is no longer considered pending.
+   *
+   * This must be called before the ping is sent.
+   *
+   * @param pingId    The payload of the ping
+   */
+  public CompletableFuture<Long> registerPing(long pingId){
+    CompletableFuture<Long> future = new CompletableFuture<>();
+    pings.put(pingId, future);
+    future.whenComplete((r, e) -> pings.remove(pingId, future));
+
+    return future;
+  }
+
+  /**
+   * Set the action to run when the WebSocket is closed by the server or fails
+   */
+  public void setCloseHandler(Runnable closeHandler){
+    this.closeHandler = closeHandler;
+  }
+
+  /**
+   * Get the key used to correlate a pre/post processor request with its response. Servers may
+   * append a suffix to the job token in their response (e.g. {@code token.1}), so only the part of
+   * the token before the first full stop is used, combined with the chunk index.
+   *
+   * @param jobToken      The job token of the request or response
+   * @param chunkIndex    The chunk index of the request or response
+   */
+  public static String getProcessorKey(String jobToken, int chunkIndex){
+    int idx = jobToken.indexOf('.');
+    if(idx >= 0)
+      jobToken = jobToken.substring(0, idx);
+
+    return jobToken + "." + chunkIndex;
   }
 
   @Override
   public CompletionStage<?> onText(WebSocket webSocket, CharSequence message, boolean last) {
     webSocket.request(1);
 
-    try {
-      BaseMessage msg = MessageUtils.getMessage(message.toString());
-
-      if(msg.getMessageType() == MessageType.MESSAGE_TRANS_JOB_RESP) {
-        TranslationResponse translationResponse = (TranslationResponse) msg;
-
-        LOGGER.info("Translation response received for job {}", translationResponse.getJobId());
-        translationResponses.put(translationResponse.getJobId(), translationResponse);
-      }else if(msg.getMessageType() == MessageType.MESSAGE_PRE_PROC_JOB_RESP) {
-        PreProcessorResponse preProcessorResponse = (PreProcessorResponse) msg;
-
-        String jobToken = preProcessorResponse.getJobToken().split("\\.")[0];   //TODO: If we enable chunking, this becomes more complex...
-        LOGGER.info("Pre-processor response received for job {}", jobToken);
-        preProcessorResponses.put(jobToken, preProcessorResponse);
-      }else if(msg.getMessageType() == MessageType.MESSAGE_POST_PROC_JOB_RESP) {
-        PostProcessorResponse postProcessorResponse = (PostProcessorResponse) msg;
-
-        String jobToken = postProcessorResponse.getJobToken()
-            .split("\\.")[0];   //TODO: If we enable chunking, this becomes more complex...
-        LOGGER.info("Post-processor response received for job {}", jobToken);
-        postProcessorResponses.put(jobToken, postProcessorResponse);
-      }else if(msg.getMessageType() == MessageType.MESSAGE_SUPP_LANG_RESP) {
-        LOGGER.info("Supported Language Response response received");
-        supportedLanguageResponse = (SupportedLanguageResponse) msg;
-      }else{
-        LOGGER.warn("Unexpected message received: {}", message);
+    if(!last){
+      //Accumulate fragments until we have the complete message
+      if(buffer == null)
+        buffer = bufferPool.acquire();
+
+      buffer.append(message);
+      return null;
+    }
+
+    if(buffer == null){
+      //Unfragmented message, so we can decode it directly without copying
+      onMessage(message);
+    }else{
+      buffer.append(message);
+
+      try {
+        onMessage(buffer);
+      }finally {
+        bufferPool.release(buffer);
+        buffer = null;
       }
+    }
+
+    return null;
+  }
+
+  @Override
+  public CompletionStage<?> onPong(WebSocket webSocket, ByteBuffer message) {
+    long received = System.nanoTime();
+    webSocket.request(1);
 
-      return CompletableFuture.completedFuture(msg);
+    if(message.remaining() < Long.BYTES){
+      LOGGER.debug("Unexpected pong received");
+      return null;
+    }
+
+    CompletableFuture<Long> future = pings.get(message.getLong(message.position()));
+    if(future != null)
+      execute(() -> future.complete(received));
+
+    return null;
+  }
+
+  @Override
+  public CompletionStage<?> onClose(WebSocket webSocket, int statusCode, String reason) {
+    LOGGER.info("WebSocket closed with status {} ({})", statusCode, reason);
+    closed(new RemediRuntimeException("WebSocket closed with status " + statusCode));
+
+    return null;
+  }
+
+  @Override
+  public void onError(WebSocket webSocket, Throwable error) {
+    LOGGER.warn("WebSocket failed", error);
+    closed(new RemediRuntimeException("WebSocket failed", error));
+  }
+
+  private void closed(Throwable t){
+    //No pongs will be received for outstanding pings
+    pings.values().forEach(f -> f.completeExceptionally(t));
+
+    Runnable handler = closeHandler;
+    if(handler != null)
+      handler.run();
+  }
+
+  private void onMessage(CharSequence message){
+    BaseMessage msg;
+    try {
+      msg = MessageUtils.getMessage(message);
     }catch (RemediException e){
       LOGGER.error("Unable to parse message received from server", e);
-      return CompletableFuture.failedFuture(e);
+      return;
+    }
+
+    if(msg.getMessageType() == MessageType.MESSAGE_TRANS_JOB_RESP) {
+      TranslationResponse translationResponse = (TranslationResponse) msg;
+
+      LOGGER.info("Translation response received for job {}", translationResponse.getJobId());
+      complete(translationRequests, translationResponse.getJobId(), translationResponse, "translation");
+    }else if(msg.getMessageType() == MessageType.MESSAGE_PRE_PROC_JOB_RESP) {
+      PreProcessorResponse preProcessorResponse = (PreProcessorResponse) msg;
+
+      String jobToken = getProcessorKey(preProcessorResponse.getJobToken(), preProcessorResponse.getChunkIndex());
+      LOGGER.info("Pre-processor response received for job {}", jobToken);
+      complete(preProcessorRequests, jobToken, preProcessorResponse, "pre-processor");
+    }else if(msg.getMessageType() == MessageType.MESSAGE_POST_PROC_JOB_RESP) {
+      PostProcessorResponse postProcessorResponse = (PostProcessorResponse) msg;
+
+      String jobToken = getProcessorKey(postProcessorResponse.getJobToken(), postProcessorResponse.getChunkIndex());
+      LOGGER.info("Post-processor response received for job {}", jobToken);
+      complete(postProcessorRequests, jobToken, postProcessorResponse, "post-processor");
+    }else if(msg.getMessageType() == MessageType.MESSAGE_SUPP_LANG_RESP) {
+      LOGGER.info("Supported Language Response response received");
+
+      //Responses arrive in the order that requests were sent, so this is the response to the oldest request,
+      //even if that request has since timed out. Requests that couldn't be sent have already been removed.
+      CompletableFuture<SupportedLanguageResponse> future = supportedLanguageRequests.poll();
+      if(future == null) {
+        LOGGER.warn("No pending request found for supported language response");
+      }else if(future.isDone()){
+        LOGGER.debug("Discarding supported language response, as the request is no longer pending");
+      }else{
+        execute(() -> future.complete((SupportedLanguageResponse) msg));
+      }
+    }else{
+      LOGGER.warn("Unexpected message received of type {}", msg.getMessageType());
+    }
+  }
+
+  /**
+   * Complete a pending request on the executor. A response to a request that was abandoned (e.g. a hedged
+   * request that lost, or one that timed out) is expected, so is only logged at debug level.
+   */
+  private <K, T extends BaseMessage> void complete(PendingRequests<K, T> requests, K key, T response, String type){
+    execute(() -> {
+      if(requests.complete(key, response))
+        return;
+
+      if(requests.removeAbandoned(key))
+        LOGGER.debug("Discarding response to abandoned {} job {}", type, key);
+      else
+        LOGGER.warn("No pending request found for {} job {}", type, key);
+    });
+  }
+
+  /**
+   * Run an action on the executor, or on this thread if the executor won't accept it
+   * (e.g. because it has been shut down), so that the request is still completed
+   */
+  private void execute(Runnable action){
+    try {
+      executor.execute(action);
+    }catch (RejectedExecutionException e){
+      action.run();
     }
   }
 }
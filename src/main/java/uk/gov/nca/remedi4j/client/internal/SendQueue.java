@@ -0,0 +1,221 @@
+/*
+National Crime Agency (c) Crown Copyright 2018
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+   http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package uk.gov.nca.remedi4j.client.internal;
+
+import java.net.http.WebSocket;
+import java.nio.CharBuffer;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import uk.gov.nca.remedi4j.data.BaseMessage;
+import uk.gov.nca.remedi4j.utils.MessageUtils;
+
+/**
+ * Outbound message queue for a WebSocket.
+ *
+ * The JDK WebSocket only permits a single outstanding send, so messages are queued and each send
+ * is chained on the completion of the previous one. Whenever the queue is drained, all the messages
+ * currently queued are written back-to-back until a send doesn't complete immediately, at which point
+ * draining resumes from the completion of that send.
+ *
+ * Messages are queued as objects, and only serialized when they reach the front of the queue. As only
+ * one message is written at a time, they are all serialized into the same buffer, which is reused for
+ * the lifetime of the queue rather than allocating a new String for each message. The buffer is a
+ * {@link StringBuilderWriter} rather than a {@link java.io.StringWriter}, as draining is single-threaded
+ * and so there's no need to lock on every write. Messages longer than
+ * the fragment size (if one is set) are sent as a series of partial frames, each a view of the buffer.
+ */
+public class SendQueue {
+  private final WebSocket webSocket;
+  private final int fragmentSize;
+  private final Queue<QueuedMessage> queue = new ConcurrentLinkedQueue<>();
+  private final AtomicBoolean sending = new AtomicBoolean(false);
+
+  private StringBuilderWriter buffer = new StringBuilderWriter(INITIAL_BUFFER_SIZE);
+
+  /**
+   * The default fragment size, which sends every message in a single frame
+   */
+  public static final int DEFAULT_FRAGMENT_SIZE = 0;
+
+  private static final int INITIAL_BUFFER_SIZE = 4096;
+  private static final int MAX_RETAINED_BUFFER_SIZE = 4 * 1024 * 1024;
+
+  /**
+   * Create a new queue for the given WebSocket, which sends every message in a single frame
+   */
+  public SendQueue(WebSocket webSocket){
+    this(webSocket, DEFAULT_FRAGMENT_SIZE);
+  }
+
+  /**
+   * Create a new queue for the given WebSocket
+   *
+   * @param webSocket     The WebSocket to send messages on
+   * @param fragmentSize  The maximum number of characters to send in each frame, or 0 to send every message in a single frame
+   */
+  public SendQueue(WebSocket webSocket, int fragmentSize){
+    this.webSocket = webSocket;
+    this.fragmentSize = fragmentSize;
+  }
+
+  /**
+   * Queue a text message to be sent. The returned future completes when the message has
+   * been sent, or completes exceptionally if it couldn't be sent.
+   *
+   * @param text    The message to send, which must not be modified until the returned future completes
+   */
+  public CompletableFuture<WebSocket> send(CharSequence text){
+    QueuedMessage message = new QueuedMessage(text, null);
+    queue.add(message);
+    drain();
+
+    return message.future;
+  }
+
+  /**
+   * Queue a message to be serialized and sent. The returned future completes when the message has
+   * been sent, or completes exceptionally if it couldn't be serialized or sent.
+   *
+   * @param message   The message to send, which must not be modified until the returned future completes
+   */
+  public CompletableFuture<WebSocket> send(BaseMessage message){
+    QueuedMessage queued = new QueuedMessage(null, message);
+    queue.add(queued);
+    drain();
+
+    return queued.future;
+  }
+
+  /**
+   * Get a future which completes once every message queued so far has been sent (or has failed to send)
+   */
+  public CompletableFuture<Void> flush(){
+    //Queue an empty marker, which is only reached once every message ahead of it has been sent
+    QueuedMessage marker = new QueuedMessage(null, null);
+    queue.add(marker);
+    drain();
+
+    return marker.future.thenApply(ws -> null);
+  }
+
+  /**
+   * Get the number of messages waiting to be sent
+   */
+  public int size(){
+    return queue.size();
+  }
+
+  private void drain(){
+    //Loop in case a message was queued after we found the queue empty, but before we cleared the flag
+    while(!queue.isEmpty() && sending.compareAndSet(false, true)){
+      QueuedMessage message;
+      while((message = queue.poll()) != null){
+        CompletableFuture<WebSocket> f = write(message);
+
+        if(!f.isDone()){
+          f.whenComplete((ws, e) -> {
+            sending.set(false);
+            drain();
+          });
+          return;
+        }
+      }
+
+      sending.set(false);
+    }
+  }
+
+  private CompletableFuture<WebSocket> write(QueuedMessage message){
+    CharSequence text = message.text;
+
+    if(message.message != null){
+      //The previous message has been sent by now, so the buffer is free to be reused
+      StringBuilder sb = buffer.getBuilder();
+      if(sb.capacity() > MAX_RETAINED_BUFFER_SIZE){
+        //Don't hold on to the memory used by an unusually large message
+        buffer = new StringBuilderWriter(INITIAL_BUFFER_SIZE);
+      }else{
+        sb.setLength(0);
+      }
+
+      try{
+        MessageUtils.writeJson(message.message, buffer);
+      }catch (Exception e){
+        message.future.completeExceptionally(e);
+        return message.future;
+      }
+
+      text = buffer.getBuilder();
+    }
+
+    if(text == null){
+      message.future.complete(webSocket);
+      return message.future;
+    }
+
+    CompletableFuture<WebSocket> f = writeFragments(text, 0);
+    f.whenComplete((ws, e) -> {
+      if(e != null){
+        message.future.completeExceptionally(e);
+      }else{
+        message.future.complete(ws);
+      }
+    });
+
+    return f;
+  }
+
+  private CompletableFuture<WebSocket> writeFragments(CharSequence text, int start){
+    int end = text.length();
+    if(fragmentSize > 0 && end - start > fragmentSize){
+      end = start + fragmentSize;
+
+      //Don't split a surrogate pair across frames
+      if(Character.isHighSurrogate(text.charAt(end - 1)))
+        end--;
+    }
+
+    boolean last = end == text.length();
+    CharSequence fragment = start == 0 && last ? text : CharBuffer.wrap(text, start, end);
+
+    CompletableFuture<WebSocket> f;
+    try{
+      f = webSocket.sendText(fragment, last);
+    }catch (Exception e){
+      f = CompletableFuture.failedFuture(e);
+    }
+
+    if(last)
+      return f;
+
+    int next = end;
+    return f.thenCompose(ws -> writeFragments(text, next));
+  }
+
+  private static class QueuedMessage {
+    private final CharSequence text;
+    private final BaseMessage message;
+    private final CompletableFuture<WebSocket> future = new CompletableFuture<>();
+
+    private QueuedMessage(CharSequence text, BaseMessage message){
+      this.text = text;
+      this.message = message;
+    }
+  }
+}
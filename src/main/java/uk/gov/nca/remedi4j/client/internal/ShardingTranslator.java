@@ -0,0 +1,180 @@
+/*
+National Crime Agency (c) Crown Copyright 2018
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+   http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package uk.gov.nca.remedi4j.client.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.ToIntFunction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.gov.nca.remedi4j.data.StatusCode;
+import uk.gov.nca.remedi4j.data.TargetData;
+import uk.gov.nca.remedi4j.data.TranslationRequest;
+import uk.gov.nca.remedi4j.data.TranslationResponse;
+
+/**
+ * Translation stage which splits large requests into shards, so that they can be translated by
+ * several servers concurrently.
+ *
+ * A request is split into at most one shard per server that can translate it, and each shard
+ * contains at least the minimum number of characters. Shards are contiguous ranges of sentences,
+ * balanced by character count rather than sentence count, as translation time depends on the length
+ * of the sentences. The shards are passed on to the next stage concurrently, and their responses are
+ * merged back into a single response with the sentences in their original order.
+ */
+public class ShardingTranslator implements Translator {
+  private final Translator next;
+  private final ToIntFunction<TranslationRequest> servers;
+  private final long minShardCharacters;
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ShardingTranslator.class);
+
+  /**
+   * Create a new sharding stage
+   *
+   * @param next                  The next stage, which shards are passed on to
+   * @param servers               Function returning the number of servers that can translate a request
+   * @param minShardCharacters    The minimum number of characters in each shard
+   */
+  public ShardingTranslator(Translator next, ToIntFunction<TranslationRequest> servers, long minShardCharacters){
+    this.next = next;
+    this.servers = servers;
+    this.minShardCharacters = Math.max(1, minShardCharacters);
+  }
+
+  @Override
+  public CompletableFuture<TranslationResponse> translate(TranslationRequest request) {
+    List<String> sentences = request.getSourceSentences();
+
+    long characters = 0;
+    for(String sentence : sentences)
+      characters += sentence.length();
+
+    long shards = Math.min(Math.min(servers.applyAsInt(request), sentences.size()), characters / minShardCharacters);
+    if(shards <= 1)
+      return next.translate(request);
+
+    int[] boundaries = getBoundaries(sentences, characters, (int) shards);
+
+    List<CompletableFuture<TranslationResponse>> futures = new ArrayList<>(boundaries.length - 1);
+    for(int i = 0; i < boundaries.length - 1; i++){
+      TranslationRequest shard = new TranslationRequest(request.getSourceLanguage(), request.getTargetLanguage(),
+          new ArrayList<>(sentences.subList(boundaries[i], boundaries[i + 1])));
+      shard.setPriority(request.getPriority());
+      shard.setTranslationInfo(request.getTranslationInfo());
+
+      futures.add(sendNext(shard));
+    }
+
+    LOGGER.debug("Split translation request {} ({} characters) into {} shards", request.getJobId(), characters, shards);
+
+    CompletableFuture<TranslationResponse> result = new CompletableFuture<>();
+    CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).whenComplete((v, e) -> {
+      if(e != null){
+        result.completeExceptionally(e);
+        return;
+      }
+
+      result.complete(merge(request, boundaries, futures));
+    });
+
+    for(CompletableFuture<TranslationResponse> f : futures){
+      //If one shard fails, then the request has failed, so abandon the others
+      f.whenComplete((r, e) -> {
+        if(e != null && result.completeExceptionally(e))
+          futures.forEach(other -> other.cancel(false));
+      });
+      Futures.propagateCancellation(result, f);
+    }
+
+    return result;
+  }
+
+  /**
+   * Split the sentences into contiguous ranges with roughly equal numbers of characters, returning the
+   * index of the first sentence of each range followed by the total number of sentences. Every range
+   * contains at least one sentence.
+   */
+  static int[] getBoundaries(List<String> sentences, long characters, int shards){
+    int n = sentences.size();
+
+    int[] boundaries = new int[shards + 1];
+    boundaries[shards] = n;
+
+    long cumulative = 0;
+    int idx = 0;
+    for(int s = 1; s < shards; s++){
+      long target = characters * s / shards;
+
+      //Add sentences to this range until the boundary is as close as possible to the target, whilst
+      //leaving at least one sentence for each of the remaining ranges
+      while(idx < n - (shards - s)
+          && (idx == boundaries[s - 1] || cumulative + sentences.get(idx).length() / 2.0 <= target)){
+        cumulative += sentences.get(idx).length();
+        idx++;
+      }
+
+      boundaries[s] = idx;
+    }
+
+    return boundaries;
+  }
+
+  private static TranslationResponse merge(TranslationRequest request, int[] boundaries,
+      List<CompletableFuture<TranslationResponse>> futures){
+    TranslationResponse merged = new TranslationResponse();
+    merged.setJobId(request.getJobId());
+
+    List<TargetData> targetData = new ArrayList<>(request.getSourceSentences().size());
+    for(int i = 0; i < futures.size(); i++){
+      TranslationResponse response = futures.get(i).join();
+
+      //Report the first shard that wasn't fully translated, if any
+      if(merged.getStatusCode() == null || (merged.getStatusCode() == StatusCode.RESULT_OK
+          && response.getStatusCode() != StatusCode.RESULT_OK)){
+        merged.setStatusCode(response.getStatusCode());
+        merged.setStatusMessage(response.getStatusMessage());
+      }
+
+      List<TargetData> translated = response.getTargetData();
+      int n = boundaries[i + 1] - boundaries[i];
+      for(int j = 0; j < n; j++){
+        if(j < translated.size()){
+          targetData.add(translated.get(j));
+        }else{
+          TargetData td = new TargetData();
+          td.setStatusCode(StatusCode.RESULT_ERROR);
+          td.setStatusMessage("Sentence missing from translation response");
+          targetData.add(td);
+        }
+      }
+    }
+
+    merged.setTargetData(targetData);
+
+    return merged;
+  }
+
+  private CompletableFuture<TranslationResponse> sendNext(TranslationRequest request){
+    try {
+      return next.translate(request);
+    }catch (RuntimeException e){
+      return CompletableFuture.failedFuture(e);
+    }
+  }
+}
@@ -0,0 +1,142 @@
+/*
+National Crime Agency (c) Crown Copyright 2018
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+   http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package uk.gov.nca.remedi4j.client.internal;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Ensures that only one of a set of identical operations is in flight at any one time. Callers
+ * which request an operation while an identical one is already in flight share its result, rather
+ * than starting a new operation.
+ *
+ * @param <K>   The type of the key that identifies identical operations
+ * @param <V>   The type of the result of the operation
+ */
+public class SingleFlight<K, V> {
+  private final Map<K, Flight> inFlight = new ConcurrentHashMap<>();
+
+  /**
+   * Execute an operation, unless an identical operation is already in flight in which case
+   * its result will be shared.
+   *
+   * Each caller receives its own future, so cancelling one caller's future will not affect
+   * any other callers. Once every caller has cancelled their future, the operation itself is
+   * cancelled.
+   *
+   * @param key         The key identifying the operation
+   * @param operation   Function to start the operation
+   */
+  public CompletableFuture<V> execute(K key, Supplier<CompletableFuture<V>> operation){
+    while(true) {
+      Flight flight = new Flight(key);
+      Flight existing = inFlight.putIfAbsent(key, flight);
+
+      if(existing != null) {
+        CompletableFuture<V> copy = existing.join();
+        if(copy == null)
+          continue;   //Every caller has just abandoned the existing flight, so start a new one
+
+        return copy;
+      }
+
+      CompletableFuture<V> copy = flight.join();
+      flight.start(operation);
+
+      return copy;
+    }
+  }
+
+  /**
+   * Get the number of operations currently in flight
+   */
+  public int size(){
+    return inFlight.size();
+  }
+
+  private class Flight {
+    private final K key;
+    private final CompletableFuture<V> result = new CompletableFuture<>();
+    private CompletableFuture<V> operation = null;
+    private int callers = 0;
+    private boolean abandoned = false;
+
+    private Flight(K key){
+      this.key = key;
+    }
+
+    private void start(Supplier<CompletableFuture<V>> supplier){
+      CompletableFuture<V> op;
+      try {
+        op = supplier.get();
+      }catch (RuntimeException e){
+        op = CompletableFuture.failedFuture(e);
+      }
+
+      boolean cancel;
+      synchronized (this){
+        operation = op;
+        cancel = abandoned;
+      }
+
+      if(cancel)
+        op.cancel(false);
+
+      op.whenComplete((v, e) -> {
+        inFlight.remove(key, this);
+
+        if(e != null){
+          result.completeExceptionally(e);
+        }else{
+          result.complete(v);
+        }
+      });
+    }
+
+    private synchronized CompletableFuture<V> join(){
+      if(abandoned)
+        return null;
+
+      callers++;
+
+      CompletableFuture<V> copy = result.copy();
+      copy.whenComplete((v, e) -> {
+        if(copy.isCancelled())
+          leave();
+      });
+
+      return copy;
+    }
+
+    private void leave(){
+      CompletableFuture<V> op;
+      synchronized (this){
+        if(--callers > 0 || result.isDone())
+          return;
+
+        abandoned = true;
+        op = operation;
+        inFlight.remove(key, this);
+      }
+
+      if(op != null)
+        op.cancel(false);
+    }
+  }
+}
@@ -0,0 +1,64 @@
+/*
+National Crime Agency (c) Crown Copyright 2018
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+   http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package uk.gov.nca.remedi4j.client.internal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import uk.gov.nca.remedi4j.data.TranslationRequest;
+import uk.gov.nca.remedi4j.data.TranslationResponse;
+
+/**
+ * Translation stage which ensures that identical concurrent requests (i.e. the same sentences,
+ * languages and options) only result in a single request to the next stage.
+ *
+ * Each caller receives its own copy of the response, carrying the job ID of that caller's request,
+ * so that later stages can safely modify it.
+ */
+public class SingleFlightTranslator implements Translator {
+  private final SingleFlight<List<Object>, TranslationResponse> flights = new SingleFlight<>();
+  private final Translator next;
+
+  /**
+   * Create a new single-flight stage
+   *
+   * @param next    The next stage
+   */
+  public SingleFlightTranslator(Translator next){
+    this.next = next;
+  }
+
+  @Override
+  public CompletableFuture<TranslationResponse> translate(TranslationRequest request) {
+    List<Object> key = Arrays.asList(request.getSourceLanguage(), request.getTargetLanguage(),
+        new ArrayList<>(request.getSourceSentences()), request.getPriority(), request.getTranslationInfo());
+
+    return Futures.thenApply(flights.execute(key, () -> next.translate(request)),
+        response -> copy(response, request.getJobId()));
+  }
+
+  private static TranslationResponse copy(TranslationResponse response, int jobId){
+    TranslationResponse copy = new TranslationResponse();
+    copy.setJobId(jobId);
+    copy.setStatusCode(response.getStatusCode());
+    copy.setStatusMessage(response.getStatusMessage());
+    copy.setTargetData(response.getTargetData() == null ? null : new ArrayList<>(response.getTargetData()));
+
+    return copy;
+  }
+}
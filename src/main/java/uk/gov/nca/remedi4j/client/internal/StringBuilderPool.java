@@ -0,0 +1,107 @@
+/*
+National Crime Agency (c) Crown Copyright 2018
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+   http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package uk.gov.nca.remedi4j.client.internal;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded pool of {@link StringBuilder}s, used to reassemble fragmented messages without
+ * allocating a new buffer for every message.
+ *
+ * Buffers which have grown beyond the maximum retained capacity are discarded rather than
+ * returned to the pool, so that a single very large message doesn't pin memory indefinitely.
+ */
+public class StringBuilderPool {
+  private final Queue<StringBuilder> pool = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger size = new AtomicInteger();
+
+  private final int maxPoolSize;
+  private final int initialCapacity;
+  private final int maxRetainedCapacity;
+
+  /**
+   * Default number of buffers retained by the pool
+   */
+  public static final int DEFAULT_POOL_SIZE = 16;
+
+  /**
+   * Default initial capacity (in characters) of new buffers
+   */
+  public static final int DEFAULT_INITIAL_CAPACITY = 16 * 1024;
+
+  /**
+   * Default maximum capacity (in characters) of buffers that will be returned to the pool
+   */
+  public static final int DEFAULT_MAX_RETAINED_CAPACITY = 1024 * 1024;
+
+  /**
+   * Create a new pool with the default settings
+   */
+  public StringBuilderPool(){
+    this(DEFAULT_POOL_SIZE, DEFAULT_INITIAL_CAPACITY, DEFAULT_MAX_RETAINED_CAPACITY);
+  }
+
+  /**
+   * Create a new pool
+   *
+   * @param maxPoolSize           The maximum number of buffers to retain
+   * @param initialCapacity       The initial capacity of new buffers
+   * @param maxRetainedCapacity   The maximum capacity of buffers that will be retained
+   */
+  public StringBuilderPool(int maxPoolSize, int initialCapacity, int maxRetainedCapacity){
+    this.maxPoolSize = maxPoolSize;
+    this.initialCapacity = initialCapacity;
+    this.maxRetainedCapacity = maxRetainedCapacity;
+  }
+
+  /**
+   * Borrow an empty buffer from the pool, creating a new one if the pool is empty
+   */
+  public StringBuilder acquire(){
+    StringBuilder sb = pool.poll();
+    if(sb == null)
+      return new StringBuilder(initialCapacity);
+
+    size.decrementAndGet();
+    return sb;
+  }
+
+  /**
+   * Return a buffer to the pool. The buffer must not be used by the caller after it has been released.
+   */
+  public void release(StringBuilder sb){
+    if(sb.capacity() > maxRetainedCapacity)
+      return;
+
+    if(size.incrementAndGet() > maxPoolSize){
+      size.decrementAndGet();
+      return;
+    }
+
+    sb.setLength(0);
+    pool.add(sb);
+  }
+
+  /**
+   * Get the number of buffers currently held in the pool
+   */
+  public int size(){
+    return size.get();
+  }
+}
@@ -0,0 +1,97 @@
+/*
+National Crime Agency (c) Crown Copyright 2018
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+   http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+
+package uk.gov.nca.remedi4j.client.internal;
+
+import java.io.Writer;
+
+/**
+ * Unsynchronized {@link Writer} over a {@link StringBuilder}.
+ *
+ * Unlike {@link java.io.StringWriter}, which is backed by a {@link StringBuffer}, writes don't
+ * take a lock. It is only safe to use from one thread at a time.
+ */
+public class StringBuilderWriter extends Writer {
+  private final StringBuilder sb;
+
+  /**
+   * Create a new writer with the given initial capacity
+   */
+  public StringBuilderWriter(int initialCapacity){
+    this.sb = new StringBuilder(initialCapacity);
+  }
+
+  /**
+   * Get the underlying buffer, which reflects everything written so far
+   */
+  public StringBuilder getBuilder(){
+    return sb;
+  }
+
+  @Override
+  public void write(int c){
+    sb.append((char) c);
+  }
+
+  @Override
+  public void write(char[] cbuf, int off, int len){
+    sb.append(cbuf, off, len);
+  }
+
+  @Override
+  public void write(String str){
+    sb.append(str);
+  }
+
+  @Override
+  public void write(String str, int off, int len){
+    sb.append(str, off, off + len);
+  }
+
+  @Override
+  public StringBuilderWriter append(CharSequence csq){
+    sb.append(csq);
+    return this;
+  }
+
+  @Override
+  public StringBuilderWriter append(CharSequence csq, int start, int end){
+    sb.append(csq, start, end);
+    return this;
+  }
+
+  @Override
+  public StringBuilderWriter append(char c){
+    sb.append(c);
+    return this;
+  }
+
+  @Override
+  public void flush(){
+    //Nothing to flush
+  }
+
+  @Override
+  public void close(){
+    //Nothing to close, and the buffer remains usable
+  }
+
+  @Override
+  public String toString(){
+    return sb.toString();
+  }
+}
@@ -0,0 +1,192 @@
+/*
+National Crime Agency (c) Crown Copyright 2018
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+   http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package uk.gov.nca.remedi4j.client.internal;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.gov.nca.remedi4j.utils.LanguagePairTable;
+
+/**
+ * Client side cache of the languages supported by the translation server.
+ *
+ * Reads are lock-free and served from the most recent table. Once the table is older than the
+ * time-to-live, the next read triggers a refresh in the background but is still served from the
+ * existing table. Only the very first read (or a read after every refresh so far has failed) has
+ * to wait for the server. At most one refresh is in flight at any one time.
+ *
+ * If a refresh fails, no further refresh is attempted until the retry interval has passed, and reads
+ * that have no table to fall back on fail immediately with the most recent error rather than waiting
+ * for the server again. The retry interval doubles with each consecutive failure, up to the time-to-live.
+ */
+public class SupportedLanguageCache {
+  private final Supplier<CompletableFuture<LanguagePairTable>> fetcher;
+  private final long ttlNanos;
+  private final long retryNanos;
+  private final LongSupplier ticker;
+
+  private volatile Snapshot snapshot = null;
+  private volatile Failure failure = null;
+  private final AtomicReference<CompletableFuture<LanguagePairTable>> refreshing = new AtomicReference<>();
+
+  private static final long DEFAULT_RETRY_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(SupportedLanguageCache.class);
+
+  /**
+   * Create a new cache
+   *
+   * @param fetcher     Function to fetch the current table from the server
+   * @param ttlNanos    The time after which a table is considered stale and should be refreshed
+   */
+  public SupportedLanguageCache(Supplier<CompletableFuture<LanguagePairTable>> fetcher, long ttlNanos){
+    this(fetcher, ttlNanos, DEFAULT_RETRY_NANOS);
+  }
+
+  /**
+   * Create a new cache
+   *
+   * @param fetcher     Function to fetch the current table from the server
+   * @param ttlNanos    The time after which a table is considered stale and should be refreshed
+   * @param retryNanos  The time to wait before retrying after the first failed refresh
+   */
+  public SupportedLanguageCache(Supplier<CompletableFuture<LanguagePairTable>> fetcher, long ttlNanos, long retryNanos){
+    this(fetcher, ttlNanos, retryNanos, System::nanoTime);
+  }
+
+  /**
+   * Create a new cache
+   *
+   * @param fetcher     Function to fetch the current table from the server
+   * @param ttlNanos    The time after which a table is considered stale and should be refreshed
+   * @param retryNanos  The time to wait before retrying after the first failed refresh
+   * @param ticker      Source of the current time in nanoseconds
+   */
+  public SupportedLanguageCache(Supplier<CompletableFuture<LanguagePairTable>> fetcher, long ttlNanos, long retryNanos,
+      LongSupplier ticker){
+    this.fetcher = fetcher;
+    this.ttlNanos = ttlNanos;
+    this.retryNanos = retryNanos;
+    this.ticker = ticker;
+  }
+
+  /**
+   * Get the supported language table, refreshing it in the background if it is stale. If there is
+   * no table and the most recent refresh failed less than the retry interval ago, then the returned
+   * future fails immediately.
+   */
+  public CompletableFuture<LanguagePairTable> get(){
+    Snapshot s = snapshot;
+
+    if(s == null){
+      Failure f = failure;
+      if(f != null && !f.retryDue(ticker.getAsLong()))
+        return CompletableFuture.failedFuture(f.error);
+
+      return refresh().copy();
+    }
+
+    if(ticker.getAsLong() - s.fetched >= ttlNanos){
+      Failure f = failure;
+      if(f == null || f.retryDue(ticker.getAsLong()))
+        refresh();
+    }
+
+    return CompletableFuture.completedFuture(s.table);
+  }
+
+  /**
+   * Get the most recently fetched table without triggering a refresh, or null if no table
+   * has been fetched yet
+   */
+  public LanguagePairTable getIfPresent(){
+    Snapshot s = snapshot;
+    return s == null ? null : s.table;
+  }
+
+  /**
+   * Refresh the table from the server, unless a refresh is already in progress in which case
+   * that refresh is returned
+   */
+  public CompletableFuture<LanguagePairTable> refresh(){
+    CompletableFuture<LanguagePairTable> future = new CompletableFuture<>();
+    CompletableFuture<LanguagePairTable> existing = refreshing.compareAndExchange(null, future);
+    if(existing != null)
+      return existing;
+
+    LOGGER.debug("Refreshing supported languages");
+
+    CompletableFuture<LanguagePairTable> fetched;
+    try{
+      fetched = fetcher.get();
+    }catch (RuntimeException e){
+      fetched = CompletableFuture.failedFuture(e);
+    }
+
+    fetched.whenComplete((table, e) -> {
+      if(e == null){
+        snapshot = new Snapshot(table, ticker.getAsLong());
+        failure = null;
+      }else{
+        Failure previous = failure;
+        long backoff = previous == null ? retryNanos : Math.min(previous.backoff * 2, Math.max(ttlNanos, retryNanos));
+        failure = new Failure(e, ticker.getAsLong(), backoff);
+
+        LOGGER.warn("Unable to refresh supported languages, retrying in {} ms", TimeUnit.NANOSECONDS.toMillis(backoff), e);
+      }
+
+      refreshing.set(null);
+
+      if(e == null)
+        future.complete(table);
+      else
+        future.completeExceptionally(e);
+    });
+
+    return future;
+  }
+
+  private static class Failure {
+    private final Throwable error;
+    private final long failed;
+    private final long backoff;
+
+    private Failure(Throwable error, long failed, long backoff){
+      this.error = error;
+      this.failed = failed;
+      this.backoff = backoff;
+    }
+
+    private boolean retryDue(long now){
+      return now - failed >= backoff;
+    }
+  }
+
+  private static class Snapshot {
+    private final LanguagePairTable table;
+    private final long fetched;
+
+    private Snapshot(LanguagePairTable table, long fetched){
+      this.table = table;
+      this.fetched = fetched;
+    }
+  }
+}
@@ -0,0 +1,404 @@
+/*
+National Crime Agency (c) Crown Copyright 2018
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+   http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package uk.gov.nca.remedi4j.client.internal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import uk.gov.nca.remedi4j.data.TargetData;
+import uk.gov.nca.remedi4j.data.TranslationResponse;
+import uk.gov.nca.remedi4j.utils.LanguagePairTable;
+
+/**
+ * Routes translation requests across multiple translation servers, sending each request to the
+ * least loaded server.
+ *
+ * The load on a server is estimated from the number of requests this client has in flight to (or
+ * queued for) the server, plus the load from other clients. The latter is learnt from the
+ * {@code stack_load} reported by the server in translation responses, which gives the load on each
+ * of the server's decoder threads. Whatever load isn't accounted for by this client's own requests
+ * is attributed to other clients, and smoothed over time. The total load is divided by the number of
+ * decoder threads, so that larger servers receive proportionally more requests.
+ *
+ * Servers may host different language models. Once the language pairs supported by each server are
+ * known, requests are only routed to servers that support the requested pair. The routing table
+ * interns each language to an integer ID and holds the eligible servers for each pair in a flat list
+ * indexed by the pair, so finding the eligible servers requires two hash lookups and an index.
+ *
+ * Requests are only routed to servers which are in rotation according to their {@link EndpointHealth},
+ * unless none of the eligible servers are.
+ */
+public class TranslationRouter {
+  private static final double SMOOTHING = 0.3;
+
+  private final List<Server> servers;
+  private volatile Routes routes = null;
+
+  /**
+   * Create a new router
+   *
+   * @param pools   The connection pools for each translation server
+   */
+  public TranslationRouter(List<ConnectionPool> pools){
+    if(pools.isEmpty())
+      throw new IllegalArgumentException("At least one translation server must be provided");
+
+    List<Server> s = new ArrayList<>(pools.size());
+    for(ConnectionPool pool : pools)
+      s.add(new Server(pool));
+
+    this.servers = Collections.unmodifiableList(s);
+  }
+
+  /**
+   * Select the least loaded translation server. Ties are broken randomly.
+   */
+  public ConnectionPool select(){
+    return select(servers);
+  }
+
+  /**
+   * Select the least loaded translation server that supports a language pair. Ties are broken randomly.
+   *
+   * If the language pairs supported by the servers are not yet known, then any server may be selected.
+   *
+   * @param sourceLanguage    The source language
+   * @param targetLanguage    The target language
+   * @return
+   *    The selected server, or null if no server supports the language pair
+   */
+  public ConnectionPool select(String sourceLanguage, String targetLanguage){
+    return select(sourceLanguage, targetLanguage, null);
+  }
+
+  /**
+   * Select the least loaded translation server that supports a language pair, other than the excluded
+   * server (e.g. the server that a request being hedged was sent to). The excluded server is only selected
+   * if no other server supports the language pair. Ties are broken randomly.
+   *
+   * If the language pairs supported by the servers are not yet known, then any server may be selected.
+   *
+   * @param sourceLanguage    The source language
+   * @param targetLanguage    The target language
+   * @param exclude           The server to avoid, or null to consider every server
+   * @return
+   *    The selected server, or null if no server supports the language pair
+   */
+  public ConnectionPool select(String sourceLanguage, String targetLanguage, ConnectionPool exclude){
+    Routes r = routes;
+    List<Server> eligible = r == null ? servers : r.get(sourceLanguage, targetLanguage);
+    if(eligible == null)
+      return null;
+
+    if(exclude != null && eligible.size() > 1){
+      List<Server> others = new ArrayList<>(eligible.size() - 1);
+      for(Server s : eligible){
+        if(s.pool != exclude)
+          others.add(s);
+      }
+
+      if(!others.isEmpty())
+        eligible = others;
+    }
+
+    return select(eligible);
+  }
+
+  private static ConnectionPool select(List<Server> candidates){
+    if(candidates.size() == 1)
+      return candidates.get(0).pool;
+
+    int offset = ThreadLocalRandom.current().nextInt(candidates.size());
+
+    Server selected = select(candidates, offset, true);
+    if(selected == null){
+      //None of the servers are healthy, so pick the least loaded anyway rather than failing the request
+      selected = select(candidates, offset, false);
+    }
+
+    return selected.pool;
+  }
+
+  private static Server select(List<Server> candidates, int offset, boolean healthy){
+    Server selected = null;
+    double selectedScore = Double.MAX_VALUE;
+    for(int i = 0; i < candidates.size(); i++){
+      Server s = candidates.get((i + offset) % candidates.size());
+      if(healthy && !s.pool.getHealth().allowRequest())
+        continue;
+
+      double score = s.getScore();
+      if(score < selectedScore){
+        selected = s;
+        selectedScore = score;
+      }
+    }
+
+    return selected;
+  }
+
+  /**
+   * Eject any servers whose health check latency is an outlier compared to the other servers. At most
+   * half of the servers are ejected, and servers are never ejected whilst their latency is below the
+   * minimum.
+   *
+   * @param factor            How many times slower than the median latency a server must be to be ejected
+   * @param minLatencyNanos   The latency below which a server is never ejected
+   */
+  public void ejectOutliers(double factor, long minLatencyNanos){
+    if(servers.size() < 2 || factor <= 0)
+      return;
+
+    List<Server> available = new ArrayList<>(servers.size());
+    List<Double> latencies = new ArrayList<>(servers.size());
+    int ejected = 0;
+    for(Server s : servers){
+      EndpointHealth health = s.pool.getHealth();
+      if(!health.isAvailable()){
+        ejected++;
+      }else if(health.getLatency() >= 0){
+        available.add(s);
+        latencies.add(health.getLatency());
+      }
+    }
+
+    if(available.size() < 2)
+      return;
+
+    Collections.sort(latencies);
+    double threshold = Math.max(minLatencyNanos, latencies.get((latencies.size() - 1) / 2) * factor);
+
+    int ejectable = servers.size() / 2 - ejected;
+    for(Server s : available){
+      if(ejectable <= 0)
+        break;
+
+      double latency = s.pool.getHealth().getLatency();
+      if(latency > threshold){
+        s.pool.getHealth().eject(String.format("latency of %.1f ms is an outlier", latency / 1_000_000));
+        ejectable--;
+      }
+    }
+  }
+
+  /**
+   * Update the load of a server from a translation response it sent
+   *
+   * @param pool        The connection pool of the server that sent the response
+   * @param response    The response
+   */
+  public void onResponse(ConnectionPool pool, TranslationResponse response){
+    List<Integer> stackLoad = null;
+    for(TargetData td : response.getTargetData()){
+      if(td.getStackLoad() != null && !td.getStackLoad().isEmpty())
+        stackLoad = td.getStackLoad();
+    }
+
+    if(stackLoad == null)
+      return;
+
+    for(Server s : servers){
+      if(s.pool == pool){
+        s.update(stackLoad);
+        return;
+      }
+    }
+  }
+
+  /**
+   * Get the number of translation servers that support a language pair. If the language pairs supported
+   * by the servers are not yet known, then every server is counted.
+   *
+   * @param sourceLanguage    The source language
+   * @param targetLanguage    The target language
+   */
+  public int countServers(String sourceLanguage, String targetLanguage){
+    Routes r = routes;
+    if(r == null)
+      return servers.size();
+
+    List<Server> eligible = r.get(sourceLanguage, targetLanguage);
+    return eligible == null ? 0 : eligible.size();
+  }
+
+  /**
+   * Update the routing table with the language pairs supported by each server, and return a table of
+   * the language pairs supported by any server.
+   *
+   * @param tables
+   *    The language pairs supported by each server, in the same order as {@link #getPools()}. If an
+   *    entry is null (e.g. because the server couldn't be queried), then the language pairs previously
+   *    set for that server are retained, or the server is assumed to support no language pairs if none
+   *    have been set.
+   */
+  public LanguagePairTable setLanguagePairTables(List<LanguagePairTable> tables){
+    if(tables.size() != servers.size())
+      throw new IllegalArgumentException("Expected " + servers.size() + " language pair tables, but got " + tables.size());
+
+    synchronized (this) {
+      Routes previous = routes;
+
+      LanguagePairTable[] current = new LanguagePairTable[servers.size()];
+      for(int i = 0; i < current.length; i++){
+        current[i] = tables.get(i);
+        if(current[i] == null && previous != null)
+          current[i] = previous.tables[i];
+      }
+
+      Routes r = new Routes(servers, current);
+      routes = r;
+
+      return r.union;
+    }
+  }
+
+  /**
+   * Get whether the language pairs supported by the servers are known
+   */
+  public boolean hasLanguagePairTables(){
+    return routes != null;
+  }
+
+  /**
+   * Get the estimated load per decoder thread of a server
+   *
+   * @param pool    The connection pool of the server
+   */
+  public double getLoad(ConnectionPool pool){
+    for(Server s : servers){
+      if(s.pool == pool)
+        return s.getScore();
+    }
+
+    throw new IllegalArgumentException("Unknown translation server " + pool.getUri());
+  }
+
+  /**
+   * Get the connection pools of all the translation servers
+   */
+  public List<ConnectionPool> getPools(){
+    List<ConnectionPool> pools = new ArrayList<>(servers.size());
+    for(Server s : servers)
+      pools.add(s.pool);
+
+    return pools;
+  }
+
+  /**
+   * Get whether there is more than one server to route between
+   */
+  public boolean isMultiServer(){
+    return servers.size() > 1;
+  }
+
+  private static class Server {
+    private final ConnectionPool pool;
+    private int threads = 1;
+    private double externalLoad = 0.0;
+
+    private Server(ConnectionPool pool){
+      this.pool = pool;
+    }
+
+    private synchronized double getScore(){
+      ConcurrencyLimiter limiter = pool.getLimiter();
+      return (limiter.getInFlight() + limiter.getQueueLength() + externalLoad) / threads;
+    }
+
+    private synchronized void update(List<Integer> stackLoad){
+      long reported = 0;
+      for(Integer load : stackLoad){
+        if(load != null)
+          reported += load;
+      }
+
+      double external = Math.max(0, reported - pool.getLimiter().getInFlight());
+
+      threads = stackLoad.size();
+      externalLoad = (1 - SMOOTHING) * externalLoad + SMOOTHING * external;
+    }
+  }
+
+  private static class Routes {
+    private final LanguagePairTable[] tables;
+    private final LanguagePairTable union;
+    private final Map<String, Integer> ids = new HashMap<>();
+    private final int width;
+    private final List<List<Server>> eligible;
+
+    private Routes(List<Server> servers, LanguagePairTable[] tables){
+      this.tables = tables;
+
+      Map<String, Set<String>> languages = new HashMap<>();
+      for(LanguagePairTable t : tables){
+        if(t == null)
+          continue;
+
+        for(Map.Entry<String, Set<String>> e : t.getLanguages().entrySet())
+          languages.computeIfAbsent(e.getKey(), k -> new HashSet<>()).addAll(e.getValue());
+      }
+
+      for(Map.Entry<String, Set<String>> e : languages.entrySet()){
+        ids.putIfAbsent(e.getKey(), ids.size());
+        for(String target : e.getValue())
+          ids.putIfAbsent(target, ids.size());
+      }
+
+      this.union = new LanguagePairTable(languages);
+      this.width = ids.size();
+
+      List<List<Server>> eligible = new ArrayList<>(Collections.nCopies(width * width, null));
+      for(int i = 0; i < tables.length; i++){
+        if(tables[i] == null)
+          continue;
+
+        for(Map.Entry<String, Set<String>> e : tables[i].getLanguages().entrySet()){
+          int source = ids.get(e.getKey());
+          for(String target : e.getValue()){
+            int idx = source * width + ids.get(target);
+            if(eligible.get(idx) == null)
+              eligible.set(idx, new ArrayList<>());
+
+            eligible.get(idx).add(servers.get(i));
+          }
+        }
+      }
+
+      this.eligible = eligible;
+    }
+
+    private List<Server> get(String source, String target){
+      if(source == null || target == null)
+        return null;
+
+      Integer s = ids.get(source);
+      if(s == null)
+        return null;
+
+      Integer t = ids.get(target);
+      if(t == null)
+        return null;
+
+      return eligible.get(s * width + t);
+    }
+  }
+}
@@ -0,0 +1,70 @@
+/*
+National Crime Agency (c) Crown Copyright 2018
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+   http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package uk.gov.nca.remedi4j.client.internal;
+
+import java.util.concurrent.CompletableFuture;
+import uk.gov.nca.remedi4j.data.TranslationRequest;
+import uk.gov.nca.remedi4j.data.TranslationResponse;
+
+/**
+ * A stage in the client's translation path. Stages can be layered on top of each other,
+ * with the innermost stage sending the request to the server.
+ */
+@FunctionalInterface
+public interface Translator {
+
+  /**
+   * Translate the sentences in the request
+   *
+   * @param request   The request to translate
+   * @return
+   *    The response to the request
+   */
+  CompletableFuture<TranslationResponse> translate(TranslationRequest request);
+
+  /**
+   * Translate the sentences in the request, and run a callback once the request has stopped waiting in
+   * the client and has been sent. Stages that don't queue requests run the callback straight away.
+   *
+   * @param request   The request to translate
+   * @param onSent    Callback to run once the request has been sent
+   * @return
+   *    The response to the request
+   */
+  default CompletableFuture<TranslationResponse> translate(TranslationRequest request, Runnable onSent){
+    CompletableFuture<TranslationResponse> response = translate(request);
+    onSent.run();
+
+    return response;
+  }
+
+  /**
+   * Translate the sentences in a duplicate of a request which is still in flight (e.g. a hedged request),
+   * preferring a different server to the one the original request was sent to. Stages that don't choose
+   * between servers treat the duplicate like any other request.
+   *
+   * @param request         The duplicate request to translate
+   * @param originalJobId   The job ID of the original request
+   * @param onSent          Callback to run once the request has been sent
+   * @return
+   *    The response to the request
+   */
+  default CompletableFuture<TranslationResponse> translateDuplicate(TranslationRequest request, int originalJobId,
+      Runnable onSent){
+    return translate(request, onSent);
+  }
+}
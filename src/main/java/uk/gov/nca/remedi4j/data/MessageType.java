@@ -17,8 +17,6 @@ limitations under the License.
 package uk.gov.nca.remedi4j.data;
 
 import com.fasterxml.jackson.annotation.JsonValue;
-import java.util.HashMap;
-import java.util.Map;
 
 /**
  * Different possible message types, with their associated integer value
@@ -71,10 +69,15 @@ public enum MessageType {
 
   private final int messageCode;
 
-  private static final Map<Integer, MessageType> lookup = new HashMap<>();
+  private static final MessageType[] lookup;
   static {
+    int max = 0;
     for(MessageType m : MessageType.values())
-      lookup.put(m.getMessageCode(), m);
+      max = Math.max(max, m.getMessageCode());
+
+    lookup = new MessageType[max + 1];
+    for(MessageType m : MessageType.values())
+      lookup[m.getMessageCode()] = m;
   }
 
   MessageType(int messageCode){
@@ -88,7 +91,10 @@ public enum MessageType {
    * @param messageCode Integer value
    */
   public static MessageType of(int messageCode) {
-    return lookup.getOrDefault(messageCode, MESSAGE_UNDEFINED);
+    if(messageCode < 0 || messageCode >= lookup.length || lookup[messageCode] == null)
+      return MESSAGE_UNDEFINED;
+
+    return lookup[messageCode];
   }
 
   /**
@@ -0,0 +1,59 @@
+/*
+National Crime Agency (c) Crown Copyright 2018
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+   http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package uk.gov.nca.remedi4j.exceptions;
+
+/**
+ * Exception thrown when a request is rejected by the client without being sent,
+ * for example because a server is overloaded
+ */
+public class RequestRejectedException extends RemediRuntimeException {
+
+  /**
+   * Default constructor
+   */
+  public RequestRejectedException(){
+    super();
+  }
+
+  /**
+   * Constructor with an error message
+   *
+   * @param message   Error message
+   */
+  public RequestRejectedException(String message){
+    super(message);
+  }
+
+  /**
+   * Constructor with an error message and exception
+   *
+   * @param message     Error message
+   * @param exception   Cause of the error
+   */
+  public RequestRejectedException(String message, Throwable exception){
+    super(message, exception);
+  }
+
+  /**
+   * Constructor with an exception
+   *
+   * @param exception   Cause of the error
+   */
+  public RequestRejectedException(Throwable exception){
+    super(exception);
+  }
+}
\ No newline at end of file
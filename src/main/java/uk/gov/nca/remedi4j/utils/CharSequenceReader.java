@@ -0,0 +1,90 @@
+/*
+National Crime Agency (c) Crown Copyright 2018
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+   http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package uk.gov.nca.remedi4j.utils;
+
+import java.io.Reader;
+import java.nio.CharBuffer;
+
+/**
+ * Reader over a {@link CharSequence}, which allows a sequence to be parsed without first being
+ * copied into a String
+ */
+class CharSequenceReader extends Reader {
+  private final CharSequence sequence;
+  private int position = 0;
+
+  /**
+   * Create a new reader over the provided sequence, which must not be modified whilst it is being read
+   *
+   * @param sequence    The sequence to read
+   */
+  CharSequenceReader(CharSequence sequence){
+    this.sequence = sequence;
+  }
+
+  @Override
+  public int read(char[] cbuf, int off, int len) {
+    int remaining = sequence.length() - position;
+    if(remaining <= 0)
+      return -1;
+
+    int count = Math.min(len, remaining);
+    int end = position + count;
+
+    if(sequence instanceof String){
+      ((String) sequence).getChars(position, end, cbuf, off);
+    }else if(sequence instanceof StringBuilder){
+      ((StringBuilder) sequence).getChars(position, end, cbuf, off);
+    }else if(sequence instanceof CharBuffer){
+      CharBuffer cb = ((CharBuffer) sequence).duplicate();
+      cb.position(cb.position() + position);
+      cb.get(cbuf, off, count);
+    }else{
+      for(int i = 0; i < count; i++)
+        cbuf[off + i] = sequence.charAt(position + i);
+    }
+
+    position = end;
+    return count;
+  }
+
+  @Override
+  public int read() {
+    if(position >= sequence.length())
+      return -1;
+
+    return sequence.charAt(position++);
+  }
+
+  @Override
+  public long skip(long n) {
+    int count = (int) Math.max(0, Math.min(n, sequence.length() - (long) position));
+    position += count;
+
+    return count;
+  }
+
+  @Override
+  public boolean ready() {
+    return true;
+  }
+
+  @Override
+  public void close() {
+    //Nothing to close
+  }
+}
@@ -16,25 +16,24 @@ limitations under the License.
 
 package uk.gov.nca.remedi4j.utils;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
  * Singleton class that can be used to generate consecutive IDs for this instance of Remedi4J
  */
 public class IdGenerator {
-  private static IdGenerator instance = null;
+  private static final IdGenerator instance = new IdGenerator();
   private IdGenerator() {
     // Private constructor for singleton
   }
 
-  private int currentId = 0;
+  private final AtomicInteger currentId = new AtomicInteger();
 
   /**
    * Get the singleton instance of this class
    * @return
    */
   public static IdGenerator getInstance() {
-    if(instance == null) {
-      instance = new IdGenerator();
-    }
     return instance;
   }
 
@@ -42,20 +41,21 @@ public class IdGenerator {
    * Get the current ID
    */
   public int getCurrentId(){
-    return currentId;
+    return currentId.get();
   }
 
   /**
-   * Increment the current ID and return it's new value
+   * Increment the current ID and return it's new value. This is safe to call from multiple threads,
+   * and will never return the same ID twice (until reset).
    */
   public int getNextId(){
-    return ++currentId;
+    return currentId.incrementAndGet();
   }
 
   /**
    * Reset the ID to 0
    */
   protected void reset(){
-    currentId = 0;
+    currentId.set(0);
   }
 }
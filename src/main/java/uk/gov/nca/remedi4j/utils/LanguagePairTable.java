@@ -0,0 +1,118 @@
+/*
+National Crime Agency (c) Crown Copyright 2018
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+   http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package uk.gov.nca.remedi4j.utils;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Immutable, compiled lookup table of supported language pairs. Each language is interned
+ * to an integer ID, and the supported pairs are held in a bit matrix, so checking a pair only
+ * requires two hash lookups and a bit test.
+ *
+ * Instances are safe to share between threads.
+ */
+public final class LanguagePairTable {
+  private final Map<String, Integer> ids;
+  private final long[] pairs;
+  private final int width;
+  private final Map<String, Set<String>> languages;
+
+  /**
+   * Compile a table from a map of source languages to the target languages they can be
+   * translated into
+   *
+   * @param languages   The supported language pairs
+   */
+  public LanguagePairTable(Map<String, Set<String>> languages){
+    Map<String, Integer> ids = new HashMap<>();
+    Map<String, Set<String>> copy = new HashMap<>();
+
+    if(languages != null) {
+      for (Map.Entry<String, Set<String>> e : languages.entrySet()) {
+        if(e.getKey() == null)
+          continue;
+
+        ids.putIfAbsent(e.getKey(), ids.size());
+        Set<String> targets = new LinkedHashSet<>();
+        if(e.getValue() != null) {
+          for (String target : e.getValue()) {
+            if(target == null)
+              continue;
+
+            ids.putIfAbsent(target, ids.size());
+            targets.add(target);
+          }
+        }
+        copy.put(e.getKey(), Collections.unmodifiableSet(targets));
+      }
+    }
+
+    this.ids = ids;
+    this.width = ids.size();
+    this.pairs = new long[(int) (((long) width * width + 63) / 64)];
+
+    for(Map.Entry<String, Set<String>> e : copy.entrySet()){
+      int source = ids.get(e.getKey());
+      for(String target : e.getValue()){
+        int bit = source * width + ids.get(target);
+        pairs[bit >>> 6] |= 1L << bit;
+      }
+    }
+
+    this.languages = Collections.unmodifiableMap(copy);
+  }
+
+  /**
+   * Check whether the table contains a given language pair
+   *
+   * @param source    The source language
+   * @param target    The target language
+   */
+  public boolean supports(String source, String target){
+    if(source == null || target == null)
+      return false;
+
+    Integer s = ids.get(source);
+    if(s == null)
+      return false;
+
+    Integer t = ids.get(target);
+    if(t == null)
+      return false;
+
+    int bit = s * width + t;
+    return (pairs[bit >>> 6] & (1L << bit)) != 0;
+  }
+
+  /**
+   * Get an unmodifiable map of source languages to the target languages they can be translated into
+   */
+  public Map<String, Set<String>> getLanguages(){
+    return languages;
+  }
+
+  /**
+   * Get the number of distinct languages in the table
+   */
+  public int getLanguageCount(){
+    return width;
+  }
+}
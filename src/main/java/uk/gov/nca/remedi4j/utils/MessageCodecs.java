@@ -0,0 +1,653 @@
+/*
+National Crime Agency (c) Crown Copyright 2018
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+   http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package uk.gov.nca.remedi4j.utils;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.deser.std.StdDeserializer;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+import com.fasterxml.jackson.databind.ser.std.StdSerializer;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Supplier;
+import uk.gov.nca.remedi4j.data.BaseMessage;
+import uk.gov.nca.remedi4j.data.PostProcessorRequest;
+import uk.gov.nca.remedi4j.data.PostProcessorResponse;
+import uk.gov.nca.remedi4j.data.PreProcessorRequest;
+import uk.gov.nca.remedi4j.data.PreProcessorResponse;
+import uk.gov.nca.remedi4j.data.ProcessorRequest;
+import uk.gov.nca.remedi4j.data.ProcessorResponse;
+import uk.gov.nca.remedi4j.data.StatusCode;
+import uk.gov.nca.remedi4j.data.SupportedLanguageRequest;
+import uk.gov.nca.remedi4j.data.SupportedLanguageResponse;
+import uk.gov.nca.remedi4j.data.TargetData;
+import uk.gov.nca.remedi4j.data.TranslationRequest;
+import uk.gov.nca.remedi4j.data.TranslationResponse;
+
+/**
+ * Hand-written Jackson serializers and deserializers for the REMEDI messages.
+ *
+ * These read and write each message directly, rather than through the bean introspection and
+ * reflective getter and setter calls that Jackson would otherwise use. The JSON produced is identical
+ * to that produced from the annotations on the message classes (including the field order and null
+ * fields), and unknown fields are still reported to the {@link DeserializationContext}, so they fail
+ * unless the mapper has been configured otherwise.
+ *
+ * The serializers and deserializers are never serialized themselves, so don't declare a serialVersionUID.
+ */
+@SuppressWarnings("serial")
+final class MessageCodecs {
+  private static final TargetDataDeserializer TARGET_DATA_DESERIALIZER = new TargetDataDeserializer();
+
+  private static final StatusCode[] STATUS_CODES;
+  static {
+    int max = 0;
+    for(StatusCode s : StatusCode.values())
+      max = Math.max(max, s.getStatusCode());
+
+    STATUS_CODES = new StatusCode[max + 1];
+    for(StatusCode s : StatusCode.values())
+      STATUS_CODES[s.getStatusCode()] = s;
+  }
+
+  private MessageCodecs(){
+    //Private constructor for utility class
+  }
+
+  /**
+   * Create a Jackson module containing the serializers and deserializers for all REMEDI messages
+   */
+  static SimpleModule module(){
+    SimpleModule module = new SimpleModule("RemediMessages");
+
+    module.addSerializer(SupportedLanguageRequest.class, new SupportedLanguageRequestSerializer());
+    module.addSerializer(SupportedLanguageResponse.class, new SupportedLanguageResponseSerializer());
+    module.addSerializer(TranslationRequest.class, new TranslationRequestSerializer());
+    module.addSerializer(TranslationResponse.class, new TranslationResponseSerializer());
+    module.addSerializer(TargetData.class, new TargetDataSerializer());
+    module.addSerializer(PreProcessorRequest.class, new ProcessorRequestSerializer<>(PreProcessorRequest.class));
+    module.addSerializer(PreProcessorResponse.class, new ProcessorResponseSerializer<>(PreProcessorResponse.class));
+    module.addSerializer(PostProcessorRequest.class, new ProcessorRequestSerializer<>(PostProcessorRequest.class));
+    module.addSerializer(PostProcessorResponse.class, new ProcessorResponseSerializer<>(PostProcessorResponse.class));
+
+    module.addDeserializer(SupportedLanguageRequest.class, new SupportedLanguageRequestDeserializer());
+    module.addDeserializer(SupportedLanguageResponse.class, new SupportedLanguageResponseDeserializer());
+    module.addDeserializer(TranslationRequest.class, new TranslationRequestDeserializer());
+    module.addDeserializer(TranslationResponse.class, new TranslationResponseDeserializer());
+    module.addDeserializer(TargetData.class, TARGET_DATA_DESERIALIZER);
+    module.addDeserializer(PreProcessorRequest.class,
+        new ProcessorRequestDeserializer<>(PreProcessorRequest.class, PreProcessorRequest::new));
+    module.addDeserializer(PreProcessorResponse.class,
+        new ProcessorResponseDeserializer<>(PreProcessorResponse.class, PreProcessorResponse::new));
+    module.addDeserializer(PostProcessorRequest.class,
+        new ProcessorRequestDeserializer<>(PostProcessorRequest.class, PostProcessorRequest::new));
+    module.addDeserializer(PostProcessorResponse.class,
+        new ProcessorResponseDeserializer<>(PostProcessorResponse.class, PostProcessorResponse::new));
+
+    return module;
+  }
+
+  /* Serializers */
+
+  private abstract static class MessageSerializer<T extends BaseMessage> extends StdSerializer<T> {
+    MessageSerializer(Class<T> clazz){
+      super(clazz);
+    }
+
+    @Override
+    public void serialize(T message, JsonGenerator gen, SerializerProvider provider) throws IOException {
+      gen.writeStartObject();
+      gen.writeNumberField("prot_ver", message.getProtoVersion());
+      gen.writeNumberField("msg_type", message.getMessageType().getMessageCode());
+      writeFields(message, gen);
+      gen.writeEndObject();
+    }
+
+    protected abstract void writeFields(T message, JsonGenerator gen) throws IOException;
+  }
+
+  private static class SupportedLanguageRequestSerializer extends MessageSerializer<SupportedLanguageRequest> {
+    SupportedLanguageRequestSerializer(){
+      super(SupportedLanguageRequest.class);
+    }
+
+    @Override
+    protected void writeFields(SupportedLanguageRequest message, JsonGenerator gen) {
+      //No fields other than the header
+    }
+  }
+
+  private static class SupportedLanguageResponseSerializer extends MessageSerializer<SupportedLanguageResponse> {
+    SupportedLanguageResponseSerializer(){
+      super(SupportedLanguageResponse.class);
+    }
+
+    @Override
+    protected void writeFields(SupportedLanguageResponse message, JsonGenerator gen) throws IOException {
+      gen.writeFieldName("langs");
+
+      Map<String, Set<String>> languages = message.getLanguages();
+      if(languages == null){
+        gen.writeNull();
+        return;
+      }
+
+      gen.writeStartObject();
+      for(Map.Entry<String, Set<String>> e : languages.entrySet()){
+        if(e.getKey() == null)
+          throw JsonMappingException.from(gen, "Null key for a Map not allowed in JSON");
+
+        gen.writeFieldName(e.getKey());
+        writeStrings(gen, e.getValue());
+      }
+      gen.writeEndObject();
+    }
+  }
+
+  private static class TranslationRequestSerializer extends MessageSerializer<TranslationRequest> {
+    TranslationRequestSerializer(){
+      super(TranslationRequest.class);
+    }
+
+    @Override
+    protected void writeFields(TranslationRequest message, JsonGenerator gen) throws IOException {
+      gen.writeNumberField("job_id", message.getJobId());
+      gen.writeNumberField("priority", message.getPriority());
+      gen.writeStringField("source_lang", message.getSourceLanguage());
+      gen.writeStringField("target_lang", message.getTargetLanguage());
+      gen.writeBooleanField("is_trans_info", message.getTranslationInfo());
+      gen.writeFieldName("source_sent");
+      writeStrings(gen, message.getSourceSentences());
+    }
+  }
+
+  private static class TranslationResponseSerializer extends MessageSerializer<TranslationResponse> {
+    TranslationResponseSerializer(){
+      super(TranslationResponse.class);
+    }
+
+    @Override
+    protected void writeFields(TranslationResponse message, JsonGenerator gen) throws IOException {
+      gen.writeNumberField("job_id", message.getJobId());
+      writeStatusCode(gen, message.getStatusCode());
+      gen.writeStringField("stat_msg", message.getStatusMessage());
+      gen.writeFieldName("target_data");
+
+      List<TargetData> targetData = message.getTargetData();
+      if(targetData == null){
+        gen.writeNull();
+        return;
+      }
+
+      gen.writeStartArray();
+      for(TargetData td : targetData){
+        if(td == null){
+          gen.writeNull();
+        }else{
+          writeTargetData(gen, td);
+        }
+      }
+      gen.writeEndArray();
+    }
+  }
+
+  private static class TargetDataSerializer extends StdSerializer<TargetData> {
+    TargetDataSerializer(){
+      super(TargetData.class);
+    }
+
+    @Override
+    public void serialize(TargetData targetData, JsonGenerator gen, SerializerProvider provider) throws IOException {
+      writeTargetData(gen, targetData);
+    }
+  }
+
+  private static class ProcessorRequestSerializer<T extends ProcessorRequest> extends MessageSerializer<T> {
+    ProcessorRequestSerializer(Class<T> clazz){
+      super(clazz);
+    }
+
+    @Override
+    protected void writeFields(T message, JsonGenerator gen) throws IOException {
+      gen.writeStringField("job_token", message.getJobToken());
+      gen.writeNumberField("priority", message.getPriority());
+      gen.writeNumberField("num_chs", message.getNumberOfChunks());
+      gen.writeNumberField("ch_idx", message.getChunkIndex());
+      gen.writeStringField("lang", message.getLanguage());
+      gen.writeStringField("text", message.getText());
+    }
+  }
+
+  private static class ProcessorResponseSerializer<T extends ProcessorResponse> extends MessageSerializer<T> {
+    ProcessorResponseSerializer(Class<T> clazz){
+      super(clazz);
+    }
+
+    @Override
+    protected void writeFields(T message, JsonGenerator gen) throws IOException {
+      writeStatusCode(gen, message.getStatusCode());
+      gen.writeStringField("stat_msg", message.getStatusMessage());
+      gen.writeStringField("job_token", message.getJobToken());
+      gen.writeNumberField("num_chs", message.getNumberOfChunks());
+      gen.writeNumberField("ch_idx", message.getChunkIndex());
+      gen.writeStringField("lang", message.getLanguage());
+      gen.writeStringField("text", message.getText());
+    }
+  }
+
+  private static void writeTargetData(JsonGenerator gen, TargetData targetData) throws IOException {
+    gen.writeStartObject();
+    writeStatusCode(gen, targetData.getStatusCode());
+    gen.writeStringField("stat_msg", targetData.getStatusMessage());
+    gen.writeStringField("trans_text", targetData.getTranslatedText());
+    gen.writeFieldName("stack_load");
+
+    List<Integer> stackLoad = targetData.getStackLoad();
+    if(stackLoad == null){
+      gen.writeNull();
+    }else{
+      gen.writeStartArray();
+      for(Integer i : stackLoad){
+        if(i == null){
+          gen.writeNull();
+        }else{
+          gen.writeNumber(i);
+        }
+      }
+      gen.writeEndArray();
+    }
+
+    gen.writeEndObject();
+  }
+
+  private static void writeStatusCode(JsonGenerator gen, StatusCode statusCode) throws IOException {
+    if(statusCode == null){
+      gen.writeNullField("stat_code");
+    }else{
+      gen.writeNumberField("stat_code", statusCode.getStatusCode());
+    }
+  }
+
+  private static void writeStrings(JsonGenerator gen, Iterable<String> strings) throws IOException {
+    if(strings == null){
+      gen.writeNull();
+      return;
+    }
+
+    gen.writeStartArray();
+    for(String s : strings)
+      gen.writeString(s);
+    gen.writeEndArray();
+  }
+
+  /* Deserializers */
+
+  @FunctionalInterface
+  private interface ValueReader<T> {
+    T read(JsonParser p, DeserializationContext ctxt) throws IOException;
+  }
+
+  private abstract static class ObjectDeserializer<T> extends StdDeserializer<T> {
+    private final Supplier<T> factory;
+
+    ObjectDeserializer(Class<T> clazz, Supplier<T> factory){
+      super(clazz);
+      this.factory = factory;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public T deserialize(JsonParser p, DeserializationContext ctxt) throws IOException {
+      JsonToken t = p.currentToken();
+      if(t == JsonToken.START_OBJECT){
+        t = p.nextToken();
+      }else if(t != JsonToken.FIELD_NAME && t != JsonToken.END_OBJECT){
+        return (T) ctxt.handleUnexpectedToken(handledType(), p);
+      }
+
+      T value = factory.get();
+      for(; t == JsonToken.FIELD_NAME; t = p.nextToken()){
+        String field = p.getCurrentName();
+        p.nextToken();
+
+        if(!readField(p, ctxt, value, field))
+          ctxt.handleUnknownProperty(p, this, value, field);
+      }
+
+      return value;
+    }
+
+    /**
+     * Read the value of the named field into the object, returning false if the field is not recognised
+     */
+    protected abstract boolean readField(JsonParser p, DeserializationContext ctxt, T value, String field) throws IOException;
+  }
+
+  private static class SupportedLanguageRequestDeserializer extends ObjectDeserializer<SupportedLanguageRequest> {
+    SupportedLanguageRequestDeserializer(){
+      super(SupportedLanguageRequest.class, SupportedLanguageRequest::new);
+    }
+
+    @Override
+    protected boolean readField(JsonParser p, DeserializationContext ctxt, SupportedLanguageRequest value, String field) throws IOException {
+      return readHeaderField(p, field);
+    }
+  }
+
+  private static class SupportedLanguageResponseDeserializer extends ObjectDeserializer<SupportedLanguageResponse> {
+    SupportedLanguageResponseDeserializer(){
+      super(SupportedLanguageResponse.class, SupportedLanguageResponse::new);
+    }
+
+    @Override
+    protected boolean readField(JsonParser p, DeserializationContext ctxt, SupportedLanguageResponse value, String field) throws IOException {
+      if(!"langs".equals(field))
+        return readHeaderField(p, field);
+
+      if(p.currentToken() == JsonToken.VALUE_NULL){
+        value.setLanguages(null);
+        return true;
+      }
+
+      if(p.currentToken() != JsonToken.START_OBJECT){
+        ctxt.handleUnexpectedToken(Map.class, p);
+        return true;
+      }
+
+      Map<String, Set<String>> languages = new LinkedHashMap<>();
+      while(p.nextToken() == JsonToken.FIELD_NAME){
+        String source = p.getCurrentName();
+        p.nextToken();
+
+        List<String> targets = readList(p, ctxt, MessageCodecs::readString);
+        languages.put(source, targets == null ? null : new HashSet<>(targets));
+      }
+      value.setLanguages(languages);
+
+      return true;
+    }
+  }
+
+  private static class TranslationRequestDeserializer extends ObjectDeserializer<TranslationRequest> {
+    TranslationRequestDeserializer(){
+      super(TranslationRequest.class, TranslationRequest::new);
+    }
+
+    @Override
+    protected boolean readField(JsonParser p, DeserializationContext ctxt, TranslationRequest value, String field) throws IOException {
+      switch (field){
+        case "job_id":
+          value.setJobId(readInt(p, ctxt));
+          return true;
+        case "priority":
+          value.setPriority(readInt(p, ctxt));
+          return true;
+        case "source_lang":
+          value.setSourceLanguage(readString(p, ctxt));
+          return true;
+        case "target_lang":
+          value.setTargetLanguage(readString(p, ctxt));
+          return true;
+        case "is_trans_info":
+          value.setTranslationInfo(readBoolean(p, ctxt));
+          return true;
+        case "source_sent":
+          value.setSourceSentences(readList(p, ctxt, MessageCodecs::readString));
+          return true;
+        default:
+          return readHeaderField(p, field);
+      }
+    }
+  }
+
+  private static class TranslationResponseDeserializer extends ObjectDeserializer<TranslationResponse> {
+    TranslationResponseDeserializer(){
+      super(TranslationResponse.class, TranslationResponse::new);
+    }
+
+    @Override
+    protected boolean readField(JsonParser p, DeserializationContext ctxt, TranslationResponse value, String field) throws IOException {
+      switch (field){
+        case "job_id":
+          value.setJobId(readInt(p, ctxt));
+          return true;
+        case "stat_code":
+          value.setStatusCode(readStatusCode(p, ctxt));
+          return true;
+        case "stat_msg":
+          value.setStatusMessage(readString(p, ctxt));
+          return true;
+        case "target_data":
+          value.setTargetData(readList(p, ctxt, TARGET_DATA_DESERIALIZER::deserialize));
+          return true;
+        default:
+          return readHeaderField(p, field);
+      }
+    }
+  }
+
+  private static class TargetDataDeserializer extends ObjectDeserializer<TargetData> {
+    TargetDataDeserializer(){
+      super(TargetData.class, TargetData::new);
+    }
+
+    @Override
+    protected boolean readField(JsonParser p, DeserializationContext ctxt, TargetData value, String field) throws IOException {
+      switch (field){
+        case "stat_code":
+          value.setStatusCode(readStatusCode(p, ctxt));
+          return true;
+        case "stat_msg":
+          value.setStatusMessage(readString(p, ctxt));
+          return true;
+        case "trans_text":
+          value.setTranslatedText(readString(p, ctxt));
+          return true;
+        case "stack_load":
+          value.setStackLoad(readList(p, ctxt, MessageCodecs::readInt));
+          return true;
+        default:
+          return false;
+      }
+    }
+  }
+
+  private static class ProcessorRequestDeserializer<T extends ProcessorRequest> extends ObjectDeserializer<T> {
+    ProcessorRequestDeserializer(Class<T> clazz, Supplier<T> factory){
+      super(clazz, factory);
+    }
+
+    @Override
+    protected boolean readField(JsonParser p, DeserializationContext ctxt, T value, String field) throws IOException {
+      switch (field){
+        case "job_token":
+          value.setJobToken(readString(p, ctxt));
+          return true;
+        case "priority":
+          value.setPriority(readInt(p, ctxt));
+          return true;
+        case "num_chs":
+          value.setNumberOfChunks(readInt(p, ctxt));
+          return true;
+        case "ch_idx":
+          value.setChunkIndex(readInt(p, ctxt));
+          return true;
+        case "lang":
+          value.setLanguage(readString(p, ctxt));
+          return true;
+        case "text":
+          value.setText(readString(p, ctxt));
+          return true;
+        default:
+          return readHeaderField(p, field);
+      }
+    }
+  }
+
+  private static class ProcessorResponseDeserializer<T extends ProcessorResponse> extends ObjectDeserializer<T> {
+    ProcessorResponseDeserializer(Class<T> clazz, Supplier<T> factory){
+      super(clazz, factory);
+    }
+
+    @Override
+    protected boolean readField(JsonParser p, DeserializationContext ctxt, T value, String field) throws IOException {
+      switch (field){
+        case "stat_code":
+          value.setStatusCode(readStatusCode(p, ctxt));
+          return true;
+        case "stat_msg":
+          value.setStatusMessage(readString(p, ctxt));
+          return true;
+        case "job_token":
+          value.setJobToken(readString(p, ctxt));
+          return true;
+        case "num_chs":
+          value.setNumberOfChunks(readInt(p, ctxt));
+          return true;
+        case "ch_idx":
+          value.setChunkIndex(readInt(p, ctxt));
+          return true;
+        case "lang":
+          value.setLanguage(readString(p, ctxt));
+          return true;
+        case "text":
+          value.setText(readString(p, ctxt));
+          return true;
+        default:
+          return readHeaderField(p, field);
+      }
+    }
+  }
+
+  /**
+   * The protocol version and message type are fixed by the message class, so are accepted but ignored
+   */
+  private static boolean readHeaderField(JsonParser p, String field) throws IOException {
+    if(!"prot_ver".equals(field) && !"msg_type".equals(field))
+      return false;
+
+    p.skipChildren();
+    return true;
+  }
+
+  private static <T> List<T> readList(JsonParser p, DeserializationContext ctxt, ValueReader<T> reader) throws IOException {
+    if(p.currentToken() == JsonToken.VALUE_NULL)
+      return null;
+
+    if(p.currentToken() != JsonToken.START_ARRAY){
+      ctxt.handleUnexpectedToken(List.class, p);
+      return null;
+    }
+
+    List<T> list = new ArrayList<>();
+    JsonToken t;
+    while((t = p.nextToken()) != JsonToken.END_ARRAY)
+      list.add(t == JsonToken.VALUE_NULL ? null : reader.read(p, ctxt));
+
+    return list;
+  }
+
+  private static String readString(JsonParser p, DeserializationContext ctxt) throws IOException {
+    JsonToken t = p.currentToken();
+    if(t == JsonToken.VALUE_NULL)
+      return null;
+
+    if(t.isScalarValue())
+      return p.getText();
+
+    return (String) ctxt.handleUnexpectedToken(String.class, p);
+  }
+
+  private static int readInt(JsonParser p, DeserializationContext ctxt) throws IOException {
+    switch (p.currentToken()){
+      case VALUE_NUMBER_INT:
+        return p.getIntValue();
+      case VALUE_NUMBER_FLOAT:
+        return p.getValueAsInt();
+      case VALUE_NULL:
+        return 0;
+      case VALUE_STRING:
+        String text = p.getText().trim();
+        if(text.isEmpty())
+          return 0;
+
+        try{
+          return Integer.parseInt(text);
+        }catch (NumberFormatException nfe){
+          return (Integer) ctxt.handleWeirdStringValue(Integer.TYPE, text, "not a valid int value");
+        }
+      default:
+        return (Integer) ctxt.handleUnexpectedToken(Integer.TYPE, p);
+    }
+  }
+
+  private static boolean readBoolean(JsonParser p, DeserializationContext ctxt) throws IOException {
+    switch (p.currentToken()){
+      case VALUE_TRUE:
+        return true;
+      case VALUE_FALSE:
+      case VALUE_NULL:
+        return false;
+      case VALUE_NUMBER_INT:
+        return p.getIntValue() != 0;
+      case VALUE_STRING:
+        String text = p.getText().trim();
+        if("true".equals(text))
+          return true;
+        if("false".equals(text) || text.isEmpty())
+          return false;
+
+        return (Boolean) ctxt.handleWeirdStringValue(Boolean.TYPE, text, "only \"true\" or \"false\" recognized");
+      default:
+        return (Boolean) ctxt.handleUnexpectedToken(Boolean.TYPE, p);
+    }
+  }
+
+  private static StatusCode readStatusCode(JsonParser p, DeserializationContext ctxt) throws IOException {
+    switch (p.currentToken()){
+      case VALUE_NULL:
+        return null;
+      case VALUE_NUMBER_INT:
+        int code = p.getIntValue();
+        if(code >= 0 && code < STATUS_CODES.length && STATUS_CODES[code] != null)
+          return STATUS_CODES[code];
+
+        return (StatusCode) ctxt.handleWeirdNumberValue(StatusCode.class, code,
+            "not one of the values accepted for Enum class");
+      case VALUE_STRING:
+        String text = p.getText().trim();
+        for(StatusCode s : STATUS_CODES){
+          if(s != null && text.equals(String.valueOf(s.getStatusCode())))
+            return s;
+        }
+
+        return (StatusCode) ctxt.handleWeirdStringValue(StatusCode.class, text,
+            "not one of the values accepted for Enum class");
+      default:
+        return (StatusCode) ctxt.handleUnexpectedToken(StatusCode.class, p);
+    }
+  }
+}
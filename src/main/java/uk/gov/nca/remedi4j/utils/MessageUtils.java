@@ -16,9 +16,14 @@ limitations under the License.
 
 package uk.gov.nca.remedi4j.utils;
 
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.util.JsonParserSequence;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
 import java.io.IOException;
+import java.io.Writer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import uk.gov.nca.remedi4j.data.BaseMessage;
@@ -41,7 +46,7 @@ import uk.gov.nca.remedi4j.exceptions.UndefinedMessageException;
  */
 public class MessageUtils {
   private static final Pattern messageTypePattern = Pattern.compile("msg_type\"\\s*:\\s*(\\d+)", Pattern.CASE_INSENSITIVE);
-  private static final ObjectMapper mapper = new ObjectMapper();
+  private static final ObjectMapper mapper = new ObjectMapper().registerModule(MessageCodecs.module());
 
   private MessageUtils(){
     //Private constructor for utility class
@@ -54,6 +59,16 @@ public class MessageUtils {
    * @throws InvalidMessageException    If the message does not contain a msg_type field
    */
   public static MessageType determineMessageType(String json) throws InvalidMessageException {
+    return determineMessageType((CharSequence) json);
+  }
+
+  /**
+   * From a JSON string, determine the message type
+   *
+   * @param json    The JSON string to process
+   * @throws InvalidMessageException    If the message does not contain a msg_type field
+   */
+  public static MessageType determineMessageType(CharSequence json) throws InvalidMessageException {
     Matcher m = messageTypePattern.matcher(json);
 
     if(m.find()){
@@ -77,6 +92,18 @@ public class MessageUtils {
     return mapper.writeValueAsString(message);
   }
 
+  /**
+   * Serialize a REMEDI message as JSON into a writer, for callers which reuse their own buffer
+   * rather than allocating a new String for each message
+   *
+   * @param message   The message to serialize
+   * @param writer    The writer to serialize the message into
+   * @throws IOException    If the message can't be serialized, or the writer fails
+   */
+  public static void writeJson(BaseMessage message, Writer writer) throws IOException {
+    mapper.writeValue(writer, message);
+  }
+
   /**
    * Convert a JSON string into message object
    *
@@ -100,41 +127,80 @@ public class MessageUtils {
    * @throws InvalidMessageException      If the message is not valid or cannot be parsed
    */
   public static BaseMessage getMessage(String json) throws RemediException {
-    Class<? extends BaseMessage> messageClass = null;
+    return getMessage((CharSequence) json);
+  }
 
-    switch (determineMessageType(json)){
-      case MESSAGE_UNDEFINED:
-        throw new UndefinedMessageException("Can't parse messages of type " + MessageType.MESSAGE_UNDEFINED);
+  /**
+   * Convert a JSON string into a message object, based on the type defined in the message.
+   *
+   * The JSON is read directly from the provided sequence (e.g. a reassembly buffer), without
+   * first being copied into a String, and is only parsed once. Fields which appear before the
+   * msg_type field are buffered until the message type is known, and the remainder of the
+   * message is then bound directly into the appropriate class.
+   *
+   * @param json    The string to convert
+   * @throws UndefinedMessageException    If the message type is MESSAGE_UNDEFINED
+   * @throws InvalidMessageException      If the message is not valid or cannot be parsed
+   */
+  public static BaseMessage getMessage(CharSequence json) throws RemediException {
+    try (JsonParser parser = mapper.getFactory().createParser(new CharSequenceReader(json))) {
+      if(parser.nextToken() != JsonToken.START_OBJECT)
+        throw new InvalidMessageException("Message is not a JSON object");
+
+      TokenBuffer buffer = new TokenBuffer(parser);
+      buffer.writeStartObject();
+
+      MessageType messageType = null;
+      while(parser.nextToken() == JsonToken.FIELD_NAME){
+        String field = parser.getCurrentName();
+        if("msg_type".equalsIgnoreCase(field)){
+          if(parser.nextToken() != JsonToken.VALUE_NUMBER_INT)
+            throw new InvalidMessageException("Message has a non-integer msg_type field");
+
+          messageType = MessageType.of(parser.getIntValue());
+
+          buffer.writeFieldName(field);
+          buffer.copyCurrentEvent(parser);
+          break;
+        }
+
+        buffer.copyCurrentStructure(parser);
+      }
+
+      if(messageType == null)
+        throw new InvalidMessageException("Message is missing the msg_type field");
+
+      Class<? extends BaseMessage> messageClass = getMessageClass(messageType);
+
+      JsonParser remainder = JsonParserSequence.createFlattened(false, buffer.asParser(), parser);
+      return mapper.readValue(remainder, messageClass);
+    }catch (RemediException re){
+      throw re;
+    }catch (Exception ioe){
+      throw new InvalidMessageException("Unable to parse JSON String", ioe);
+    }
+  }
+
+  private static Class<? extends BaseMessage> getMessageClass(MessageType messageType) throws UndefinedMessageException {
+    switch (messageType){
       case MESSAGE_SUPP_LANG_REQ:
-        messageClass = SupportedLanguageRequest.class;
-        break;
+        return SupportedLanguageRequest.class;
       case MESSAGE_SUPP_LANG_RESP:
-        messageClass = SupportedLanguageResponse.class;
-        break;
+        return SupportedLanguageResponse.class;
       case MESSAGE_TRANS_JOB_REQ:
-        messageClass = TranslationRequest.class;
-        break;
+        return TranslationRequest.class;
       case MESSAGE_TRANS_JOB_RESP:
-        messageClass = TranslationResponse.class;
-        break;
+        return TranslationResponse.class;
       case MESSAGE_PRE_PROC_JOB_REQ:
-        messageClass = PreProcessorRequest.class;
-        break;
+        return PreProcessorRequest.class;
       case MESSAGE_PRE_PROC_JOB_RESP:
-        messageClass = PreProcessorResponse.class;
-        break;
+        return PreProcessorResponse.class;
       case MESSAGE_POST_PROC_JOB_REQ:
-        messageClass = PostProcessorRequest.class;
-        break;
+        return PostProcessorRequest.class;
       case MESSAGE_POST_PROC_JOB_RESP:
-        messageClass = PostProcessorResponse.class;
-        break;
-    }
-
-    try {
-      return mapper.readValue(json, messageClass);
-    }catch (Exception ioe){
-      throw new InvalidMessageException("Unable to parse JSON String", ioe);
+        return PostProcessorResponse.class;
+      default:
+        throw new UndefinedMessageException("Can't parse messages of type " + MessageType.MESSAGE_UNDEFINED);
     }
   }
 }
@@ -16,8 +16,6 @@ limitations under the License.
 
 package uk.gov.nca.remedi4j.utils;
 
-import java.util.Map;
-import java.util.Set;
 import uk.gov.nca.remedi4j.data.SupportedLanguageResponse;
 
 /**
@@ -29,18 +27,38 @@ public class SupportedLanguageUtils {
   }
 
   /**
-   * Check whether a {@link SupportedLanguageResponse} contains a given language pair
+   * Check whether a {@link SupportedLanguageResponse} contains a given language pair.
+   *
+   * The response is compiled into a {@link LanguagePairTable} on every call, so when checking
+   * several pairs against the same response, {@link #compile(SupportedLanguageResponse)} it once
+   * and use {@link #supportsLanguagePair(String, String, LanguagePairTable)} instead.
    *
    * @param source    The source language we want to check
    * @param target    The target language we want to check
    * @param slr       The SupportedLanguageResponse containing the pairs to check
    */
   public static boolean supportsLanguagePair(String source, String target, SupportedLanguageResponse slr){
-    Map<String, Set<String>> languages = slr.getLanguages();
+    return compile(slr).supports(source, target);
+  }
 
-    if(!languages.containsKey(source))
-      return false;
+  /**
+   * Compile a {@link SupportedLanguageResponse} into a {@link LanguagePairTable}, which can be
+   * used to efficiently check language pairs
+   *
+   * @param slr       The SupportedLanguageResponse containing the pairs to compile
+   */
+  public static LanguagePairTable compile(SupportedLanguageResponse slr){
+    return new LanguagePairTable(slr.getLanguages());
+  }
 
-    return languages.get(source).contains(target);
+  /**
+   * Check whether a {@link LanguagePairTable} contains a given language pair
+   *
+   * @param source    The source language we want to check
+   * @param target    The target language we want to check
+   * @param table     The LanguagePairTable containing the pairs to check
+   */
+  public static boolean supportsLanguagePair(String source, String target, LanguagePairTable table){
+    return table.supports(source, target);
   }
 }
@@ -46,4 +46,37 @@ public class TextUtils {
 
     return sentences;
   }
+
+  /**
+   * Split text into chunks of at most the given length, breaking only at sentence boundaries.
+   * A single sentence that is longer than the maximum length will be returned as a chunk on its own.
+   *
+   * @param text            The text to split into chunks
+   * @param maxChunkLength  The maximum length of each chunk, in characters
+   */
+  public static List<String> getChunks(String text, int maxChunkLength){
+    List<String> chunks = new ArrayList<>();
+
+    BreakIterator boundary = BreakIterator.getSentenceInstance();
+    boundary.setText(text);
+
+    int start = boundary.first();
+    int last = start;
+    for (int end = boundary.next(); end != BreakIterator.DONE; last = end, end = boundary.next()) {
+      if(end - start > maxChunkLength && last > start){
+        addChunk(chunks, text.substring(start, last));
+        start = last;
+      }
+    }
+
+    addChunk(chunks, text.substring(start, last));
+
+    return chunks;
+  }
+
+  private static void addChunk(List<String> chunks, String chunk){
+    chunk = chunk.trim();
+    if(!chunk.isEmpty())
+      chunks.add(chunk);
+  }
 }
@@ -0,0 +1,100 @@
+/*
+National Crime Agency (c) Crown Copyright 2018
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+   http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package uk.gov.nca.remedi4j.cache;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import org.junit.jupiter.api.Test;
+
+public class OffHeapTranslationCacheTest {
+  @Test
+  public void testGetAndPut(){
+    OffHeapTranslationCache cache = new OffHeapTranslationCache(64 * 1024);
+
+    assertNull(cache.get("german", "english", "Hallo"));
+    cache.put("german", "english", "Hallo", "Hello");
+    cache.put("german", "english", "Grüß Gott", "Hello");
+    cache.put("german", "english", "Hallo", "Hi");
+
+    assertEquals("Hi", cache.get("german", "english", "Hallo"));
+    assertEquals("Hello", cache.get("german", "english", "Grüß Gott"));
+    assertNull(cache.get("german", "french", "Hallo"));
+
+    assertEquals(2, cache.size());
+    assertEquals(2, cache.getHits());
+    assertEquals(2, cache.getMisses());
+  }
+
+  @Test
+  public void testKeyEncoding(){
+    OffHeapTranslationCache cache = new OffHeapTranslationCache(64 * 1024);
+
+    //Keys with multi-byte characters, surrogate pairs and unpaired surrogates
+    String[] sentences = new String[]{"Grüß Gott", "日本語の文", "Emoji \uD83D\uDE00", "Unpaired \uD83D"};
+    for(int i = 0; i < sentences.length; i++)
+      cache.put("source", "target", sentences[i], "Translation " + i);
+
+    for(int i = 0; i < sentences.length; i++)
+      assertEquals("Translation " + i, cache.get("source", "target", sentences[i]));
+
+    //Long keys after short ones, so the per-thread buffer grows
+    cache.put("source", "target", "ä".repeat(150), "long");
+    assertEquals("long", cache.get("source", "target", "ä".repeat(150)));
+    assertNull(cache.get("source", "target", "ä".repeat(149)));
+  }
+
+  @Test
+  public void testByteBudget(){
+    OffHeapTranslationCache cache = new OffHeapTranslationCache(10_000, 100);
+
+    //Budget only allows for 12 full buckets of 8 slots
+    assertEquals(9_600, cache.getAllocatedBytes());
+
+    for(int i = 0; i < 1000; i++)
+      cache.put("german", "english", "Satz "+i, "Sentence "+i);
+
+    assertEquals(96, cache.size());
+    assertEquals(1000 - 96, cache.getEvictions());
+  }
+
+  @Test
+  public void testOversizedEntries(){
+    OffHeapTranslationCache cache = new OffHeapTranslationCache(10_000, 100);
+
+    cache.put("german", "english", "x".repeat(100), "y");
+    assertNull(cache.get("german", "english", "x".repeat(100)));
+    assertEquals(1, cache.getRejections());
+  }
+
+  @Test
+  public void testClockEviction(){
+    //A single bucket, so all entries compete for the same 8 slots
+    OffHeapTranslationCache cache = new OffHeapTranslationCache(800, 100);
+
+    for(int i = 0; i < 8; i++)
+      cache.put("german", "english", "Satz "+i, "Sentence "+i);
+
+    //Reference the first entry, so that it survives the next eviction
+    cache.get("german", "english", "Satz 0");
+    cache.put("german", "english", "Satz 8", "Sentence 8");
+
+    assertEquals("Sentence 0", cache.get("german", "english", "Satz 0"));
+    assertNull(cache.get("german", "english", "Satz 1"));
+    assertEquals(1, cache.getEvictions());
+  }
+}
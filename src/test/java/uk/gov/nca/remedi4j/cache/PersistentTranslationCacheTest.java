@@ -0,0 +1,136 @@
+/*
+National Crime Agency (c) Crown Copyright 2018
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+   http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package uk.gov.nca.remedi4j.cache;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class PersistentTranslationCacheTest {
+  @TempDir
+  Path directory;
+
+  @Test
+  public void testGetAndPut() throws IOException {
+    try(PersistentTranslationCache cache = new PersistentTranslationCache(directory, 100)){
+      assertNull(cache.get("german", "english", "Hallo"));
+
+      cache.put("german", "english", "Hallo", "Hello");
+      cache.put("german", "english", "Hallo", "Hello");
+      cache.put("german", "french", "Hallo", "Bonjour");
+
+      assertEquals("Hello", cache.get("german", "english", "Hallo"));
+      assertEquals("Bonjour", cache.get("german", "french", "Hallo"));
+      assertNull(cache.get("german", "english", "Tschüss"));
+      assertEquals(2, cache.size());
+    }
+  }
+
+  @Test
+  public void testReopen() throws IOException {
+    try(PersistentTranslationCache cache = new PersistentTranslationCache(directory, 100)){
+      for(int i = 0; i < 50; i++)
+        cache.put("german", "english", "Satz "+i, "Sentence "+i);
+    }
+
+    try(PersistentTranslationCache cache = new PersistentTranslationCache(directory, 100, true)){
+      assertEquals(50, cache.size());
+      for(int i = 0; i < 50; i++)
+        assertEquals("Sentence "+i, cache.get("german", "english", "Satz "+i));
+
+      //Read-only caches should ignore writes
+      cache.put("german", "english", "Hallo", "Hello");
+      assertNull(cache.get("german", "english", "Hallo"));
+    }
+  }
+
+  @Test
+  public void testRefresh() throws IOException {
+    AtomicLong time = new AtomicLong();
+    try(PersistentTranslationCache writer = new PersistentTranslationCache(directory, 100);
+        PersistentTranslationCache reader = new PersistentTranslationCache(directory, 100, true, time::get)){
+      writer.put("german", "english", "Hallo", "Hello");
+      assertEquals(1, reader.size());
+
+      //Entries written by other instances are found once the reader's Bloom filter has been refreshed
+      assertNull(reader.get("german", "english", "Hallo"));
+      time.addAndGet(TimeUnit.MILLISECONDS.toNanos(1100));
+      assertEquals("Hello", reader.get("german", "english", "Hallo"));
+
+      for(int i = 0; i < 20; i++)
+        writer.put("german", "english", "Satz "+i, "Sentence "+i);
+
+      time.addAndGet(TimeUnit.MILLISECONDS.toNanos(1100));
+      for(int i = 0; i < 20; i++)
+        assertEquals("Sentence "+i, reader.get("german", "english", "Satz "+i));
+    }
+  }
+
+  @Test
+  public void testCorruptLog() throws IOException {
+    AtomicLong time = new AtomicLong();
+    try(PersistentTranslationCache writer = new PersistentTranslationCache(directory, 100);
+        PersistentTranslationCache reader = new PersistentTranslationCache(directory, 100, true, time::get)){
+      writer.put("german", "english", "Hallo", "Hello");
+
+      //Corrupt the lengths of the record, which then can't be read or added to the Bloom filter
+      try(FileChannel log = FileChannel.open(directory.resolve(PersistentTranslationCache.LOG_FILE), StandardOpenOption.WRITE)){
+        log.write(ByteBuffer.allocate(8).putInt(0, 20).putInt(4, -5), 8);
+      }
+
+      time.addAndGet(TimeUnit.MILLISECONDS.toNanos(1100));
+      assertNull(reader.get("german", "english", "Hallo"));
+      assertNull(writer.get("german", "english", "Hallo"));
+    }
+  }
+
+  @Test
+  public void testFull() throws IOException {
+    try(PersistentTranslationCache cache = new PersistentTranslationCache(directory, 3)){
+      for(int i = 0; i < 10; i++)
+        cache.put("german", "english", "Satz "+i, "Sentence "+i);
+
+      assertEquals(cache.getMaxEntries(), cache.size());
+      assertEquals("Sentence 0", cache.get("german", "english", "Satz 0"));
+    }
+  }
+
+  @Test
+  public void testTiered() throws IOException {
+    try(PersistentTranslationCache persistent = new PersistentTranslationCache(directory, 100)) {
+      persistent.put("german", "english", "Hallo", "Hello");
+
+      SegmentedLruTranslationCache memory = new SegmentedLruTranslationCache(10);
+      TieredTranslationCache cache = new TieredTranslationCache(memory, persistent);
+
+      assertEquals("Hello", cache.get("german", "english", "Hallo"));
+      assertEquals("Hello", memory.get("german", "english", "Hallo"));
+
+      cache.put("german", "french", "Hallo", "Bonjour");
+      assertEquals("Bonjour", persistent.get("german", "french", "Hallo"));
+    }
+  }
+}
@@ -0,0 +1,62 @@
+/*
+National Crime Agency (c) Crown Copyright 2018
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+   http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package uk.gov.nca.remedi4j.cache;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import org.junit.jupiter.api.Test;
+
+public class SegmentedLruTranslationCacheTest {
+  @Test
+  public void testGetAndPut(){
+    SegmentedLruTranslationCache cache = new SegmentedLruTranslationCache(10);
+
+    assertNull(cache.get("german", "english", "Hallo"));
+    cache.put("german", "english", "Hallo", "Hello");
+
+    assertEquals("Hello", cache.get("german", "english", "Hallo"));
+    assertNull(cache.get("german", "french", "Hallo"));
+
+    assertEquals(1, cache.getHits());
+    assertEquals(2, cache.getMisses());
+    assertEquals(1, cache.size());
+  }
+
+  @Test
+  public void testEviction(){
+    SegmentedLruTranslationCache cache = new SegmentedLruTranslationCache(4, 0.5, 1);
+
+    cache.put("german", "english", "1", "one");
+    cache.put("german", "english", "2", "two");
+
+    //Promote 1 and 2 to the protected segment
+    cache.get("german", "english", "1");
+    cache.get("german", "english", "2");
+
+    //Add more entries than will fit, which should only evict from probation
+    for(int i = 3; i < 10; i++)
+      cache.put("german", "english", Integer.toString(i), "number");
+
+    assertEquals(4, cache.size());
+    assertEquals(5, cache.getEvictions());
+    assertEquals("one", cache.get("german", "english", "1"));
+    assertEquals("two", cache.get("german", "english", "2"));
+    assertNull(cache.get("german", "english", "3"));
+    assertEquals("number", cache.get("german", "english", "9"));
+  }
+}
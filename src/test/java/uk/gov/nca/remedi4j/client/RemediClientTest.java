@@ -0,0 +1,194 @@
+/*
+National Crime Agency (c) Crown Copyright 2018
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+   http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package uk.gov.nca.remedi4j.client;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import uk.gov.nca.remedi4j.cache.TranslationCache;
+import uk.gov.nca.remedi4j.data.PostProcessorRequest;
+import uk.gov.nca.remedi4j.data.PostProcessorResponse;
+import uk.gov.nca.remedi4j.data.PreProcessorRequest;
+import uk.gov.nca.remedi4j.data.PreProcessorResponse;
+import uk.gov.nca.remedi4j.data.ProcessorRequest;
+import uk.gov.nca.remedi4j.data.ProcessorResponse;
+import uk.gov.nca.remedi4j.data.StatusCode;
+import uk.gov.nca.remedi4j.data.SupportedLanguageResponse;
+import uk.gov.nca.remedi4j.data.TargetData;
+import uk.gov.nca.remedi4j.data.TranslationRequest;
+import uk.gov.nca.remedi4j.data.TranslationResponse;
+
+public class RemediClientTest {
+  private static final String TEXT = "First sentence here. Second sentence here. Third sentence here.";
+
+  private StubRemediServer preProcessor;
+  private StubRemediServer translator;
+  private StubRemediServer postProcessor;
+
+  @BeforeEach
+  public void start() throws Exception {
+    SupportedLanguageResponse languages = new SupportedLanguageResponse();
+    languages.addLanguagePair("german", "english");
+
+    preProcessor = new StubRemediServer(languages);
+    translator = new StubRemediServer(languages);
+    postProcessor = new StubRemediServer(languages);
+  }
+
+  @AfterEach
+  public void stop() throws Exception {
+    preProcessor.close();
+    translator.close();
+    postProcessor.close();
+  }
+
+  private static RemediClientConfig config(){
+    RemediClientConfig config = new RemediClientConfig();
+    config.setProcessorChunkSize(25);
+
+    return config;
+  }
+
+  private static <T extends ProcessorResponse> T processed(ProcessorRequest request, T response){
+    response.setStatusCode(StatusCode.RESULT_OK);
+    response.setJobToken(request.getJobToken());
+    response.setChunkIndex(request.getChunkIndex());
+    response.setNumberOfChunks(request.getNumberOfChunks());
+    response.setLanguage(request.getLanguage());
+    response.setText(request.getText());
+
+    return response;
+  }
+
+  private static TranslationResponse translated(TranslationRequest request){
+    TranslationResponse response = new TranslationResponse();
+    response.setJobId(request.getJobId());
+    response.setStatusCode(StatusCode.RESULT_OK);
+    for(String sentence : request.getSourceSentences()){
+      TargetData td = new TargetData();
+      td.setStatusCode(StatusCode.RESULT_OK);
+      td.setTranslatedText(sentence.toUpperCase());
+      response.addTargetData(td);
+    }
+
+    return response;
+  }
+
+  @Test
+  public void testPipelinedChunks() throws Exception {
+    try(RemediClient client = new RemediClient(preProcessor.getUri(), translator.getUri(), postProcessor.getUri(), config())){
+      CompletableFuture<String> result = client.translateText("german", "english", TEXT);
+
+      //Every chunk is pre-processed in parallel
+      Map<String, StubRemediServer.Exchange> pre = new HashMap<>();
+      for(int i = 0; i < 3; i++){
+        StubRemediServer.Exchange exchange = preProcessor.take();
+        pre.put(exchange.<PreProcessorRequest>getRequest().getText(), exchange);
+      }
+      assertEquals(3, pre.size());
+
+      //Chunks move on to translation as soon as they have been pre-processed, whilst the last is still being
+      //pre-processed
+      for(String chunk : new String[]{"First sentence here.", "Second sentence here."}){
+        StubRemediServer.Exchange exchange = pre.get(chunk);
+        exchange.respond(processed(exchange.getRequest(), new PreProcessorResponse()));
+      }
+
+      StubRemediServer.Exchange t1 = translator.take();
+      StubRemediServer.Exchange t2 = translator.take();
+      assertNull(translator.poll(100, TimeUnit.MILLISECONDS));
+
+      StubRemediServer.Exchange third = pre.get("Third sentence here.");
+      third.respond(processed(third.getRequest(), new PreProcessorResponse()));
+      StubRemediServer.Exchange t3 = translator.take();
+
+      //Translations complete out of order, and each is post-processed as soon as it is translated
+      t3.respond(translated(t3.getRequest()));
+      StubRemediServer.Exchange p3 = postProcessor.take();
+      assertEquals("THIRD SENTENCE HERE.", p3.<PostProcessorRequest>getRequest().getText());
+      p3.respond(processed(p3.getRequest(), new PostProcessorResponse()));
+
+      t2.respond(translated(t2.getRequest()));
+      t1.respond(translated(t1.getRequest()));
+      for(int i = 0; i < 2; i++){
+        StubRemediServer.Exchange exchange = postProcessor.take();
+        exchange.respond(processed(exchange.getRequest(), new PostProcessorResponse()));
+      }
+
+      //The output is joined in the original chunk order
+      assertEquals("FIRST SENTENCE HERE. SECOND SENTENCE HERE. THIRD SENTENCE HERE.", result.get(10, TimeUnit.SECONDS));
+    }
+  }
+
+  @Test
+  public void testPipelinedChunkFailure() throws Exception {
+    RemediClientConfig config = config();
+    config.setTranslationCache(new TranslationCache() {
+      @Override
+      public String get(String sourceLanguage, String targetLanguage, String sentence) {
+        return null;
+      }
+
+      @Override
+      public void put(String sourceLanguage, String targetLanguage, String sentence, String translation) {
+        if(sentence.startsWith("Third"))
+          throw new IllegalStateException("Unable to cache translation");
+      }
+    });
+
+    try(RemediClient client = new RemediClient(null, translator.getUri(), null, config)){
+      CompletableFuture<String> result = client.translateText("german", "english", TEXT);
+
+      //Every chunk is translated, but handling the third fails
+      for(int i = 0; i < 3; i++){
+        StubRemediServer.Exchange exchange = translator.take();
+        exchange.respond(translated(exchange.getRequest()));
+      }
+
+      CompletionException e = assertThrows(CompletionException.class, () -> result.orTimeout(10, TimeUnit.SECONDS).join());
+      assertTrue(e.getCause() instanceof IllegalStateException);
+    }
+  }
+
+  @Test
+  public void testUnchunkedText() throws Exception {
+    RemediClientConfig config = config();
+    config.setProcessorChunkSize(0);
+
+    try(RemediClient client = new RemediClient(null, translator.getUri(), null, config)){
+      CompletableFuture<String> result = client.translateText("german", "english", TEXT);
+
+      StubRemediServer.Exchange exchange = translator.take();
+      assertEquals(3, exchange.<TranslationRequest>getRequest().getSourceSentences().size());
+      assertFalse(result.isDone());
+
+      exchange.respond(translated(exchange.getRequest()));
+      assertEquals(TEXT.toUpperCase(), result.get(10, TimeUnit.SECONDS));
+    }
+  }
+}
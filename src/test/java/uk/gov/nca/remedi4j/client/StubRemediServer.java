@@ -0,0 +1,269 @@
+/*
+National Crime Agency (c) Crown Copyright 2018
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+   http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package uk.gov.nca.remedi4j.client;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import uk.gov.nca.remedi4j.data.BaseMessage;
+import uk.gov.nca.remedi4j.data.MessageType;
+import uk.gov.nca.remedi4j.data.SupportedLanguageRequest;
+import uk.gov.nca.remedi4j.data.SupportedLanguageResponse;
+import uk.gov.nca.remedi4j.data.TranslationRequest;
+import uk.gov.nca.remedi4j.utils.MessageUtils;
+
+/**
+ * Minimal WebSocket server for testing the client against. Supported language requests are answered
+ * automatically, and every other request is queued so that the test can decide when (and whether) to
+ * respond to it.
+ */
+public class StubRemediServer implements AutoCloseable {
+  private static final String WEBSOCKET_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+
+  private final ServerSocket serverSocket;
+  private final SupportedLanguageResponse supportedLanguages;
+  private final BlockingQueue<Exchange> exchanges = new LinkedBlockingQueue<>();
+  private final List<Socket> sockets = new CopyOnWriteArrayList<>();
+
+  /**
+   * A request received by the server, and the response to send back
+   */
+  public static class Exchange {
+    private final BaseMessage request;
+    private final CompletableFuture<BaseMessage> response = new CompletableFuture<>();
+
+    private Exchange(BaseMessage request){
+      this.request = request;
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T extends BaseMessage> T getRequest(){
+      return (T) request;
+    }
+
+    public void respond(BaseMessage message){
+      response.complete(message);
+    }
+  }
+
+  public StubRemediServer(SupportedLanguageResponse supportedLanguages) throws IOException {
+    this.supportedLanguages = supportedLanguages;
+    this.serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+
+    Thread thread = new Thread(this::accept, "stub-remedi-server");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  public URI getUri(){
+    return URI.create("ws://localhost:" + serverSocket.getLocalPort() + "/");
+  }
+
+  /**
+   * Wait for the next request received by the server
+   */
+  public Exchange take() throws InterruptedException {
+    Exchange exchange = exchanges.poll(10, TimeUnit.SECONDS);
+    if(exchange == null)
+      throw new AssertionError("No request received by " + getUri());
+
+    return exchange;
+  }
+
+  /**
+   * Get the next request received by the server, if one arrives within the timeout
+   */
+  public Exchange poll(long timeout, TimeUnit unit) throws InterruptedException {
+    return exchanges.poll(timeout, unit);
+  }
+
+  @Override
+  public void close() throws IOException {
+    serverSocket.close();
+    for(Socket socket : sockets)
+      socket.close();
+  }
+
+  private void accept(){
+    while(!serverSocket.isClosed()){
+      Socket socket;
+      try {
+        socket = serverSocket.accept();
+      }catch (IOException e){
+        return;
+      }
+
+      sockets.add(socket);
+      Thread thread = new Thread(() -> handle(socket), "stub-remedi-connection");
+      thread.setDaemon(true);
+      thread.start();
+    }
+  }
+
+  private void handle(Socket socket){
+    try (socket) {
+      DataInputStream in = new DataInputStream(socket.getInputStream());
+      OutputStream out = socket.getOutputStream();
+
+      handshake(in, out);
+
+      ByteArrayOutputStream message = new ByteArrayOutputStream();
+      while(true){
+        int b0 = in.readUnsignedByte();
+        int b1 = in.readUnsignedByte();
+        boolean fin = (b0 & 0x80) != 0;
+        int opcode = b0 & 0x0F;
+
+        long length = b1 & 0x7F;
+        if(length == 126)
+          length = in.readUnsignedShort();
+        else if(length == 127)
+          length = in.readLong();
+
+        byte[] mask = new byte[4];
+        if((b1 & 0x80) != 0)
+          in.readFully(mask);
+
+        byte[] payload = new byte[(int) length];
+        in.readFully(payload);
+        for(int i = 0; i < payload.length; i++)
+          payload[i] ^= mask[i % 4];
+
+        if(opcode == 0x8){
+          write(out, 0x8, payload);
+          return;
+        }else if(opcode == 0x9){
+          write(out, 0xA, payload);
+        }else if(opcode == 0x1 || opcode == 0x0){
+          message.write(payload);
+          if(fin){
+            receive(out, new String(message.toByteArray(), StandardCharsets.UTF_8));
+            message.reset();
+          }
+        }
+      }
+    }catch (Exception e){
+      //Connection closed
+    }
+  }
+
+  private void receive(OutputStream out, String json) throws Exception {
+    BaseMessage request = parse(json);
+    if(request instanceof SupportedLanguageRequest){
+      write(out, 0x1, MessageUtils.getJson(supportedLanguages).getBytes(StandardCharsets.UTF_8));
+      return;
+    }
+
+    Exchange exchange = new Exchange(request);
+    exchange.response.thenAccept(response -> {
+      try {
+        write(out, 0x1, MessageUtils.getJson(response).getBytes(StandardCharsets.UTF_8));
+      }catch (IOException e){
+        //Connection closed
+      }
+    });
+    exchanges.add(exchange);
+  }
+
+  /**
+   * Translation requests are read by hand, as their overloaded {@code source_sent} setter
+   * can't be deserialised reflectively; everything else goes through {@link MessageUtils}.
+   */
+  private static BaseMessage parse(String json) throws Exception {
+    JsonNode node = MAPPER.readTree(json);
+    if(node.path("msg_type").asInt() != MessageType.MESSAGE_TRANS_JOB_REQ.getMessageCode())
+      return MessageUtils.getMessage(json);
+
+    List<String> sentences = new ArrayList<>();
+    node.path("source_sent").forEach(sentence -> sentences.add(sentence.asText()));
+
+    TranslationRequest request = new TranslationRequest(node.path("source_lang").asText(),
+        node.path("target_lang").asText(), sentences);
+    request.setJobId(node.path("job_id").asInt());
+    request.setPriority(node.path("priority").asInt());
+    request.setTranslationInfo(node.path("is_trans_info").asBoolean());
+    return request;
+  }
+
+  private static void handshake(InputStream in, OutputStream out) throws IOException, NoSuchAlgorithmException {
+    String key = null;
+    for(String line = readLine(in); !line.isEmpty(); line = readLine(in)){
+      if(line.toLowerCase().startsWith("sec-websocket-key:"))
+        key = line.substring(line.indexOf(':') + 1).trim();
+    }
+
+    byte[] digest = MessageDigest.getInstance("SHA-1").digest((key + WEBSOCKET_GUID).getBytes(StandardCharsets.US_ASCII));
+    String response = "HTTP/1.1 101 Switching Protocols\r\n"
+        + "Upgrade: websocket\r\n"
+        + "Connection: Upgrade\r\n"
+        + "Sec-WebSocket-Accept: " + Base64.getEncoder().encodeToString(digest) + "\r\n\r\n";
+
+    out.write(response.getBytes(StandardCharsets.US_ASCII));
+    out.flush();
+  }
+
+  private static String readLine(InputStream in) throws IOException {
+    StringBuilder sb = new StringBuilder();
+    for(int c = in.read(); c != '\n'; c = in.read()){
+      if(c == -1)
+        throw new IOException("Connection closed during handshake");
+      if(c != '\r')
+        sb.append((char) c);
+    }
+
+    return sb.toString();
+  }
+
+  private static void write(OutputStream out, int opcode, byte[] payload) throws IOException {
+    synchronized (out) {
+      out.write(0x80 | opcode);
+      if(payload.length < 126){
+        out.write(payload.length);
+      }else if(payload.length <= 0xFFFF){
+        out.write(126);
+        out.write(payload.length >>> 8);
+        out.write(payload.length & 0xFF);
+      }else{
+        out.write(127);
+        for(int i = 7; i >= 0; i--)
+          out.write((int) ((long) payload.length >>> (8 * i)) & 0xFF);
+      }
+      out.write(payload);
+      out.flush();
+    }
+  }
+}
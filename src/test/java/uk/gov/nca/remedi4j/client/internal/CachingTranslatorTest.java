@@ -0,0 +1,68 @@
+/*
+National Crime Agency (c) Crown Copyright 2018
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+   http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package uk.gov.nca.remedi4j.client.internal;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import org.junit.jupiter.api.Test;
+import uk.gov.nca.remedi4j.cache.SegmentedLruTranslationCache;
+import uk.gov.nca.remedi4j.cache.TranslationCache;
+import uk.gov.nca.remedi4j.data.StatusCode;
+import uk.gov.nca.remedi4j.data.TargetData;
+import uk.gov.nca.remedi4j.data.TranslationRequest;
+import uk.gov.nca.remedi4j.data.TranslationResponse;
+
+public class CachingTranslatorTest {
+  private final List<List<String>> sent = new ArrayList<>();
+
+  private CompletableFuture<TranslationResponse> upperCase(TranslationRequest request){
+    sent.add(new ArrayList<>(request.getSourceSentences()));
+
+    TranslationResponse response = new TranslationResponse();
+    response.setJobId(request.getJobId());
+    response.setStatusCode(StatusCode.RESULT_OK);
+    for(String s : request.getSourceSentences()){
+      TargetData td = new TargetData();
+      td.setStatusCode(StatusCode.RESULT_OK);
+      td.setTranslatedText(s.toUpperCase());
+      response.addTargetData(td);
+    }
+
+    return CompletableFuture.completedFuture(response);
+  }
+
+  @Test
+  public void testOnlyMissesSent(){
+    TranslationCache cache = new SegmentedLruTranslationCache(100);
+    cache.put("german", "english", "b", "cached");
+
+    CachingTranslator translator = new CachingTranslator(cache, this::upperCase);
+
+    TranslationResponse r1 = translator.translate(new TranslationRequest("german", "english", Arrays.asList("a", "b", "c"))).join();
+    assertEquals(Arrays.asList(Arrays.asList("a", "c")), sent);
+    assertEquals("A cached C", r1.assembleTargetData(" ", true));
+
+    TranslationResponse r2 = translator.translate(new TranslationRequest("german", "english", Arrays.asList("c", "b", "a"))).join();
+    assertEquals(1, sent.size());
+    assertEquals("C cached A", r2.assembleTargetData(" ", true));
+    assertEquals(StatusCode.RESULT_OK, r2.getStatusCode());
+  }
+}
@@ -0,0 +1,176 @@
+/*
+National Crime Agency (c) Crown Copyright 2018
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+   http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package uk.gov.nca.remedi4j.client.internal;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import uk.gov.nca.remedi4j.data.StatusCode;
+import uk.gov.nca.remedi4j.data.TargetData;
+import uk.gov.nca.remedi4j.data.TranslationRequest;
+import uk.gov.nca.remedi4j.data.TranslationResponse;
+
+public class CoalescingTranslatorTest {
+  private final List<List<String>> sent = Collections.synchronizedList(new ArrayList<>());
+  private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+  @AfterEach
+  public void shutdown(){
+    scheduler.shutdownNow();
+  }
+
+  private CompletableFuture<TranslationResponse> upperCase(TranslationRequest request){
+    sent.add(new ArrayList<>(request.getSourceSentences()));
+
+    TranslationResponse response = new TranslationResponse();
+    response.setJobId(request.getJobId());
+    response.setStatusCode(StatusCode.RESULT_OK);
+    for(String s : request.getSourceSentences()){
+      TargetData td = new TargetData();
+      td.setStatusCode(StatusCode.RESULT_OK);
+      td.setTranslatedText(s.toUpperCase());
+      response.addTargetData(td);
+    }
+
+    return CompletableFuture.completedFuture(response);
+  }
+
+  @Test
+  public void testBatchSentWhenFull(){
+    CoalescingTranslator translator = new CoalescingTranslator(this::upperCase, scheduler, TimeUnit.HOURS.toNanos(1), 3);
+
+    TranslationRequest req1 = new TranslationRequest("german", "english", Arrays.asList("a"));
+    TranslationRequest req2 = new TranslationRequest("german", "english", Arrays.asList("b", "c"));
+
+    CompletableFuture<TranslationResponse> f1 = translator.translate(req1);
+    assertFalse(f1.isDone());
+    assertEquals(1, translator.getOpenBatches());
+
+    CompletableFuture<TranslationResponse> f2 = translator.translate(req2);
+    assertEquals(Arrays.asList(Arrays.asList("a", "b", "c")), sent);
+    assertEquals(0, translator.getOpenBatches());
+
+    TranslationResponse r1 = f1.join();
+    assertEquals(req1.getJobId(), r1.getJobId());
+    assertEquals("A", r1.assembleTargetData(" ", true));
+
+    TranslationResponse r2 = f2.join();
+    assertEquals(req2.getJobId(), r2.getJobId());
+    assertEquals("B C", r2.assembleTargetData(" ", true));
+  }
+
+  @Test
+  public void testBatchSentAfterLinger(){
+    CoalescingTranslator translator = new CoalescingTranslator(this::upperCase, scheduler, TimeUnit.MILLISECONDS.toNanos(10), 100);
+
+    CompletableFuture<TranslationResponse> f1 = translator.translate(new TranslationRequest("german", "english", Arrays.asList("a")));
+    CompletableFuture<TranslationResponse> f2 = translator.translate(new TranslationRequest("french", "english", Arrays.asList("b")));
+    CompletableFuture<TranslationResponse> f3 = translator.translate(new TranslationRequest("german", "english", Arrays.asList("c")));
+    assertEquals(2, translator.getOpenBatches());
+
+    assertEquals("A", f1.join().assembleTargetData(" ", true));
+    assertEquals("B", f2.join().assembleTargetData(" ", true));
+    assertEquals("C", f3.join().assembleTargetData(" ", true));
+    assertEquals(2, sent.size());
+    assertEquals(0, translator.getOpenBatches());
+  }
+
+  @Test
+  public void testOverflowStartsNewBatch(){
+    CoalescingTranslator translator = new CoalescingTranslator(this::upperCase, scheduler, TimeUnit.HOURS.toNanos(1), 3);
+
+    CompletableFuture<TranslationResponse> f1 = translator.translate(new TranslationRequest("german", "english", Arrays.asList("a", "b")));
+    translator.translate(new TranslationRequest("german", "english", Arrays.asList("c", "d")));
+
+    assertEquals("A B", f1.join().assembleTargetData(" ", true));
+    assertEquals(Arrays.asList(Arrays.asList("a", "b")), sent);
+    assertEquals(1, translator.getOpenBatches());
+  }
+
+  @Test
+  public void testLargeRequestPassedThrough(){
+    CoalescingTranslator translator = new CoalescingTranslator(this::upperCase, scheduler, TimeUnit.HOURS.toNanos(1), 2);
+
+    TranslationRequest req = new TranslationRequest("german", "english", Arrays.asList("a", "b"));
+    assertEquals("A B", translator.translate(req).join().assembleTargetData(" ", true));
+    assertEquals(0, translator.getOpenBatches());
+  }
+
+  @Test
+  public void testFailure(){
+    CoalescingTranslator translator = new CoalescingTranslator(
+        r -> CompletableFuture.failedFuture(new IllegalStateException()), scheduler, TimeUnit.HOURS.toNanos(1), 2);
+
+    CompletableFuture<TranslationResponse> f1 = translator.translate(new TranslationRequest("german", "english", Arrays.asList("a")));
+    CompletableFuture<TranslationResponse> f2 = translator.translate(new TranslationRequest("german", "english", Arrays.asList("b")));
+
+    assertThrows(CompletionException.class, f1::join);
+    assertThrows(CompletionException.class, f2::join);
+  }
+
+  @Test
+  public void testCancellation(){
+    List<CompletableFuture<TranslationResponse>> outbound = new ArrayList<>();
+    CoalescingTranslator translator = new CoalescingTranslator(r -> {
+      sent.add(new ArrayList<>(r.getSourceSentences()));
+      CompletableFuture<TranslationResponse> f = new CompletableFuture<>();
+      outbound.add(f);
+      return f;
+    }, scheduler, TimeUnit.HOURS.toNanos(1), 3);
+
+    //Cancelled callers are left out of the batch
+    CompletableFuture<TranslationResponse> f1 = translator.translate(new TranslationRequest("german", "english", Arrays.asList("a")));
+    CompletableFuture<TranslationResponse> f2 = translator.translate(new TranslationRequest("german", "english", Arrays.asList("b")));
+    f1.cancel(false);
+    CompletableFuture<TranslationResponse> f3 = translator.translate(new TranslationRequest("german", "english", Arrays.asList("c")));
+    assertEquals(Arrays.asList(Arrays.asList("b", "c")), sent);
+
+    //The batch is only cancelled once every remaining caller has cancelled
+    f2.cancel(false);
+    assertFalse(outbound.get(0).isCancelled());
+    f3.cancel(false);
+    assertTrue(outbound.get(0).isCancelled());
+
+    //A batch with a single remaining caller is passed straight through, and cancelled with it
+    CompletableFuture<TranslationResponse> f4 = translator.translate(new TranslationRequest("german", "english", Arrays.asList("d")));
+    CompletableFuture<TranslationResponse> f5 = translator.translate(new TranslationRequest("german", "english", Arrays.asList("e")));
+    f5.cancel(false);
+    translator.translate(new TranslationRequest("german", "english", Arrays.asList("g", "h")));
+    assertEquals(Arrays.asList("d"), sent.get(1));
+    f4.cancel(false);
+    assertTrue(outbound.get(1).isCancelled());
+
+    //Nothing is sent if every caller cancels before the batch is sent
+    translator.translate(new TranslationRequest("french", "english", Arrays.asList("i"))).cancel(false);
+    translator.translate(new TranslationRequest("french", "english", Arrays.asList("j", "k", "l")));
+    assertEquals(3, sent.size());
+    assertEquals(Arrays.asList("j", "k", "l"), sent.get(2));
+  }
+}
@@ -0,0 +1,256 @@
+/*
+National Crime Agency (c) Crown Copyright 2018
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+   http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package uk.gov.nca.remedi4j.client.internal;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.Test;
+import uk.gov.nca.remedi4j.client.OverloadPolicy;
+import uk.gov.nca.remedi4j.client.internal.ConcurrencyLimiter.Permit;
+import uk.gov.nca.remedi4j.exceptions.RequestRejectedException;
+
+public class ConcurrencyLimiterTest {
+  @Test
+  public void testQueue(){
+    ConcurrencyLimiter limiter = new ConcurrencyLimiter(2, 1, 2, 0, OverloadPolicy.QUEUE, 10, 0L);
+
+    CompletableFuture<Permit> p1 = limiter.acquire(10);
+    CompletableFuture<Permit> p2 = limiter.acquire(10);
+    CompletableFuture<Permit> p3 = limiter.acquire(10);
+
+    assertTrue(p1.isDone());
+    assertTrue(p2.isDone());
+    assertFalse(p3.isDone());
+    assertEquals(2, limiter.getInFlight());
+    assertEquals(20, limiter.getInFlightCharacters());
+    assertEquals(1, limiter.getQueueLength());
+
+    p1.join().release(true);
+    assertTrue(p3.isDone());
+    assertEquals(2, limiter.getInFlight());
+    assertEquals(0, limiter.getQueueLength());
+
+    //Releasing twice has no effect
+    p1.join().release(true);
+    assertEquals(2, limiter.getInFlight());
+
+    p2.join().release(true);
+    p3.join().release(true);
+    assertEquals(0, limiter.getInFlight());
+    assertEquals(0, limiter.getInFlightCharacters());
+  }
+
+  @Test
+  public void testPriority(){
+    ConcurrencyLimiter limiter = new ConcurrencyLimiter(1, 1, 1, 0, OverloadPolicy.QUEUE, 10, TimeUnit.HOURS.toNanos(1));
+
+    CompletableFuture<Permit> p1 = limiter.acquire(10);
+    CompletableFuture<Permit> low = limiter.acquire(10, 0);
+    CompletableFuture<Permit> high1 = limiter.acquire(10, 5);
+    CompletableFuture<Permit> high2 = limiter.acquire(10, 5);
+
+    //Higher priority requests are admitted first, in the order they arrived
+    p1.join().release(true);
+    assertTrue(high1.isDone());
+    assertFalse(high2.isDone());
+
+    high1.join().release(true);
+    assertTrue(high2.isDone());
+    assertFalse(low.isDone());
+
+    high2.join().release(true);
+    assertTrue(low.isDone());
+  }
+
+  @Test
+  public void testAging(){
+    AtomicLong time = new AtomicLong();
+    ConcurrencyLimiter limiter = new ConcurrencyLimiter(1, 1, 1, 0, OverloadPolicy.QUEUE, 10, TimeUnit.MILLISECONDS.toNanos(1), time::get);
+
+    CompletableFuture<Permit> p1 = limiter.acquire(10);
+    CompletableFuture<Permit> low = limiter.acquire(10, 0);
+    time.addAndGet(TimeUnit.MILLISECONDS.toNanos(50));
+
+    //The low priority request has waited longer than the higher priority request is worth
+    CompletableFuture<Permit> high = limiter.acquire(10, 5);
+
+    p1.join().release(true);
+    assertTrue(low.isDone());
+    assertFalse(high.isDone());
+  }
+
+  @Test
+  public void testCancelQueued(){
+    ConcurrencyLimiter limiter = new ConcurrencyLimiter(1, 1, 1, 0, OverloadPolicy.QUEUE, 10, 0L);
+
+    CompletableFuture<Permit> p1 = limiter.acquire(10);
+    CompletableFuture<Permit> p2 = limiter.acquire(10);
+    CompletableFuture<Permit> p3 = limiter.acquire(10);
+    assertEquals(2, limiter.getQueueLength());
+
+    p2.cancel(false);
+    assertEquals(1, limiter.getQueueLength());
+
+    p1.join().abandon();
+    assertTrue(p3.isDone());
+    assertEquals(1, limiter.getInFlight());
+  }
+
+  @Test
+  public void testReject(){
+    ConcurrencyLimiter limiter = new ConcurrencyLimiter(1, 1, 1, 0, OverloadPolicy.REJECT, 10, 0L);
+
+    CompletableFuture<Permit> p1 = limiter.acquire(10);
+    CompletableFuture<Permit> p2 = limiter.acquire(10);
+
+    assertTrue(p1.isDone());
+    ExecutionException e = assertThrows(ExecutionException.class, p2::get);
+    assertTrue(e.getCause() instanceof RequestRejectedException);
+  }
+
+  @Test
+  public void testQueueFull(){
+    ConcurrencyLimiter limiter = new ConcurrencyLimiter(1, 1, 1, 0, OverloadPolicy.QUEUE, 1, 0L);
+
+    limiter.acquire(10);
+    CompletableFuture<Permit> p2 = limiter.acquire(10);
+    CompletableFuture<Permit> p3 = limiter.acquire(10);
+
+    assertFalse(p2.isDone());
+    assertTrue(p3.isCompletedExceptionally());
+  }
+
+  @Test
+  public void testCharacterLimit(){
+    ConcurrencyLimiter limiter = new ConcurrencyLimiter(10, 1, 10, 100, OverloadPolicy.QUEUE, 10, 0L);
+
+    //A request larger than the limit is admitted if nothing else is in flight
+    CompletableFuture<Permit> p1 = limiter.acquire(150);
+    assertTrue(p1.isDone());
+
+    CompletableFuture<Permit> p2 = limiter.acquire(60);
+    CompletableFuture<Permit> p3 = limiter.acquire(60);
+    assertFalse(p2.isDone());
+
+    p1.join().release(true);
+    assertTrue(p2.isDone());
+    assertFalse(p3.isDone());
+
+    p2.join().release(true);
+    assertTrue(p3.isDone());
+  }
+
+  @Test
+  public void testLimitAdapts(){
+    ConcurrencyLimiter limiter = new ConcurrencyLimiter(10, 2, 20, 0, OverloadPolicy.QUEUE, 10, 0L);
+
+    //Failures reduce the limit, down to the minimum
+    for(int i = 0; i < 100; i++)
+      limiter.acquire(1).join().release(false);
+    assertEquals(2, limiter.getLimit());
+
+    //Successful requests with a stable round trip time increase the limit, up to the maximum
+    for(int i = 0; i < 2000; i++){
+      Permit a = limiter.acquire(1).join();
+      Permit b = limiter.acquire(1).join();
+      a.release(true);
+      b.release(true);
+    }
+    assertTrue(limiter.getLimit() > 2);
+    assertTrue(limiter.getLimit() <= 20);
+  }
+
+  @Test
+  public void testDecreaseOncePerRoundTrip(){
+    AtomicLong time = new AtomicLong();
+    ConcurrencyLimiter limiter = new ConcurrencyLimiter(10, 1, 10, 0, OverloadPolicy.QUEUE, 10, 0L, time::get);
+
+    //Establish a fast minimum round trip time
+    for(int i = 0; i < 10; i++)
+      limiter.acquire(1).join().release(true);
+    assertEquals(10, limiter.getLimit());
+
+    //A burst of slow responses to requests which were all in flight together only reduces the limit once
+    Permit[] permits = new Permit[5];
+    for(int i = 0; i < permits.length; i++)
+      permits[i] = limiter.acquire(1).join();
+
+    time.addAndGet(TimeUnit.MILLISECONDS.toNanos(20));
+    for(Permit p : permits)
+      p.release(true);
+    assertEquals(9, limiter.getLimit());
+
+    //As do failures of requests sent after that decrease
+    time.incrementAndGet();
+    for(int i = 0; i < permits.length; i++)
+      permits[i] = limiter.acquire(1).join();
+    for(Permit p : permits)
+      p.release(false);
+    assertEquals(8, limiter.getLimit());
+  }
+
+  @Test
+  public void testDecreaseOncePerSizeClass(){
+    AtomicLong time = new AtomicLong();
+    ConcurrencyLimiter limiter = new ConcurrencyLimiter(10, 1, 10, 0, OverloadPolicy.QUEUE, 10, 0L, time::get);
+
+    //Failures of small and large requests in flight together reduce the limit once for each size class
+    Permit[] small = new Permit[3];
+    Permit[] large = new Permit[3];
+    for(int i = 0; i < small.length; i++){
+      small[i] = limiter.acquire(1).join();
+      large[i] = limiter.acquire(10_000).join();
+    }
+
+    for(Permit p : small)
+      p.release(false);
+    assertEquals(9, limiter.getLimit());
+
+    for(Permit p : large)
+      p.release(false);
+    assertEquals(8, limiter.getLimit());
+  }
+
+  @Test
+  public void testSizeClasses(){
+    AtomicLong time = new AtomicLong();
+    ConcurrencyLimiter limiter = new ConcurrencyLimiter(10, 1, 10, 0, OverloadPolicy.QUEUE, 10, 0L, time::get);
+
+    //Establish a fast minimum round trip time for small requests
+    for(int i = 0; i < 10; i++)
+      limiter.acquire(1).join().release(true);
+
+    //Large requests take longer, but aren't compared with small ones
+    for(int i = 0; i < 5; i++){
+      Permit p = limiter.acquire(10_000).join();
+      time.addAndGet(TimeUnit.MILLISECONDS.toNanos(10));
+      p.release(true);
+    }
+    assertEquals(10, limiter.getLimit());
+
+    for(int i = 0; i < 10; i++)
+      limiter.acquire(1).join().release(true);
+    assertEquals(10, limiter.getLimit());
+  }
+}
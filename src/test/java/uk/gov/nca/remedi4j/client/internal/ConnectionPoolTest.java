@@ -0,0 +1,126 @@
+/*
+National Crime Agency (c) Crown Copyright 2018
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+   http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package uk.gov.nca.remedi4j.client.internal;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.URI;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+public class ConnectionPoolTest {
+  private static CompletableFuture<RemediConnection> connect(){
+    return CompletableFuture.completedFuture(new RemediConnection(new StubWebSocket(), null));
+  }
+
+  @Test
+  public void testLeastOutstanding(){
+    ConnectionPool pool = new ConnectionPool(URI.create("ws://localhost"), ConnectionPoolTest::connect,
+        2, 2, 100, Long.MAX_VALUE);
+    assertEquals(2, pool.size());
+
+    RemediConnection c1 = pool.acquire();
+    RemediConnection c2 = pool.acquire();
+    assertNotSame(c1, c2);
+    assertEquals(2, pool.getOutstanding());
+
+    pool.release(c1);
+    assertSame(c1, pool.acquire());
+  }
+
+  @Test
+  public void testGrowAndShrink(){
+    ConnectionPool pool = new ConnectionPool(URI.create("ws://localhost"), ConnectionPoolTest::connect,
+        1, 2, 1, 0);
+    assertEquals(1, pool.size());
+
+    RemediConnection c1 = pool.acquire();
+    RemediConnection c2 = pool.acquire();
+    assertSame(c1, c2);
+    assertEquals(2, pool.size());
+
+    //The new connection has fewer outstanding requests
+    RemediConnection c3 = pool.acquire();
+    assertNotSame(c1, c3);
+
+    pool.release(c3);
+    assertEquals(1, pool.size());
+
+    pool.release(c1);
+    pool.release(c2);
+    assertEquals(1, pool.size());
+  }
+
+  @Test
+  public void testReconnect() throws Exception {
+    ConnectionPool pool = new ConnectionPool(URI.create("ws://localhost"), ConnectionPoolTest::connect,
+        1, 1, 100, Long.MAX_VALUE);
+
+    RemediConnection c1 = pool.acquire();
+    c1.abort();
+    assertFalse(c1.isOpen());
+
+    //Requests wait for the connection to be replaced
+    RemediConnection c2 = pool.acquireAsync().get(5, TimeUnit.SECONDS);
+    assertNotSame(c1, c2);
+    assertEquals(1, pool.size());
+  }
+
+  @Test
+  public void testReconnectRetried() throws Exception {
+    AtomicInteger attempts = new AtomicInteger();
+    ConnectionPool pool = new ConnectionPool(URI.create("ws://localhost"), () -> {
+      //The first connection succeeds, then the next two attempts fail
+      int attempt = attempts.getAndIncrement();
+      if(attempt == 1 || attempt == 2)
+        return CompletableFuture.failedFuture(new IllegalStateException("Server restarting"));
+
+      return connect();
+    }, 1, 1, 100, Long.MAX_VALUE);
+
+    pool.acquire().abort();
+
+    pool.acquireAsync().get(5, TimeUnit.SECONDS);
+    assertEquals(4, attempts.get());
+  }
+
+  @Test
+  public void testAcquireAsyncClosed() {
+    //The first connection succeeds, then the server never accepts another
+    AtomicInteger attempts = new AtomicInteger();
+    ConnectionPool pool = new ConnectionPool(URI.create("ws://localhost"),
+        () -> attempts.getAndIncrement() == 0 ? connect() : new CompletableFuture<>(), 1, 1, 100, Long.MAX_VALUE);
+
+    pool.acquire().abort();
+    assertEquals(0, pool.size());
+
+    CompletableFuture<RemediConnection> waiter = pool.acquireAsync();
+    assertFalse(waiter.isDone());
+
+    pool.close();
+    assertThrows(ExecutionException.class, waiter::get);
+    assertTrue(pool.acquireAsync().isCompletedExceptionally());
+  }
+}
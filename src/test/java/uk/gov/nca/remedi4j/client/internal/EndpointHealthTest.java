@@ -0,0 +1,131 @@
+/*
+National Crime Agency (c) Crown Copyright 2018
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+   http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package uk.gov.nca.remedi4j.client.internal;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.Test;
+
+public class EndpointHealthTest {
+  private static final URI URI = java.net.URI.create("ws://localhost");
+
+  @Test
+  public void testErrorRate(){
+    EndpointHealth health = new EndpointHealth(URI, 4, 0.5, TimeUnit.HOURS.toNanos(1), TimeUnit.HOURS.toNanos(1));
+
+    //Not enough requests yet
+    health.record(false);
+    health.record(false);
+    health.record(true);
+    assertEquals(EndpointHealth.State.HEALTHY, health.getState());
+    assertTrue(health.allowRequest());
+
+    health.record(false);
+    assertEquals(EndpointHealth.State.EJECTED, health.getState());
+    assertFalse(health.isAvailable());
+    assertFalse(health.allowRequest());
+  }
+
+  @Test
+  public void testOldOutcomesForgotten(){
+    EndpointHealth health = new EndpointHealth(URI, 4, 0.5, TimeUnit.HOURS.toNanos(1), TimeUnit.HOURS.toNanos(1));
+
+    health.record(false);
+    for(int i = 0; i < 10; i++)
+      health.record(true);
+
+    health.record(false);
+    assertEquals(EndpointHealth.State.HEALTHY, health.getState());
+
+    health.record(false);
+    assertEquals(EndpointHealth.State.EJECTED, health.getState());
+  }
+
+  @Test
+  public void testRecovery(){
+    AtomicLong time = new AtomicLong();
+    EndpointHealth health = new EndpointHealth(URI, 1, 0.5, TimeUnit.MILLISECONDS.toNanos(20), TimeUnit.MILLISECONDS.toNanos(100), time::get);
+
+    health.eject("test");
+    assertEquals(EndpointHealth.State.EJECTED, health.getState());
+
+    time.addAndGet(TimeUnit.MILLISECONDS.toNanos(19));
+    assertEquals(EndpointHealth.State.EJECTED, health.getState());
+
+    time.addAndGet(TimeUnit.MILLISECONDS.toNanos(1));
+    assertEquals(EndpointHealth.State.RECOVERING, health.getState());
+    assertTrue(health.isAvailable());
+
+    time.addAndGet(TimeUnit.MILLISECONDS.toNanos(100));
+    assertEquals(EndpointHealth.State.HEALTHY, health.getState());
+  }
+
+  @Test
+  public void testFailureWhilstRecovering(){
+    AtomicLong time = new AtomicLong();
+    EndpointHealth health = new EndpointHealth(URI, 10, 0.5, TimeUnit.MILLISECONDS.toNanos(50), TimeUnit.HOURS.toNanos(1), time::get);
+
+    health.eject("test");
+    time.addAndGet(TimeUnit.MILLISECONDS.toNanos(50));
+    assertEquals(EndpointHealth.State.RECOVERING, health.getState());
+
+    //A single failure is enough to eject the endpoint again, and the second ejection lasts longer
+    health.record(false);
+    assertEquals(EndpointHealth.State.EJECTED, health.getState());
+
+    time.addAndGet(TimeUnit.MILLISECONDS.toNanos(99));
+    assertEquals(EndpointHealth.State.EJECTED, health.getState());
+
+    time.addAndGet(TimeUnit.MILLISECONDS.toNanos(1));
+    assertEquals(EndpointHealth.State.RECOVERING, health.getState());
+  }
+
+  @Test
+  public void testGradualRecovery(){
+    AtomicLong time = new AtomicLong();
+    EndpointHealth health = new EndpointHealth(URI, 10, 0.5, TimeUnit.MILLISECONDS.toNanos(1), TimeUnit.HOURS.toNanos(1), time::get);
+
+    health.eject("test");
+    time.addAndGet(TimeUnit.MILLISECONDS.toNanos(10));
+
+    int allowed = 0;
+    for(int i = 0; i < 1000; i++){
+      if(health.allowRequest())
+        allowed++;
+    }
+
+    //Only a small fraction of requests are allowed at the start of the recovery period
+    assertTrue(allowed > 0 && allowed < 300, "Allowed " + allowed);
+  }
+
+  @Test
+  public void testLatency(){
+    EndpointHealth health = new EndpointHealth(URI);
+    assertEquals(-1.0, health.getLatency(), 0.0001);
+
+    health.recordLatency(100);
+    assertEquals(100.0, health.getLatency(), 0.0001);
+
+    health.recordLatency(200);
+    assertEquals(130.0, health.getLatency(), 0.0001);
+  }
+}
@@ -0,0 +1,70 @@
+/*
+National Crime Agency (c) Crown Copyright 2018
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+   http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package uk.gov.nca.remedi4j.client.internal;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import org.junit.jupiter.api.Test;
+
+public class FuturesTest {
+  @Test
+  public void testThenApply(){
+    CompletableFuture<String> source = new CompletableFuture<>();
+    CompletableFuture<Integer> result = Futures.thenApply(source, String::length);
+
+    result.cancel(false);
+    assertTrue(source.isCancelled());
+
+    CompletableFuture<String> source2 = new CompletableFuture<>();
+    CompletableFuture<Integer> result2 = Futures.thenApply(source2, String::length);
+    source2.complete("Hello");
+    assertEquals(5, result2.join());
+  }
+
+  @Test
+  public void testThenCompose(){
+    CompletableFuture<String> first = new CompletableFuture<>();
+    CompletableFuture<Integer> second = new CompletableFuture<>();
+    CompletableFuture<Integer> result = Futures.thenCompose(first, s -> second);
+
+    first.complete("Hello");
+    assertFalse(result.isDone());
+
+    //Cancelling the result cancels whichever stage is in progress
+    result.cancel(false);
+    assertTrue(second.isCancelled());
+
+    CompletableFuture<String> first2 = new CompletableFuture<>();
+    CompletableFuture<Integer> result2 = Futures.thenCompose(first2, s -> CompletableFuture.completedFuture(s.length()));
+    result2.cancel(false);
+    assertTrue(first2.isCancelled());
+  }
+
+  @Test
+  public void testThenComposeFailure(){
+    CompletableFuture<String> first = new CompletableFuture<>();
+    CompletableFuture<Integer> result = Futures.thenCompose(first, s -> CompletableFuture.completedFuture(s.length()));
+
+    first.completeExceptionally(new IllegalStateException());
+    assertThrows(CompletionException.class, result::join);
+  }
+}
@@ -0,0 +1,195 @@
+/*
+National Crime Agency (c) Crown Copyright 2018
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+   http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package uk.gov.nca.remedi4j.client.internal;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import uk.gov.nca.remedi4j.data.StatusCode;
+import uk.gov.nca.remedi4j.data.TranslationRequest;
+import uk.gov.nca.remedi4j.data.TranslationResponse;
+
+public class HedgingTranslatorTest {
+  private final ManualScheduler scheduler = new ManualScheduler();
+  private final List<TranslationRequest> sent = Collections.synchronizedList(new ArrayList<>());
+  private final List<Integer> duplicated = Collections.synchronizedList(new ArrayList<>());
+  private final List<CompletableFuture<TranslationResponse>> responses = Collections.synchronizedList(new ArrayList<>());
+
+  private final Translator next = new Translator() {
+    @Override
+    public CompletableFuture<TranslationResponse> translate(TranslationRequest request) {
+      return pending(request);
+    }
+
+    @Override
+    public CompletableFuture<TranslationResponse> translateDuplicate(TranslationRequest request, int originalJobId,
+        Runnable onSent) {
+      duplicated.add(originalJobId);
+      return Translator.super.translateDuplicate(request, originalJobId, onSent);
+    }
+  };
+
+  @AfterEach
+  public void shutdown(){
+    scheduler.shutdownNow();
+  }
+
+  private HedgingTranslator hedging(Translator next, double budget){
+    return new HedgingTranslator(next, scheduler, 0.9, budget, scheduler::nanoTime);
+  }
+
+  private CompletableFuture<TranslationResponse> pending(TranslationRequest request){
+    sent.add(request);
+
+    CompletableFuture<TranslationResponse> future = new CompletableFuture<>();
+    responses.add(future);
+    return future;
+  }
+
+  private static TranslationResponse response(int jobId){
+    TranslationResponse response = new TranslationResponse();
+    response.setJobId(jobId);
+    response.setStatusCode(StatusCode.RESULT_OK);
+    return response;
+  }
+
+  private void warmUp(HedgingTranslator translator){
+    //Build up latency samples (and budget) with requests which each take a millisecond
+    for(int i = 0; i < 50; i++){
+      TranslationRequest req = new TranslationRequest("german", "english", Arrays.asList("Hallo"));
+      CompletableFuture<TranslationResponse> f = translator.translate(req);
+      scheduler.advance(1, TimeUnit.MILLISECONDS);
+      responses.get(responses.size() - 1).complete(response(req.getJobId()));
+      f.join();
+    }
+
+    sent.clear();
+    responses.clear();
+  }
+
+  @Test
+  public void testHedge(){
+    HedgingTranslator translator = hedging(next, 1.0);
+    warmUp(translator);
+
+    TranslationRequest req = new TranslationRequest("german", "english", Arrays.asList("Hallo"));
+    CompletableFuture<TranslationResponse> f = translator.translate(req);
+    assertEquals(1, sent.size());
+
+    scheduler.advance(10, TimeUnit.MILLISECONDS);
+    assertEquals(2, sent.size());
+    assertNotEquals(req.getJobId(), sent.get(1).getJobId());
+    assertEquals(req.getSourceSentences(), sent.get(1).getSourceSentences());
+    assertEquals(1, translator.getHedged());
+
+    //The hedged request is sent as a duplicate of the original, so that it can be routed elsewhere
+    assertEquals(List.of(req.getJobId()), duplicated);
+
+    //The hedged request wins, and the original is cancelled
+    responses.get(1).complete(response(sent.get(1).getJobId()));
+    assertEquals(req.getJobId(), f.join().getJobId());
+    assertTrue(responses.get(0).isCancelled());
+  }
+
+  @Test
+  public void testBudget(){
+    HedgingTranslator translator = hedging(next, 0.0);
+    warmUp(translator);
+
+    CompletableFuture<TranslationResponse> f = translator.translate(new TranslationRequest("german", "english", Arrays.asList("Hallo")));
+    scheduler.advance(10, TimeUnit.MILLISECONDS);
+
+    assertEquals(1, sent.size());
+    assertEquals(0, translator.getHedged());
+    assertFalse(f.isDone());
+  }
+
+  @Test
+  public void testFailure(){
+    HedgingTranslator translator = hedging(next, 1.0);
+    warmUp(translator);
+
+    CompletableFuture<TranslationResponse> f = translator.translate(new TranslationRequest("german", "english", Arrays.asList("Hallo")));
+    scheduler.advance(10, TimeUnit.MILLISECONDS);
+    assertEquals(2, sent.size());
+
+    //Fails only once every attempt has failed
+    responses.get(0).completeExceptionally(new IllegalStateException());
+    assertFalse(f.isDone());
+
+    responses.get(1).completeExceptionally(new IllegalArgumentException());
+    CompletionException e = assertThrows(CompletionException.class, f::join);
+    assertTrue(e.getCause() instanceof IllegalStateException);
+  }
+
+  @Test
+  public void testQueueingExcludedFromDelay(){
+    List<Runnable> queued = Collections.synchronizedList(new ArrayList<>());
+    AtomicBoolean queueing = new AtomicBoolean(false);
+    HedgingTranslator translator = hedging(new Translator() {
+      @Override
+      public CompletableFuture<TranslationResponse> translate(TranslationRequest request) {
+        return pending(request);
+      }
+
+      @Override
+      public CompletableFuture<TranslationResponse> translate(TranslationRequest request, Runnable onSent) {
+        if(queueing.get())
+          queued.add(onSent);
+        else
+          onSent.run();
+
+        return pending(request);
+      }
+    }, 1.0);
+    warmUp(translator);
+
+    //The request isn't hedged whilst it is still queued
+    queueing.set(true);
+    CompletableFuture<TranslationResponse> f = translator.translate(new TranslationRequest("german", "english", Arrays.asList("Hallo")));
+    scheduler.advance(10, TimeUnit.MILLISECONDS);
+    assertEquals(1, sent.size());
+
+    queued.get(0).run();
+    scheduler.advance(10, TimeUnit.MILLISECONDS);
+    assertEquals(2, sent.size());
+    assertFalse(f.isDone());
+  }
+
+  @Test
+  public void testNoHedgeWithoutSamples(){
+    HedgingTranslator translator = hedging(next, 1.0);
+
+    translator.translate(new TranslationRequest("german", "english", Arrays.asList("Hallo")));
+    scheduler.advance(10, TimeUnit.MILLISECONDS);
+
+    assertEquals(1, sent.size());
+  }
+}
@@ -0,0 +1,63 @@
+/*
+National Crime Agency (c) Crown Copyright 2018
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+   http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package uk.gov.nca.remedi4j.client.internal;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+public class LatencyTrackerTest {
+  @Test
+  public void testQuantiles(){
+    LatencyTracker tracker = new LatencyTracker(10, 10000);
+    assertEquals(-1, tracker.getQuantile("a", 0.5));
+
+    for(int i = 1; i <= 9; i++)
+      tracker.record("a", 1000);
+    assertEquals(-1, tracker.getQuantile("a", 0.5));
+
+    for(int i = 1; i <= 90; i++)
+      tracker.record("a", 1000);
+    tracker.record("a", 1_000_000);
+
+    //Estimates are upper bounds, accurate to within a quarter of an octave
+    long median = tracker.getQuantile("a", 0.5);
+    assertTrue(median >= 1000 && median <= 1200, "Median was " + median);
+
+    long max = tracker.getQuantile("a", 1.0);
+    assertTrue(max >= 1_000_000 && max <= 1_200_000, "Max was " + max);
+
+    assertEquals(-1, tracker.getQuantile("b", 0.5));
+    assertEquals(1, tracker.size());
+  }
+
+  @Test
+  public void testDecay(){
+    LatencyTracker tracker = new LatencyTracker(10, 100);
+
+    for(int i = 0; i < 100; i++)
+      tracker.record("a", 1_000_000);
+
+    //Old samples decay, so the estimate follows the new latency
+    for(int i = 0; i < 500; i++)
+      tracker.record("a", 1000);
+
+    long p90 = tracker.getQuantile("a", 0.9);
+    assertTrue(p90 <= 1200, "p90 was " + p90);
+  }
+}
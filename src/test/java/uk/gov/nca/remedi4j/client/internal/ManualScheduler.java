@@ -0,0 +1,106 @@
+/*
+National Crime Agency (c) Crown Copyright 2018
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+   http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package uk.gov.nca.remedi4j.client.internal;
+
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scheduler with a manually controlled clock, for testing time-dependent behaviour without sleeping.
+ *
+ * Tasks passed to {@link #schedule(Runnable, long, TimeUnit)} are held until the clock is advanced
+ * past their scheduled time by {@link #advance(long, TimeUnit)}, and are then run on the calling thread
+ * in the order they are due. The clock can also be used as a ticker via {@link #nanoTime()}.
+ */
+public class ManualScheduler extends ScheduledThreadPoolExecutor {
+  private final Queue<Task> tasks = new PriorityQueue<>(
+      Comparator.comparingLong((Task t) -> t.time).thenComparingLong(t -> t.sequence));
+  private long now = 0;
+  private long sequence = 0;
+
+  public ManualScheduler(){
+    super(1);
+  }
+
+  /**
+   * Get the current time of the clock in nanoseconds
+   */
+  public synchronized long nanoTime(){
+    return now;
+  }
+
+  @Override
+  public synchronized ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+    Task task = new Task(command, now + unit.toNanos(delay), sequence++);
+    tasks.add(task);
+
+    return task;
+  }
+
+  /**
+   * Advance the clock, running any tasks that become due (including tasks scheduled by those tasks)
+   */
+  public void advance(long duration, TimeUnit unit){
+    long target;
+    synchronized (this){
+      target = now + unit.toNanos(duration);
+    }
+
+    while(true){
+      Task task;
+      synchronized (this){
+        task = tasks.peek();
+        if(task == null || task.time > target){
+          now = target;
+          return;
+        }
+
+        tasks.poll();
+        now = Math.max(now, task.time);
+      }
+
+      task.run();
+    }
+  }
+
+  private class Task extends FutureTask<Void> implements ScheduledFuture<Void> {
+    private final long time;
+    private final long sequence;
+
+    private Task(Runnable command, long time, long sequence){
+      super(command, null);
+      this.time = time;
+      this.sequence = sequence;
+    }
+
+    @Override
+    public long getDelay(TimeUnit unit) {
+      return unit.convert(time - nanoTime(), TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public int compareTo(Delayed o) {
+      return Long.compare(getDelay(TimeUnit.NANOSECONDS), o.getDelay(TimeUnit.NANOSECONDS));
+    }
+  }
+}
@@ -0,0 +1,90 @@
+/*
+National Crime Agency (c) Crown Copyright 2018
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+   http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package uk.gov.nca.remedi4j.client.internal;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import org.junit.jupiter.api.Test;
+import uk.gov.nca.remedi4j.data.TranslationResponse;
+
+public class PendingRequestsTest {
+  @Test
+  public void testComplete(){
+    PendingRequests<Integer, TranslationResponse> pr = new PendingRequests<>();
+
+    CompletableFuture<TranslationResponse> future = pr.register(1);
+    assertNotNull(future);
+    assertNull(pr.register(1));
+    assertSame(future, pr.get(1));
+    assertEquals(1, pr.size());
+
+    TranslationResponse response = new TranslationResponse();
+    assertTrue(pr.complete(1, response));
+    assertSame(response, future.join());
+    assertEquals(0, pr.size());
+
+    assertFalse(pr.complete(1, response));
+  }
+
+  @Test
+  public void testFail(){
+    PendingRequests<Integer, TranslationResponse> pr = new PendingRequests<>();
+
+    CompletableFuture<TranslationResponse> future = pr.register(1);
+    assertTrue(pr.fail(1, new IOException()));
+    assertTrue(future.isCompletedExceptionally());
+    assertEquals(0, pr.size());
+
+    assertFalse(pr.fail(1, new IOException()));
+  }
+
+  @Test
+  public void testAbandoned(){
+    PendingRequests<Integer, TranslationResponse> pr = new PendingRequests<>();
+
+    //Requests completed by a response aren't abandoned
+    pr.register(1);
+    pr.complete(1, new TranslationResponse());
+    assertFalse(pr.removeAbandoned(1));
+
+    //Requests cancelled or timed out are, but are only reported once
+    pr.register(2).cancel(false);
+    pr.register(3).completeExceptionally(new IOException());
+    assertFalse(pr.complete(2, new TranslationResponse()));
+    assertTrue(pr.removeAbandoned(2));
+    assertFalse(pr.removeAbandoned(2));
+    assertTrue(pr.removeAbandoned(3));
+  }
+
+  @Test
+  public void testRemove(){
+    PendingRequests<Integer, TranslationResponse> pr = new PendingRequests<>();
+
+    CompletableFuture<TranslationResponse> future = pr.register(1);
+    pr.remove(1);
+    assertEquals(0, pr.size());
+    assertFalse(future.isDone());
+    assertNull(pr.get(1));
+  }
+}
@@ -0,0 +1,179 @@
+/*
+National Crime Agency (c) Crown Copyright 2018
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+   http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package uk.gov.nca.remedi4j.client.internal;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+import uk.gov.nca.remedi4j.data.PostProcessorResponse;
+import uk.gov.nca.remedi4j.data.PreProcessorResponse;
+import uk.gov.nca.remedi4j.data.SupportedLanguageResponse;
+import uk.gov.nca.remedi4j.data.TranslationResponse;
+
+public class RemediListenerTest {
+  private final PendingRequests<String, PreProcessorResponse> preProcessorRequests = new PendingRequests<>();
+  private final PendingRequests<Integer, TranslationResponse> translationRequests = new PendingRequests<>();
+  private final PendingRequests<String, PostProcessorResponse> postProcessorRequests = new PendingRequests<>();
+
+  @Test
+  public void testTranslationResponse(){
+    RemediListener listener = new RemediListener(preProcessorRequests, translationRequests, postProcessorRequests, new StringBuilderPool(), Runnable::run);
+
+    CompletableFuture<TranslationResponse> future = translationRequests.register(7);
+    listener.onText(new StubWebSocket(), "{\"prot_ver\":0,\"msg_type\":4,\"job_id\":7,\"stat_code\":2,\"stat_msg\":\"OK\",\"target_data\":[]}", true);
+
+    assertTrue(future.isDone());
+    assertEquals(7, future.join().getJobId());
+  }
+
+  @Test
+  public void testPreProcessorResponse(){
+    RemediListener listener = new RemediListener(preProcessorRequests, translationRequests, postProcessorRequests, new StringBuilderPool(), Runnable::run);
+
+    CompletableFuture<PreProcessorResponse> future = preProcessorRequests.register(RemediListener.getProcessorKey("abc", 0));
+    listener.onText(new StubWebSocket(), "{\"prot_ver\":0,\"msg_type\":6,\"job_token\":\"abc\",\"stat_code\":2,\"text\":\"Hello\"}", true);
+
+    assertTrue(future.isDone());
+    assertEquals("Hello", future.join().getText());
+  }
+
+  @Test
+  public void testChunkedProcessorResponse(){
+    RemediListener listener = new RemediListener(preProcessorRequests, translationRequests, postProcessorRequests, new StringBuilderPool(), Runnable::run);
+
+    CompletableFuture<PostProcessorResponse> future0 = postProcessorRequests.register(RemediListener.getProcessorKey("abc", 0));
+    CompletableFuture<PostProcessorResponse> future1 = postProcessorRequests.register(RemediListener.getProcessorKey("abc", 1));
+
+    listener.onText(new StubWebSocket(), "{\"prot_ver\":0,\"msg_type\":8,\"job_token\":\"abc.1\",\"stat_code\":2,\"num_chs\":2,\"ch_idx\":1,\"text\":\"World\"}", true);
+    assertFalse(future0.isDone());
+    assertEquals("World", future1.join().getText());
+
+    listener.onText(new StubWebSocket(), "{\"prot_ver\":0,\"msg_type\":8,\"job_token\":\"abc.0\",\"stat_code\":2,\"num_chs\":2,\"ch_idx\":0,\"text\":\"Hello\"}", true);
+    assertEquals("Hello", future0.join().getText());
+  }
+
+  @Test
+  public void testSupportedLanguageResponse(){
+    RemediListener listener = new RemediListener(preProcessorRequests, translationRequests, postProcessorRequests, new StringBuilderPool(), Runnable::run);
+
+    //A request that couldn't be sent is removed, so gets no response
+    CompletableFuture<SupportedLanguageResponse> unsent = listener.registerSupportedLanguageRequest();
+    listener.deregisterSupportedLanguageRequest(unsent);
+
+    //A request that timed out was still sent, so the first response is its response
+    CompletableFuture<SupportedLanguageResponse> timedOut = listener.registerSupportedLanguageRequest();
+    timedOut.completeExceptionally(new RuntimeException());
+
+    CompletableFuture<SupportedLanguageResponse> f1 = listener.registerSupportedLanguageRequest();
+    CompletableFuture<SupportedLanguageResponse> f2 = listener.registerSupportedLanguageRequest();
+
+    listener.onText(new StubWebSocket(), "{\"prot_ver\":0,\"msg_type\":2,\"langs\":{\"german\":[\"french\"]}}", true);
+    assertFalse(unsent.isDone());
+    assertFalse(f1.isDone());
+
+    listener.onText(new StubWebSocket(), "{\"prot_ver\":0,\"msg_type\":2,\"langs\":{\"german\":[\"english\"]}}", true);
+    assertTrue(f1.isDone());
+    assertFalse(f2.isDone());
+    assertTrue(f1.join().getLanguages().get("german").contains("english"));
+  }
+
+  @Test
+  public void testCompletedOnExecutor(){
+    List<Runnable> tasks = new ArrayList<>();
+    RemediListener listener = new RemediListener(preProcessorRequests, translationRequests, postProcessorRequests, new StringBuilderPool(), tasks::add);
+
+    CompletableFuture<TranslationResponse> future = translationRequests.register(9);
+    listener.onText(new StubWebSocket(), "{\"prot_ver\":0,\"msg_type\":4,\"job_id\":9,\"stat_code\":2,\"stat_msg\":\"OK\",\"target_data\":[]}", true);
+    assertFalse(future.isDone());
+    assertEquals(1, tasks.size());
+
+    tasks.get(0).run();
+    assertEquals(9, future.join().getJobId());
+  }
+
+  @Test
+  public void testFragmentedMessage(){
+    StringBuilderPool pool = new StringBuilderPool();
+    RemediListener listener = new RemediListener(preProcessorRequests, translationRequests, postProcessorRequests, pool, Runnable::run);
+
+    CompletableFuture<TranslationResponse> future = translationRequests.register(8);
+    listener.onText(new StubWebSocket(), "{\"prot_ver\":0,\"msg_type\":4,\"job_id\":8,", false);
+    listener.onText(new StubWebSocket(), "\"stat_code\":2,\"stat_msg\":\"OK\",", false);
+    assertFalse(future.isDone());
+
+    listener.onText(new StubWebSocket(), "\"target_data\":[]}", true);
+    assertTrue(future.isDone());
+    assertEquals(8, future.join().getJobId());
+    assertEquals("OK", future.join().getStatusMessage());
+
+    //The buffer should have been returned to the pool
+    assertEquals(1, pool.size());
+  }
+
+  @Test
+  public void testPing(){
+    RemediListener listener = new RemediListener(preProcessorRequests, translationRequests, postProcessorRequests, new StringBuilderPool(), Runnable::run);
+    StubWebSocket ws = new StubWebSocket();
+    RemediConnection conn = new RemediConnection(ws, listener);
+
+    CompletableFuture<Long> ping1 = conn.ping();
+    CompletableFuture<Long> ping2 = conn.ping();
+    assertEquals(2, ws.getPings().size());
+
+    //Pongs are matched to pings by their payload, and unrecognised pongs are ignored
+    listener.onPong(ws, ByteBuffer.allocate(0));
+    listener.onPong(ws, ws.getPings().get(1));
+    assertFalse(ping1.isDone());
+    assertTrue(ping2.join() >= 0);
+
+    //A ping that times out is abandoned
+    ping1.cancel(false);
+    listener.onPong(ws, ws.getPings().get(0));
+    assertTrue(ping1.isCancelled());
+  }
+
+  @Test
+  public void testClose(){
+    RemediListener listener = new RemediListener(preProcessorRequests, translationRequests, postProcessorRequests, new StringBuilderPool(), Runnable::run);
+    StubWebSocket ws = new StubWebSocket();
+    RemediConnection conn = new RemediConnection(ws, listener);
+
+    AtomicInteger closed = new AtomicInteger();
+    conn.whenClosed(closed::incrementAndGet);
+    Runnable deregister = conn.whenClosed(closed::incrementAndGet);
+    deregister.run();
+
+    CompletableFuture<Long> ping = conn.ping();
+
+    listener.onClose(ws, 1001, "Going away");
+    assertFalse(conn.isOpen());
+    assertEquals(1, closed.get());
+    assertTrue(ping.isCompletedExceptionally());
+
+    //Actions registered after the connection has closed are run immediately, and only once
+    conn.whenClosed(closed::incrementAndGet);
+    listener.onError(ws, new IllegalStateException());
+    assertEquals(2, closed.get());
+  }
+}
@@ -0,0 +1,168 @@
+/*
+National Crime Agency (c) Crown Copyright 2018
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+   http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package uk.gov.nca.remedi4j.client.internal;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.http.WebSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import org.junit.jupiter.api.Test;
+import uk.gov.nca.remedi4j.data.TranslationRequest;
+import uk.gov.nca.remedi4j.utils.MessageUtils;
+
+public class SendQueueTest {
+  @Test
+  public void testSendsAreSerialized(){
+    StubWebSocket ws = new StubWebSocket();
+    ws.setAutoComplete(false);
+
+    SendQueue queue = new SendQueue(ws);
+
+    CompletableFuture<WebSocket> f1 = queue.send("1");
+    CompletableFuture<WebSocket> f2 = queue.send("2");
+    CompletableFuture<WebSocket> f3 = queue.send("3");
+
+    assertEquals(Arrays.asList("1"), ws.getSent());
+    assertEquals(2, queue.size());
+
+    ws.completeSend();
+    assertTrue(f1.isDone());
+    assertFalse(f2.isDone());
+    assertEquals(Arrays.asList("1", "2"), ws.getSent());
+
+    ws.failSend(new IOException());
+    assertTrue(f2.isCompletedExceptionally());
+    assertEquals(Arrays.asList("1", "2", "3"), ws.getSent());
+
+    ws.completeSend();
+    assertTrue(f3.isDone());
+    assertEquals(0, queue.size());
+  }
+
+  @Test
+  public void testConcurrentSends() throws Exception {
+    StubWebSocket ws = new StubWebSocket();
+    SendQueue queue = new SendQueue(ws);
+
+    List<Thread> threads = new ArrayList<>();
+    List<CompletableFuture<WebSocket>> futures = new ArrayList<>();
+    for(int i = 0; i < 8; i++){
+      Thread t = new Thread(() -> {
+        for(int j = 0; j < 1000; j++) {
+          CompletableFuture<WebSocket> f = queue.send("message");
+          synchronized (futures) {
+            futures.add(f);
+          }
+        }
+      });
+      threads.add(t);
+      t.start();
+    }
+
+    for(Thread t : threads)
+      t.join();
+
+    CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+    assertEquals(8000, ws.getSent().size());
+  }
+
+  @Test
+  public void testFlush(){
+    StubWebSocket ws = new StubWebSocket();
+    ws.setAutoComplete(false);
+
+    SendQueue queue = new SendQueue(ws);
+
+    queue.send("1");
+    queue.send("2");
+    CompletableFuture<Void> flushed = queue.flush();
+    queue.send("3");
+
+    ws.completeSend();
+    assertFalse(flushed.isDone());
+
+    //Messages queued after the flush aren't waited for
+    ws.completeSend();
+    assertTrue(flushed.isDone());
+    assertEquals(Arrays.asList("1", "2", "3"), ws.getSent());
+
+    ws.completeSend();
+    assertTrue(queue.flush().isDone());
+  }
+
+  @Test
+  public void testSendMessage() throws Exception {
+    StubWebSocket ws = new StubWebSocket();
+    ws.setAutoComplete(false);
+
+    SendQueue queue = new SendQueue(ws);
+
+    TranslationRequest r1 = new TranslationRequest("en", "fr", Arrays.asList("A longer first sentence.", "And a second."));
+    TranslationRequest r2 = new TranslationRequest("en", "de", Arrays.asList("Short."));
+
+    CompletableFuture<WebSocket> f1 = queue.send(r1);
+    CompletableFuture<WebSocket> f2 = queue.send(r2);
+
+    //The second message is serialized into the same buffer once the first has been sent
+    ws.completeSend();
+    ws.completeSend();
+    assertTrue(f1.isDone());
+    assertTrue(f2.isDone());
+
+    assertEquals(Arrays.asList(MessageUtils.getJson(r1), MessageUtils.getJson(r2)), ws.getSent());
+  }
+
+  @Test
+  public void testFragments() throws Exception {
+    StubWebSocket ws = new StubWebSocket();
+    ws.setAutoComplete(false);
+
+    SendQueue queue = new SendQueue(ws, 4);
+
+    CompletableFuture<WebSocket> f1 = queue.send("abcdefghij");
+    CompletableFuture<WebSocket> f2 = queue.send("abc\uD83D\uDE00defg");
+
+    ws.completeSend();
+    ws.completeSend();
+    assertFalse(f1.isDone());
+    ws.completeSend();
+    assertTrue(f1.isDone());
+
+    ws.completeSend();
+    ws.completeSend();
+    ws.completeSend();
+    assertTrue(f2.isDone());
+
+    //Surrogate pairs aren't split across fragments
+    assertEquals(Arrays.asList("abcd", "efgh", "ij", "abc", "\uD83D\uDE00de", "fg"), ws.getFragments());
+    assertEquals(Arrays.asList("abcdefghij", "abc\uD83D\uDE00defg"), ws.getSent());
+
+    //Messages are sent in a single frame if fragmentation is disabled
+    StubWebSocket ws2 = new StubWebSocket();
+    SendQueue queue2 = new SendQueue(ws2, 0);
+
+    TranslationRequest r = new TranslationRequest("en", "fr", Arrays.asList("Sentence one.", "Sentence two."));
+    queue2.send(r).join();
+    assertEquals(Arrays.asList(MessageUtils.getJson(r)), ws2.getFragments());
+  }
+}
@@ -0,0 +1,144 @@
+/*
+National Crime Agency (c) Crown Copyright 2018
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+   http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package uk.gov.nca.remedi4j.client.internal;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import org.junit.jupiter.api.Test;
+import uk.gov.nca.remedi4j.data.StatusCode;
+import uk.gov.nca.remedi4j.data.TargetData;
+import uk.gov.nca.remedi4j.data.TranslationRequest;
+import uk.gov.nca.remedi4j.data.TranslationResponse;
+
+public class ShardingTranslatorTest {
+  private final List<List<String>> sent = Collections.synchronizedList(new ArrayList<>());
+
+  private CompletableFuture<TranslationResponse> upperCase(TranslationRequest request){
+    sent.add(new ArrayList<>(request.getSourceSentences()));
+
+    TranslationResponse response = new TranslationResponse();
+    response.setJobId(request.getJobId());
+    response.setStatusCode(StatusCode.RESULT_OK);
+    for(String s : request.getSourceSentences()){
+      TargetData td = new TargetData();
+      td.setStatusCode(StatusCode.RESULT_OK);
+      td.setTranslatedText(s.toUpperCase());
+      response.addTargetData(td);
+    }
+
+    return CompletableFuture.completedFuture(response);
+  }
+
+  @Test
+  public void testSharded(){
+    ShardingTranslator translator = new ShardingTranslator(this::upperCase, r -> 2, 4);
+
+    TranslationRequest req = new TranslationRequest("german", "english",
+        Arrays.asList("aaaaaa", "b", "c", "d", "e", "f", "g"));
+    TranslationResponse resp = translator.translate(req).join();
+
+    //Shards are balanced by characters, not sentences
+    assertEquals(Arrays.asList(Arrays.asList("aaaaaa"), Arrays.asList("b", "c", "d", "e", "f", "g")), sent);
+
+    assertEquals(req.getJobId(), resp.getJobId());
+    assertEquals(StatusCode.RESULT_OK, resp.getStatusCode());
+    assertEquals("AAAAAA B C D E F G", resp.assembleTargetData(" ", true));
+  }
+
+  @Test
+  public void testNotSharded(){
+    //Too small
+    ShardingTranslator translator = new ShardingTranslator(this::upperCase, r -> 4, 10);
+    translator.translate(new TranslationRequest("german", "english", Arrays.asList("a", "b", "c"))).join();
+    assertEquals(1, sent.size());
+
+    //Only one server
+    translator = new ShardingTranslator(this::upperCase, r -> 1, 1);
+    translator.translate(new TranslationRequest("german", "english", Arrays.asList("a", "b", "c"))).join();
+    assertEquals(2, sent.size());
+  }
+
+  @Test
+  public void testShardFails(){
+    CompletableFuture<TranslationResponse> pending = new CompletableFuture<>();
+    ShardingTranslator translator = new ShardingTranslator(r -> {
+      if(r.getSourceSentences().contains("a"))
+        return pending;
+
+      return CompletableFuture.failedFuture(new IllegalStateException());
+    }, r -> 2, 1);
+
+    CompletableFuture<TranslationResponse> f = translator.translate(new TranslationRequest("german", "english", Arrays.asList("a", "b")));
+    CompletionException ce = assertThrows(CompletionException.class, f::join);
+    assertTrue(ce.getCause() instanceof IllegalStateException);
+    assertTrue(pending.isCancelled());
+  }
+
+  @Test
+  public void testPartialShard(){
+    ShardingTranslator translator = new ShardingTranslator(r -> {
+      TranslationResponse response = new TranslationResponse();
+      response.setJobId(r.getJobId());
+      if(r.getSourceSentences().contains("a")) {
+        response.setStatusCode(StatusCode.RESULT_OK);
+        response.addTargetData(new TargetData());
+      }else{
+        response.setStatusCode(StatusCode.RESULT_PARTIAL);
+      }
+
+      return CompletableFuture.completedFuture(response);
+    }, r -> 2, 1);
+
+    TranslationResponse resp = translator.translate(new TranslationRequest("german", "english", Arrays.asList("a", "b"))).join();
+    assertEquals(StatusCode.RESULT_PARTIAL, resp.getStatusCode());
+    assertEquals(2, resp.getTargetData().size());
+    assertEquals(StatusCode.RESULT_ERROR, resp.getTargetData().get(1).getStatusCode());
+  }
+
+  @Test
+  public void testCancellation(){
+    CompletableFuture<TranslationResponse> pending = new CompletableFuture<>();
+    ShardingTranslator translator = new ShardingTranslator(r -> pending, r -> 2, 1);
+
+    CompletableFuture<TranslationResponse> f = translator.translate(new TranslationRequest("german", "english", Arrays.asList("a", "b")));
+    assertFalse(f.isDone());
+
+    f.cancel(false);
+    assertTrue(pending.isCancelled());
+  }
+
+  @Test
+  public void testGetBoundaries(){
+    List<String> sentences = Arrays.asList("aa", "bb", "cc", "dd", "ee", "ff");
+    assertArrayEquals(new int[]{0, 2, 4, 6}, ShardingTranslator.getBoundaries(sentences, 12, 3));
+    assertArrayEquals(new int[]{0, 1, 2, 3, 4, 5, 6}, ShardingTranslator.getBoundaries(sentences, 12, 6));
+
+    //Every shard has at least one sentence, even when one sentence is much longer than the others
+    sentences = Arrays.asList("a", "b", "cccccccccccccccccccc", "d");
+    assertArrayEquals(new int[]{0, 2, 3, 4}, ShardingTranslator.getBoundaries(sentences, 23, 3));
+  }
+}
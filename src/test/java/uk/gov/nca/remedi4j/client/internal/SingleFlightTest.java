@@ -0,0 +1,92 @@
+/*
+National Crime Agency (c) Crown Copyright 2018
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+   http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package uk.gov.nca.remedi4j.client.internal;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+public class SingleFlightTest {
+  @Test
+  public void testIdenticalRequestsShared(){
+    SingleFlight<String, String> flights = new SingleFlight<>();
+    AtomicInteger calls = new AtomicInteger();
+    CompletableFuture<String> op = new CompletableFuture<>();
+
+    CompletableFuture<String> f1 = flights.execute("a", () -> { calls.incrementAndGet(); return op; });
+    CompletableFuture<String> f2 = flights.execute("a", () -> { calls.incrementAndGet(); return op; });
+    assertEquals(1, calls.get());
+    assertEquals(1, flights.size());
+
+    //Cancelling one caller doesn't affect the other
+    f1.cancel(false);
+    op.complete("Hello");
+    assertEquals("Hello", f2.join());
+    assertEquals(0, flights.size());
+
+    //Once complete, a new request starts a new operation
+    flights.execute("a", () -> { calls.incrementAndGet(); return CompletableFuture.completedFuture("World"); });
+    assertEquals(2, calls.get());
+  }
+
+  @Test
+  public void testDifferentKeys(){
+    SingleFlight<String, String> flights = new SingleFlight<>();
+    CompletableFuture<String> f1 = flights.execute("a", CompletableFuture::new);
+    CompletableFuture<String> f2 = flights.execute("b", () -> CompletableFuture.completedFuture("b"));
+
+    assertFalse(f1.isDone());
+    assertEquals("b", f2.join());
+    assertEquals(1, flights.size());
+  }
+
+  @Test
+  public void testFailure(){
+    SingleFlight<String, String> flights = new SingleFlight<>();
+    CompletableFuture<String> f = flights.execute("a", () -> { throw new IllegalStateException(); });
+
+    assertTrue(f.isCompletedExceptionally());
+    assertThrows(CompletionException.class, f::join);
+    assertEquals(0, flights.size());
+  }
+
+  @Test
+  public void testCancelledByAllCallers(){
+    SingleFlight<String, String> flights = new SingleFlight<>();
+    CompletableFuture<String> op = new CompletableFuture<>();
+
+    CompletableFuture<String> f1 = flights.execute("a", () -> op);
+    CompletableFuture<String> f2 = flights.execute("a", () -> op);
+
+    f1.cancel(false);
+    assertFalse(op.isCancelled());
+
+    f2.cancel(false);
+    assertTrue(op.isCancelled());
+    assertEquals(0, flights.size());
+
+    //A new caller starts a new operation
+    CompletableFuture<String> f3 = flights.execute("a", () -> CompletableFuture.completedFuture("Hello"));
+    assertEquals("Hello", f3.join());
+  }
+}
@@ -0,0 +1,69 @@
+/*
+National Crime Agency (c) Crown Copyright 2018
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+   http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package uk.gov.nca.remedi4j.client.internal;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import org.junit.jupiter.api.Test;
+import uk.gov.nca.remedi4j.data.StatusCode;
+import uk.gov.nca.remedi4j.data.TargetData;
+import uk.gov.nca.remedi4j.data.TranslationRequest;
+import uk.gov.nca.remedi4j.data.TranslationResponse;
+
+public class SingleFlightTranslatorTest {
+  private final List<TranslationRequest> sent = new ArrayList<>();
+  private final CompletableFuture<TranslationResponse> pending = new CompletableFuture<>();
+
+  private CompletableFuture<TranslationResponse> send(TranslationRequest request){
+    sent.add(request);
+    return pending;
+  }
+
+  @Test
+  public void testJobIds(){
+    SingleFlightTranslator translator = new SingleFlightTranslator(this::send);
+
+    TranslationRequest r1 = new TranslationRequest("german", "english", Arrays.asList("a", "b"));
+    TranslationRequest r2 = new TranslationRequest("german", "english", Arrays.asList("a", "b"));
+
+    CompletableFuture<TranslationResponse> f1 = translator.translate(r1);
+    CompletableFuture<TranslationResponse> f2 = translator.translate(r2);
+    assertEquals(1, sent.size());
+
+    TranslationResponse response = new TranslationResponse();
+    response.setJobId(r1.getJobId());
+    response.setStatusCode(StatusCode.RESULT_OK);
+    for(String s : r1.getSourceSentences()){
+      TargetData td = new TargetData();
+      td.setStatusCode(StatusCode.RESULT_OK);
+      td.setTranslatedText(s.toUpperCase());
+      response.addTargetData(td);
+    }
+    pending.complete(response);
+
+    //Each caller gets its own copy, with its own job ID
+    assertEquals(r1.getJobId(), f1.join().getJobId());
+    assertEquals(r2.getJobId(), f2.join().getJobId());
+    assertNotSame(f1.join(), f2.join());
+    assertEquals("A B", f2.join().assembleTargetData(" ", true));
+  }
+}
@@ -0,0 +1,55 @@
+/*
+National Crime Agency (c) Crown Copyright 2018
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+   http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package uk.gov.nca.remedi4j.client.internal;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import org.junit.jupiter.api.Test;
+
+public class StringBuilderPoolTest {
+  @Test
+  public void testAcquireAndRelease(){
+    StringBuilderPool pool = new StringBuilderPool(1, 16, 64);
+
+    StringBuilder sb1 = pool.acquire();
+    StringBuilder sb2 = pool.acquire();
+    assertNotSame(sb1, sb2);
+
+    sb1.append("Hello");
+    pool.release(sb1);
+    pool.release(sb2);
+    assertEquals(1, pool.size());
+
+    StringBuilder sb3 = pool.acquire();
+    assertSame(sb1, sb3);
+    assertEquals(0, sb3.length());
+    assertEquals(0, pool.size());
+  }
+
+  @Test
+  public void testLargeBuffersDiscarded(){
+    StringBuilderPool pool = new StringBuilderPool(1, 16, 64);
+
+    StringBuilder sb = pool.acquire();
+    sb.append("x".repeat(128));
+    pool.release(sb);
+
+    assertEquals(0, pool.size());
+  }
+}
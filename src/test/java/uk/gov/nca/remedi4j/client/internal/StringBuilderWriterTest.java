@@ -0,0 +1,42 @@
+/*
+National Crime Agency (c) Crown Copyright 2018
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+   http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+
+package uk.gov.nca.remedi4j.client.internal;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+public class StringBuilderWriterTest {
+  @Test
+  public void testWrite(){
+    StringBuilderWriter writer = new StringBuilderWriter(4);
+
+    writer.write('a');
+    writer.write(new char[]{'x', 'b', 'c', 'x'}, 1, 2);
+    writer.write("def");
+    writer.write("xghix", 1, 3);
+    writer.append("jk").append("xlmx", 1, 3).append('n');
+    writer.close();
+
+    //Writing after close is allowed, so the buffer can be reused
+    writer.write("o");
+
+    assertEquals("abcdefghijklmno", writer.getBuilder().toString());
+    assertEquals("abcdefghijklmno", writer.toString());
+  }
+}
@@ -0,0 +1,132 @@
+/*
+National Crime Agency (c) Crown Copyright 2018
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+   http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package uk.gov.nca.remedi4j.client.internal;
+
+import java.net.http.WebSocket;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Stub WebSocket which records the messages sent to it.
+ *
+ * If auto-complete is disabled, sends don't complete until {@link #completeSend()} is called,
+ * and like the JDK WebSocket an IllegalStateException is thrown if a send is attempted
+ * whilst a previous send is still outstanding.
+ */
+public class StubWebSocket implements WebSocket {
+  private final List<String> sent = new CopyOnWriteArrayList<>();
+  private final List<String> fragments = new CopyOnWriteArrayList<>();
+  private final StringBuilder partial = new StringBuilder();
+  private final List<ByteBuffer> pings = new CopyOnWriteArrayList<>();
+  private boolean autoComplete = true;
+  private CompletableFuture<WebSocket> outstanding = null;
+
+  public List<String> getSent() {
+    return sent;
+  }
+
+  public List<String> getFragments() {
+    return fragments;
+  }
+
+  public List<ByteBuffer> getPings() {
+    return pings;
+  }
+
+  public void setAutoComplete(boolean autoComplete) {
+    this.autoComplete = autoComplete;
+  }
+
+  public synchronized void completeSend() {
+    CompletableFuture<WebSocket> f = outstanding;
+    outstanding = null;
+    f.complete(this);
+  }
+
+  public synchronized void failSend(Throwable t) {
+    CompletableFuture<WebSocket> f = outstanding;
+    outstanding = null;
+    f.completeExceptionally(t);
+  }
+
+  @Override
+  public synchronized CompletableFuture<WebSocket> sendText(CharSequence data, boolean last) {
+    if(outstanding != null)
+      throw new IllegalStateException("Send pending");
+
+    fragments.add(data.toString());
+    partial.append(data);
+    if(last) {
+      sent.add(partial.toString());
+      partial.setLength(0);
+    }
+
+    if(autoComplete)
+      return CompletableFuture.completedFuture(this);
+
+    outstanding = new CompletableFuture<>();
+    return outstanding;
+  }
+
+  @Override
+  public CompletableFuture<WebSocket> sendBinary(ByteBuffer data, boolean last) {
+    return CompletableFuture.completedFuture(this);
+  }
+
+  @Override
+  public CompletableFuture<WebSocket> sendPing(ByteBuffer message) {
+    pings.add(message);
+    return CompletableFuture.completedFuture(this);
+  }
+
+  @Override
+  public CompletableFuture<WebSocket> sendPong(ByteBuffer message) {
+    return CompletableFuture.completedFuture(this);
+  }
+
+  @Override
+  public CompletableFuture<WebSocket> sendClose(int statusCode, String reason) {
+    return CompletableFuture.completedFuture(this);
+  }
+
+  @Override
+  public void request(long n) {
+    //Do nothing
+  }
+
+  @Override
+  public String getSubprotocol() {
+    return "";
+  }
+
+  @Override
+  public boolean isOutputClosed() {
+    return false;
+  }
+
+  @Override
+  public boolean isInputClosed() {
+    return false;
+  }
+
+  @Override
+  public void abort() {
+    //Do nothing
+  }
+}
@@ -0,0 +1,133 @@
+/*
+National Crime Agency (c) Crown Copyright 2018
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+   http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package uk.gov.nca.remedi4j.client.internal;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.Test;
+import uk.gov.nca.remedi4j.utils.LanguagePairTable;
+
+public class SupportedLanguageCacheTest {
+  @Test
+  public void testFreshTableServedFromCache(){
+    List<CompletableFuture<LanguagePairTable>> fetches = new ArrayList<>();
+    SupportedLanguageCache cache = new SupportedLanguageCache(() -> {
+      CompletableFuture<LanguagePairTable> f = new CompletableFuture<>();
+      fetches.add(f);
+      return f;
+    }, TimeUnit.HOURS.toNanos(1));
+
+    assertNull(cache.getIfPresent());
+
+    //Concurrent first reads share a single fetch
+    CompletableFuture<LanguagePairTable> f1 = cache.get();
+    CompletableFuture<LanguagePairTable> f2 = cache.get();
+    assertEquals(1, fetches.size());
+    assertFalse(f1.isDone());
+
+    LanguagePairTable table = new LanguagePairTable(Map.of("german", Set.of("english")));
+    fetches.get(0).complete(table);
+    assertSame(table, f1.join());
+    assertSame(table, f2.join());
+
+    //Subsequent reads are served from the cache
+    assertSame(table, cache.get().join());
+    assertSame(table, cache.getIfPresent());
+    assertEquals(1, fetches.size());
+  }
+
+  @Test
+  public void testStaleTableRefreshedInBackground(){
+    List<CompletableFuture<LanguagePairTable>> fetches = new ArrayList<>();
+    SupportedLanguageCache cache = new SupportedLanguageCache(() -> {
+      CompletableFuture<LanguagePairTable> f = new CompletableFuture<>();
+      fetches.add(f);
+      return f;
+    }, 0L);
+
+    LanguagePairTable t1 = new LanguagePairTable(Map.of("german", Set.of("english")));
+    CompletableFuture<LanguagePairTable> f = cache.get();
+    fetches.get(0).complete(t1);
+    assertSame(t1, f.join());
+
+    //Stale table is still served immediately, whilst a single refresh happens
+    f = cache.get();
+    assertTrue(f.isDone());
+    assertSame(t1, f.join());
+    assertSame(t1, cache.get().join());
+    assertEquals(2, fetches.size());
+
+    LanguagePairTable t2 = new LanguagePairTable(Map.of("french", Set.of("english")));
+    fetches.get(1).complete(t2);
+    assertSame(t2, cache.getIfPresent());
+
+    //A failed refresh keeps the existing table
+    cache.get();
+    fetches.get(2).completeExceptionally(new IllegalStateException());
+    assertSame(t2, cache.getIfPresent());
+  }
+
+  @Test
+  public void testFailedRefreshBacksOff(){
+    AtomicLong time = new AtomicLong();
+    List<CompletableFuture<LanguagePairTable>> fetches = new ArrayList<>();
+    SupportedLanguageCache cache = new SupportedLanguageCache(() -> {
+      CompletableFuture<LanguagePairTable> f = new CompletableFuture<>();
+      fetches.add(f);
+      return f;
+    }, TimeUnit.HOURS.toNanos(1), TimeUnit.MILLISECONDS.toNanos(100), time::get);
+
+    CompletableFuture<LanguagePairTable> f = cache.get();
+    fetches.get(0).completeExceptionally(new IllegalStateException());
+    assertTrue(f.isCompletedExceptionally());
+
+    //Reads fail immediately without fetching again until the retry interval has passed
+    f = cache.get();
+    assertTrue(f.isCompletedExceptionally());
+    assertEquals(1, fetches.size());
+
+    time.addAndGet(TimeUnit.MILLISECONDS.toNanos(100));
+    f = cache.get();
+    assertFalse(f.isDone());
+    assertEquals(2, fetches.size());
+
+    //The retry interval doubles after each consecutive failure
+    fetches.get(1).completeExceptionally(new IllegalStateException());
+    time.addAndGet(TimeUnit.MILLISECONDS.toNanos(100));
+    assertTrue(cache.get().isCompletedExceptionally());
+    assertEquals(2, fetches.size());
+
+    time.addAndGet(TimeUnit.MILLISECONDS.toNanos(100));
+    f = cache.get();
+    assertEquals(3, fetches.size());
+
+    LanguagePairTable table = new LanguagePairTable(Map.of("german", Set.of("english")));
+    fetches.get(2).complete(table);
+    assertSame(table, f.join());
+  }
+}
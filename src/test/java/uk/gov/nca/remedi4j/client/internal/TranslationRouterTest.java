@@ -0,0 +1,245 @@
+/*
+National Crime Agency (c) Crown Copyright 2018
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+   http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package uk.gov.nca.remedi4j.client.internal;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.URI;
+import java.util.Collections;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+import uk.gov.nca.remedi4j.client.OverloadPolicy;
+import uk.gov.nca.remedi4j.data.TargetData;
+import uk.gov.nca.remedi4j.data.TranslationResponse;
+import uk.gov.nca.remedi4j.utils.LanguagePairTable;
+
+public class TranslationRouterTest {
+  private static ConnectionPool pool(String uri){
+    return new ConnectionPool(URI.create(uri),
+        () -> CompletableFuture.completedFuture(new RemediConnection(new StubWebSocket(), null)),
+        1, 1, 100, Long.MAX_VALUE,
+        new ConcurrencyLimiter(32, 1, 512, 0, OverloadPolicy.QUEUE, Integer.MAX_VALUE, 0));
+  }
+
+  private static TranslationResponse response(List<Integer> stackLoad){
+    TargetData td = new TargetData();
+    td.setStackLoad(stackLoad);
+
+    TranslationResponse tr = new TranslationResponse();
+    tr.addTargetData(td);
+
+    return tr;
+  }
+
+  @Test
+  public void testSingleServer(){
+    ConnectionPool p = pool("ws://a");
+    TranslationRouter router = new TranslationRouter(List.of(p));
+
+    assertSame(p, router.select());
+  }
+
+  @Test
+  public void testNoServers(){
+    assertThrows(IllegalArgumentException.class, () -> new TranslationRouter(Collections.emptyList()));
+  }
+
+  @Test
+  public void testInFlight(){
+    ConnectionPool a = pool("ws://a");
+    ConnectionPool b = pool("ws://b");
+    TranslationRouter router = new TranslationRouter(List.of(a, b));
+
+    a.getLimiter().acquire(10).join();
+    for(int i = 0; i < 10; i++)
+      assertSame(b, router.select());
+  }
+
+  @Test
+  public void testStackLoad(){
+    ConnectionPool a = pool("ws://a");
+    ConnectionPool b = pool("ws://b");
+    TranslationRouter router = new TranslationRouter(List.of(a, b));
+
+    //Other clients are loading server A
+    router.onResponse(a, response(List.of(5, 5)));
+    assertEquals(1.5, router.getLoad(a), 0.0001);
+    for(int i = 0; i < 10; i++)
+      assertSame(b, router.select());
+
+    //Server B has more threads, so can accept more requests before it is busier than A
+    router.onResponse(b, response(List.of(0, 0, 0, 0, 0, 0, 0, 0)));
+    for(int i = 0; i < 10; i++)
+      b.getLimiter().acquire(10).join();
+    assertEquals(1.25, router.getLoad(b), 0.0001);
+    assertSame(b, router.select());
+
+    b.getLimiter().acquire(10).join();
+    b.getLimiter().acquire(10).join();
+    b.getLimiter().acquire(10).join();
+    assertSame(a, router.select());
+  }
+
+  @Test
+  public void testResponseWithoutStackLoad(){
+    ConnectionPool a = pool("ws://a");
+    TranslationRouter router = new TranslationRouter(List.of(a, pool("ws://b")));
+
+    router.onResponse(a, response(null));
+    assertEquals(0.0, router.getLoad(a), 0.0001);
+  }
+
+  @Test
+  public void testLanguagePairs(){
+    ConnectionPool a = pool("ws://a");
+    ConnectionPool b = pool("ws://b");
+    TranslationRouter router = new TranslationRouter(List.of(a, b));
+
+    //Before the language pairs are known, any server can be selected
+    assertFalse(router.hasLanguagePairTables());
+    assertTrue(router.select("fr", "en") != null);
+    assertEquals(2, router.countServers("fr", "en"));
+
+    LanguagePairTable union = router.setLanguagePairTables(List.of(
+        new LanguagePairTable(Map.of("fr", Set.of("en"), "de", Set.of("en"))),
+        new LanguagePairTable(Map.of("fr", Set.of("en"), "ru", Set.of("en")))));
+    assertTrue(router.hasLanguagePairTables());
+
+    assertTrue(union.supports("fr", "en"));
+    assertTrue(union.supports("de", "en"));
+    assertTrue(union.supports("ru", "en"));
+    assertFalse(union.supports("en", "fr"));
+
+    for(int i = 0; i < 10; i++) {
+      assertSame(a, router.select("de", "en"));
+      assertSame(b, router.select("ru", "en"));
+    }
+
+    //Both servers support French, so the least loaded is chosen
+    a.getLimiter().acquire(10).join();
+    assertSame(b, router.select("fr", "en"));
+
+    assertEquals(2, router.countServers("fr", "en"));
+    assertEquals(1, router.countServers("de", "en"));
+    assertEquals(0, router.countServers("en", "fr"));
+
+    assertNull(router.select("en", "fr"));
+    assertNull(router.select("es", "en"));
+    assertNull(router.select(null, "en"));
+  }
+
+  @Test
+  public void testLanguagePairsRetained(){
+    ConnectionPool a = pool("ws://a");
+    ConnectionPool b = pool("ws://b");
+    TranslationRouter router = new TranslationRouter(List.of(a, b));
+
+    //Server B couldn't be queried, so is assumed to support nothing
+    router.setLanguagePairTables(Arrays.asList(new LanguagePairTable(Map.of("fr", Set.of("en"))), null));
+    assertNull(router.select("de", "en"));
+
+    router.setLanguagePairTables(List.of(
+        new LanguagePairTable(Map.of("fr", Set.of("en"))),
+        new LanguagePairTable(Map.of("de", Set.of("en")))));
+    assertSame(b, router.select("de", "en"));
+
+    //Server B couldn't be queried, so keeps the pairs it previously supported
+    LanguagePairTable union = router.setLanguagePairTables(Arrays.asList(null, null));
+    assertSame(b, router.select("de", "en"));
+    assertSame(a, router.select("fr", "en"));
+    assertEquals(2, union.getLanguages().size());
+
+    assertThrows(IllegalArgumentException.class, () -> router.setLanguagePairTables(List.of()));
+  }
+
+  @Test
+  public void testExclude(){
+    ConnectionPool a = pool("ws://a");
+    ConnectionPool b = pool("ws://b");
+    TranslationRouter router = new TranslationRouter(List.of(a, b));
+
+    //The excluded server is avoided, even if it is the least loaded
+    for(int i = 0; i < 10; i++)
+      b.getLimiter().acquire(10).join();
+    assertSame(b, router.select("fr", "en", a));
+
+    //Unless it is the only server that supports the language pair
+    router.setLanguagePairTables(List.of(
+        new LanguagePairTable(Map.of("fr", Set.of("en"), "de", Set.of("en"))),
+        new LanguagePairTable(Map.of("fr", Set.of("en")))));
+    assertSame(a, router.select("de", "en", a));
+    assertSame(b, router.select("fr", "en", a));
+    assertNull(router.select("ru", "en", a));
+  }
+
+  @Test
+  public void testEjectedServerSkipped(){
+    ConnectionPool a = pool("ws://a");
+    ConnectionPool b = pool("ws://b");
+    TranslationRouter router = new TranslationRouter(List.of(a, b));
+
+    a.getHealth().eject("test");
+    for(int i = 0; i < 10; i++)
+      b.getLimiter().acquire(10).join();
+
+    assertSame(b, router.select());
+
+    //If every server is ejected, then one is returned anyway
+    b.getHealth().eject("test");
+    assertTrue(router.select() != null);
+  }
+
+  @Test
+  public void testEjectOutliers(){
+    ConnectionPool a = pool("ws://a");
+    ConnectionPool b = pool("ws://b");
+    ConnectionPool c = pool("ws://c");
+    ConnectionPool d = pool("ws://d");
+    TranslationRouter router = new TranslationRouter(List.of(a, b, c, d));
+
+    a.getHealth().recordLatency(TimeUnit.MILLISECONDS.toNanos(10));
+    b.getHealth().recordLatency(TimeUnit.MILLISECONDS.toNanos(12));
+    c.getHealth().recordLatency(TimeUnit.MILLISECONDS.toNanos(500));
+    d.getHealth().recordLatency(TimeUnit.MILLISECONDS.toNanos(600));
+
+    //Slow, but not slow enough to be ejected
+    router.ejectOutliers(3.0, TimeUnit.SECONDS.toNanos(1));
+    assertTrue(c.getHealth().isAvailable());
+
+    router.ejectOutliers(3.0, 0);
+    assertTrue(a.getHealth().isAvailable());
+    assertTrue(b.getHealth().isAvailable());
+    assertFalse(c.getHealth().isAvailable());
+    assertFalse(d.getHealth().isAvailable());
+
+    //At most half of the servers can be ejected
+    for(int i = 0; i < 10; i++)
+      b.getHealth().recordLatency(TimeUnit.SECONDS.toNanos(10));
+    router.ejectOutliers(3.0, 0);
+    assertTrue(b.getHealth().isAvailable());
+  }
+}
@@ -0,0 +1,45 @@
+/*
+National Crime Agency (c) Crown Copyright 2018
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+   http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package uk.gov.nca.remedi4j.exceptions;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.IOException;
+import org.junit.jupiter.api.Test;
+
+public class RequestRejectedExceptionTest {
+  @Test
+  public void testConstructors(){
+    Exception e1 = new RequestRejectedException();
+    assertNull(e1.getMessage());
+    assertNull(e1.getCause());
+
+    Exception e2 = new RequestRejectedException("Test exception");
+    assertEquals("Test exception", e2.getMessage());
+    assertNull(e2.getCause());
+
+    Exception e3 = new RequestRejectedException("Test exception", new IOException());
+    assertEquals("Test exception", e3.getMessage());
+    assertNotNull(e3.getCause());
+
+    Exception e4 = new RequestRejectedException(new IOException());
+    assertEquals("java.io.IOException", e4.getMessage());
+    assertNotNull(e4.getCause());
+  }
+}
@@ -0,0 +1,148 @@
+/*
+National Crime Agency (c) Crown Copyright 2018
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+   http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package uk.gov.nca.remedi4j.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import uk.gov.nca.remedi4j.data.BaseMessage;
+import uk.gov.nca.remedi4j.data.PostProcessorRequest;
+import uk.gov.nca.remedi4j.data.PostProcessorResponse;
+import uk.gov.nca.remedi4j.data.PreProcessorRequest;
+import uk.gov.nca.remedi4j.data.PreProcessorResponse;
+import uk.gov.nca.remedi4j.data.StatusCode;
+import uk.gov.nca.remedi4j.data.SupportedLanguageRequest;
+import uk.gov.nca.remedi4j.data.SupportedLanguageResponse;
+import uk.gov.nca.remedi4j.data.TargetData;
+import uk.gov.nca.remedi4j.data.TranslationRequest;
+import uk.gov.nca.remedi4j.data.TranslationResponse;
+import uk.gov.nca.remedi4j.exceptions.InvalidMessageException;
+
+public class MessageCodecsTest {
+  //Mapper without the codecs registered, which uses the annotations on the message classes
+  private final ObjectMapper reflective = new ObjectMapper();
+
+  @Test
+  public void testSerialize() throws Exception {
+    for(BaseMessage message : getMessages())
+      assertEquals(reflective.writeValueAsString(message), MessageUtils.getJson(message));
+  }
+
+  @Test
+  public void testDeserialize() throws Exception {
+    for(BaseMessage message : getMessages()){
+      String json = reflective.writeValueAsString(message);
+
+      assertEquals(message, MessageUtils.getMessage(json));
+      assertEquals(message, MessageUtils.getMessage(json, message.getClass()));
+    }
+  }
+
+  @Test
+  public void testDeserializeCoercion() throws Exception {
+    //The reflective mapper binds source_sent to the String overload of setSourceSentences, so check this directly
+    TranslationRequest tReq = (TranslationRequest) MessageUtils.getMessage(
+        "{\"msg_type\":3,\"job_id\":\"12\",\"priority\":2.0,\"source_lang\":\"en\",\"is_trans_info\":1,\"source_sent\":[\"a\",null,3]}");
+    assertEquals(12, tReq.getJobId());
+    assertEquals(2, tReq.getPriority());
+    assertEquals("en", tReq.getSourceLanguage());
+    assertEquals(null, tReq.getTargetLanguage());
+    assertEquals(true, tReq.getTranslationInfo());
+    assertEquals(Arrays.asList("a", null, "3"), tReq.getSourceSentences());
+
+    String[] messages = new String[]{
+        "{\"msg_type\":4,\"job_id\":12,\"stat_code\":\"3\",\"target_data\":[{\"stat_code\":2,\"stack_load\":[1,null,\"3\"]},null]}",
+        "{\"msg_type\":6,\"stat_code\":null,\"job_token\":\"abc\",\"num_chs\":null,\"text\":true}",
+        "{\"msg_type\":2,\"langs\":{\"en\":[\"fr\",\"de\"],\"de\":null}}"
+    };
+
+    for(String json : messages){
+      BaseMessage message = MessageUtils.getMessage(json);
+      assertEquals(reflective.readValue(json, message.getClass()), message);
+    }
+  }
+
+  @Test
+  public void testDeserializeInvalid() {
+    String[] messages = new String[]{
+        "{\"msg_type\":3,\"job_id\":12,\"unknown\":1}",
+        "{\"msg_type\":4,\"target_data\":[{\"stat_code\":2,\"prot_ver\":0}]}",
+        "{\"msg_type\":4,\"stat_code\":9}",
+        "{\"msg_type\":3,\"job_id\":\"twelve\"}",
+        "{\"msg_type\":3,\"source_sent\":\"a\"}",
+        "{\"msg_type\":2,\"langs\":[\"en\"]}"
+    };
+
+    for(String json : messages)
+      assertThrows(InvalidMessageException.class, () -> MessageUtils.getMessage(json));
+  }
+
+  private static List<BaseMessage> getMessages(){
+    List<BaseMessage> messages = new ArrayList<>();
+
+    messages.add(new SupportedLanguageRequest());
+
+    SupportedLanguageResponse slResp = new SupportedLanguageResponse();
+    slResp.addLanguagePairs("en", Arrays.asList("fr", "de"));
+    slResp.addLanguagePair("de", "en");
+    messages.add(slResp);
+
+    TranslationRequest tReq = new TranslationRequest("en", "fr", new ArrayList<>(Arrays.asList("Hello \"world\"", "Café\n", null)));
+    tReq.setPriority(3);
+    tReq.setTranslationInfo(true);
+    messages.add(tReq);
+    messages.add(new TranslationRequest());
+
+    TargetData td = new TargetData();
+    td.setStatusCode(StatusCode.RESULT_OK);
+    td.setTranslatedText("Bonjour");
+    td.setStackLoad(Arrays.asList(1, 2, 3));
+
+    TranslationResponse tResp = new TranslationResponse();
+    tResp.setJobId(7);
+    tResp.setStatusCode(StatusCode.RESULT_PARTIAL);
+    tResp.setStatusMessage("Partial");
+    tResp.addTargetData(td);
+    tResp.addTargetData(new TargetData());
+    messages.add(tResp);
+    messages.add(new TranslationResponse());
+
+    PreProcessorRequest preReq = new PreProcessorRequest(PreProcessorRequest.LANGUAGE_AUTO, "Some text");
+    preReq.setPriority(1);
+    preReq.setNumberOfChunks(2);
+    preReq.setChunkIndex(1);
+    messages.add(preReq);
+    messages.add(new PostProcessorRequest("fr", "Du texte", "token"));
+    messages.add(new PostProcessorRequest());
+
+    PreProcessorResponse preResp = new PreProcessorResponse();
+    preResp.setStatusCode(StatusCode.RESULT_ERROR);
+    preResp.setStatusMessage("Failed");
+    preResp.setJobToken("token");
+    preResp.setLanguage("en");
+    preResp.setText("Some text");
+    messages.add(preResp);
+    messages.add(new PostProcessorResponse());
+
+    return messages;
+  }
+}
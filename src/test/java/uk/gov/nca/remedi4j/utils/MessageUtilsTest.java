@@ -26,6 +26,7 @@ import uk.gov.nca.remedi4j.data.BaseMessage;
 import uk.gov.nca.remedi4j.data.MessageType;
 import uk.gov.nca.remedi4j.data.SupportedLanguageRequest;
 import uk.gov.nca.remedi4j.data.TranslationRequest;
+import uk.gov.nca.remedi4j.data.TranslationResponse;
 import uk.gov.nca.remedi4j.exceptions.InvalidMessageException;
 import uk.gov.nca.remedi4j.exceptions.RemediException;
 import uk.gov.nca.remedi4j.exceptions.UndefinedMessageException;
@@ -130,4 +131,41 @@ public class MessageUtilsTest {
       // Expected exception, do nothing
     }
   }
+
+  @Test
+  public void testGetMessageFieldOrder() throws Exception {
+    //Fields (including nested structures) before msg_type must be retained
+    BaseMessage msg = MessageUtils.getMessage("{\"job_id\":7,\"target_data\":[{\"trans_text\":\"Hello\"}],\"msg_type\":4,\"stat_msg\":\"OK\",\"prot_ver\":0}");
+    assertTrue(msg instanceof TranslationResponse);
+
+    TranslationResponse tr = (TranslationResponse) msg;
+    assertEquals(7, tr.getJobId());
+    assertEquals("OK", tr.getStatusMessage());
+    assertEquals(1, tr.getTargetData().size());
+    assertEquals("Hello", tr.getTargetData().get(0).getTranslatedText());
+
+    //Unknown fields before msg_type must still be rejected
+    try{
+      MessageUtils.getMessage("{\"not_a_field\":1,\"msg_type\":4}");
+      fail("Expected exception not thrown");
+    }catch (InvalidMessageException ime){
+      // Expected exception, do nothing
+    }
+
+    //Missing msg_type
+    try{
+      MessageUtils.getMessage("{\"prot_ver\":0,\"job_id\":7}");
+      fail("Expected exception not thrown");
+    }catch (InvalidMessageException ime){
+      // Expected exception, do nothing
+    }
+
+    //Undefined msg_type
+    try{
+      MessageUtils.getMessage("{\"prot_ver\":0,\"msg_type\":1000}");
+      fail("Expected exception not thrown");
+    }catch (UndefinedMessageException ume){
+      // Expected exception, do nothing
+    }
+  }
 }
@@ -16,6 +16,7 @@ limitations under the License.
 
 package uk.gov.nca.remedi4j.utils;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
@@ -34,4 +35,23 @@ public class SupportedLanguageUtilsTest {
     assertFalse(SupportedLanguageUtils.supportsLanguagePair("french", "german", slr));
     assertFalse(SupportedLanguageUtils.supportsLanguagePair("japanese", "english", slr));
   }
+
+  @Test
+  public void testCompile(){
+    SupportedLanguageResponse slr = new SupportedLanguageResponse();
+    slr.setLanguagePairs("german", Arrays.asList("french", "english"));
+    slr.setLanguagePairs("french", Arrays.asList("english"));
+
+    LanguagePairTable table = SupportedLanguageUtils.compile(slr);
+    assertEquals(3, table.getLanguageCount());
+    assertEquals(slr.getLanguages(), table.getLanguages());
+
+    assertTrue(SupportedLanguageUtils.supportsLanguagePair("german", "french", table));
+    assertTrue(SupportedLanguageUtils.supportsLanguagePair("german", "english", table));
+    assertTrue(SupportedLanguageUtils.supportsLanguagePair("french", "english", table));
+    assertFalse(SupportedLanguageUtils.supportsLanguagePair("french", "german", table));
+    assertFalse(SupportedLanguageUtils.supportsLanguagePair("english", "french", table));
+    assertFalse(SupportedLanguageUtils.supportsLanguagePair("japanese", "english", table));
+    assertFalse(SupportedLanguageUtils.supportsLanguagePair("german", null, table));
+  }
 }
@@ -34,4 +34,22 @@ public class TextUtilsTest {
     assertEquals(1, sentences2.size());
     assertEquals("Today is Friday", sentences2.get(0));
   }
+
+  @Test
+  public void testGetChunks(){
+    String text = "Hello, World! How are you today? It's nice that it's sunny outside.";
+
+    List<String> chunks1 = TextUtils.getChunks(text, 35);
+    assertEquals(2, chunks1.size());
+    assertEquals("Hello, World! How are you today?", chunks1.get(0));
+    assertEquals("It's nice that it's sunny outside.", chunks1.get(1));
+
+    //Sentences longer than the chunk size are not split
+    List<String> chunks2 = TextUtils.getChunks(text, 5);
+    assertEquals(TextUtils.getSentences(text), chunks2);
+
+    List<String> chunks3 = TextUtils.getChunks(text, 1000);
+    assertEquals(1, chunks3.size());
+    assertEquals(text, chunks3.get(0));
+  }
 }